@@ -16,24 +16,58 @@
  */
 package cloud.imagey.application;
 
+import static cloud.imagey.infrastructure.jaxrs.ByteRange.ACCEPT_RANGES;
+import static cloud.imagey.infrastructure.jaxrs.ByteRange.BYTES;
+import static cloud.imagey.infrastructure.jaxrs.ByteRange.CONTENT_RANGE;
+import static cloud.imagey.infrastructure.jaxrs.ByteRange.IF_RANGE;
+import static cloud.imagey.infrastructure.jaxrs.ByteRange.RANGE;
+import static jakarta.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static jakarta.ws.rs.core.HttpHeaders.IF_NONE_MATCH;
 import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
 import static jakarta.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
 import static jakarta.ws.rs.core.MediaType.MULTIPART_FORM_DATA;
 import static jakarta.ws.rs.core.Response.created;
 import static jakarta.ws.rs.core.Response.ok;
+import static jakarta.ws.rs.core.Response.status;
+import static jakarta.ws.rs.core.Response.Status.NOT_MODIFIED;
+import static jakarta.ws.rs.core.Response.Status.PARTIAL_CONTENT;
+import static jakarta.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.readAttributes;
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+import static java.time.temporal.ChronoUnit.SECONDS;
 import static java.util.Base64.getDecoder;
+import static java.util.Base64.getUrlDecoder;
+import static java.util.Base64.getUrlEncoder;
 import static java.util.Optional.ofNullable;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HEAD;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.NotFoundException;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
@@ -43,6 +77,7 @@ import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.GenericEntity;
 import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.ResponseBuilder;
@@ -53,36 +88,90 @@ import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.Multipart;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import cloud.imagey.domain.document.ContentReference;
+import cloud.imagey.domain.document.ContentReferences;
+import cloud.imagey.domain.document.ContentUpload;
+import cloud.imagey.domain.document.Delta;
 import cloud.imagey.domain.document.DocumentId;
 import cloud.imagey.domain.document.DocumentMetadata;
 import cloud.imagey.domain.document.DocumentRepository;
 import cloud.imagey.domain.document.FileName;
+import cloud.imagey.domain.document.VersionedMetadata;
 import cloud.imagey.domain.encryption.EncryptedContent;
+import cloud.imagey.domain.encryption.EncryptedContentFile;
 import cloud.imagey.domain.encryption.EncryptedSharedKey;
 import cloud.imagey.domain.mail.Email;
 import cloud.imagey.domain.user.User;
+import cloud.imagey.infrastructure.jaxrs.ByteRange;
+import cloud.imagey.infrastructure.jaxrs.FileBatch;
+import cloud.imagey.infrastructure.jaxrs.PartialFile;
 
 @ApplicationScoped
 @Path("{email}/documents")
 public class DocumentResource {
 
     private static final Logger LOG = LogManager.getLogger(DocumentResource.class);
+    private static final int MAX_RANGES = 16;
+    private static final Set<String> RESERVED_SEGMENTS = Set.of("", ".", "..");
 
     @Inject
     private DocumentRepository documentRepository;
+    @Inject
+    @ConfigProperty(name = "document.page.max-size", defaultValue = "1000")
+    private int maxPageSize;
+    @Inject
+    @ConfigProperty(name = "document.batch.max-size", defaultValue = "500")
+    private int maxBatchSize;
 
     @Context
     private SecurityContext securityContext;
 
+    /**
+     * Lists the documents of the user, sorted by id.
+     * Without {@code limit} and {@code cursor} all documents are returned at once.
+     * Otherwise a page of at most {@code limit} documents is returned and, if there are more,
+     * a {@code Link} header with relation {@code next} points to the following page.
+     *
+     * @param limit the maximum number of documents of the page, capped at {@code document.page.max-size}
+     * @param cursor the opaque cursor of the page, as found in the {@code next} link
+     * @param ifNoneMatch the version of the listing the client has, which is answered with {@code 304}, if it is still current
+     */
     @GET
     @RolesAllowed("owner")
     @Produces(APPLICATION_JSON)
-    public List<DocumentMetadata> getDocumentMetadata(
+    public Response getDocumentMetadata(
+        @Context UriInfo uriInfo,
         @PathParam("email") User user,
-        @QueryParam("folderId") DocumentId folderId) throws IOException {
+        @QueryParam("folderId") DocumentId folderId,
+        @QueryParam("limit") Integer limit,
+        @QueryParam("cursor") String cursor,
+        @HeaderParam(IF_NONE_MATCH) String ifNoneMatch) throws IOException {
 
-        return documentRepository.findMetadata(user, ofNullable(folderId));
+        EntityTag etag = new EntityTag(documentRepository.getListingVersion(user));
+        if (isNotModified(ifNoneMatch, etag)) {
+            return notModified(etag).build();
+        }
+        if (limit == null && cursor == null) {
+            List<DocumentMetadata> documents = documentRepository.findMetadata(user, ofNullable(folderId));
+            return ok(new GenericEntity<List<DocumentMetadata>>(documents) { }).tag(etag).build();
+        }
+        if (limit != null && limit < 1) {
+            throw new BadRequestException("limit must be positive");
+        }
+        int pageSize = Math.min(ofNullable(limit).orElse(maxPageSize), maxPageSize);
+        List<DocumentMetadata> documents
+            = documentRepository.findMetadata(user, ofNullable(folderId), ofNullable(cursor).map(this::decodeCursor), pageSize + 1);
+        if (documents.size() <= pageSize) {
+            return ok(new GenericEntity<List<DocumentMetadata>>(documents) { }).tag(etag).build();
+        }
+        List<DocumentMetadata> page = documents.subList(0, pageSize);
+        URI next = uriInfo.getRequestUriBuilder()
+            .replaceQueryParam("limit", pageSize)
+            .replaceQueryParam("cursor", encodeCursor(page.get(pageSize - 1).documentId()))
+            .build();
+        return ok(new GenericEntity<List<DocumentMetadata>>(page) { }).tag(etag).link(next, "next").build();
     }
 
     @GET
@@ -95,12 +184,18 @@ public class DocumentResource {
         @QueryParam("folderId") DocumentId folderId) throws IOException {
 
         Email callerEmail = new Email(securityContext.getUserPrincipal().getName());
-        DocumentMetadata metadata = documentRepository.findMetadata(user, documentId, callerEmail, ofNullable(folderId))
+        VersionedMetadata metadata = documentRepository.findVersionedMetadata(user, documentId, callerEmail, ofNullable(folderId))
             .orElseThrow(NotFoundException::new);
-        long etag = documentRepository.getTimestamp(user, documentId).orElseThrow(NotFoundException::new);
-        return ok(metadata).header("ETag", Long.valueOf(etag)).build();
+        return ok(metadata.metadata()).tag(versionTag(metadata.version())).build();
     }
 
+    /**
+     * Updates the metadata of a document, if the {@code If-Match} header matches its current version.
+     * The check and the update are done under the lock of the document, so of two concurrent updates
+     * with the same version only one succeeds and the other one fails with {@code 412}.
+     *
+     * @param compactedUpTo if present, the metadata contains the deltas up to this sequence number, which are dropped with the update
+     */
     @PUT
     @RolesAllowed("owner")
     @Path("{documentId}")
@@ -108,45 +203,189 @@ public class DocumentResource {
     public Response storeEncryptedDocumentMetadata(
         @PathParam("email") User user,
         @PathParam("documentId") DocumentId documentId,
+        @QueryParam("compactedUpTo") Long compactedUpTo,
         EncryptedContent metadata,
         @Context Request request) throws IOException {
 
-        return documentRepository.getTimestamp(user, documentId)
-            .map(String::valueOf)
-            .map(EntityTag::new)
+        return documentRepository.lockDocument(user, documentId, () -> documentRepository.getVersion(user, documentId)
+            .map(this::versionTag)
             .map(request::evaluatePreconditions)
             .map(Optional::ofNullable)
             .filter(Optional::isPresent)
             .map(Optional::get)
             .map(ResponseBuilder::build).orElseGet(() -> {
-                documentRepository.persist(user, documentId, metadata);
-                return ok().build();
-            });
+                long version = compactedUpTo != null
+                    ? documentRepository.compact(user, documentId, metadata, compactedUpTo)
+                    : documentRepository.persist(user, documentId, metadata);
+                return ok().tag(versionTag(version)).build();
+            }));
     }
 
+    /**
+     * Appends an encrypted change to the metadata of a document, e.g. a document added to a folder,
+     * without downloading and uploading the whole metadata. The deltas are numbered by the server
+     * and the {@code Location} header points to the deltas starting with the new one.
+     */
+    @POST
+    @RolesAllowed("owner")
+    @Path("{documentId}/deltas")
+    @Consumes(APPLICATION_OCTET_STREAM)
+    public Response appendDelta(
+        @Context UriInfo uriInfo,
+        @PathParam("email") User user,
+        @PathParam("documentId") DocumentId documentId,
+        EncryptedContent delta) {
+
+        long sequence = documentRepository.appendDelta(user, documentId, delta).orElseThrow(NotFoundException::new);
+        return created(uriInfo.getRequestUriBuilder().queryParam("after", sequence - 1).build()).build();
+    }
+
+    /**
+     * Lists the deltas of a document, that are not compacted into its metadata yet, sorted by sequence number.
+     * The {@code ETag} is the version of the metadata the deltas apply to.
+     *
+     * @param after the sequence number of the last delta the client has
+     * @param limit the maximum number of deltas, capped at {@code document.page.max-size}
+     */
+    @GET
+    @RolesAllowed({"owner", "recipient"})
+    @Path("{documentId}/deltas")
+    @Produces(APPLICATION_JSON)
+    public Response getDeltas(
+        @PathParam("email") User user,
+        @PathParam("documentId") DocumentId documentId,
+        @QueryParam("after") @DefaultValue("0") long after,
+        @QueryParam("limit") Integer limit) {
+
+        if (limit != null && limit < 1) {
+            throw new BadRequestException("limit must be positive");
+        }
+        int pageSize = Math.min(ofNullable(limit).orElse(maxPageSize), maxPageSize);
+        return documentRepository.readDocument(user, documentId, () -> {
+            long version = documentRepository.getVersion(user, documentId).orElseThrow(NotFoundException::new);
+            List<Delta> deltas = documentRepository.findDeltas(user, documentId, after, pageSize);
+            return ok(new GenericEntity<List<Delta>>(deltas) { }).tag(versionTag(version)).build();
+        });
+    }
+
+    /**
+     * Downloads a content file. Supports single and multiple byte ranges,
+     * so interrupted downloads can be resumed and large files can be fetched progressively.
+     */
     @GET
     @RolesAllowed({"owner", "recipient"})
     @Path("{documentId}/files/{contentId}")
     @Produces(APPLICATION_OCTET_STREAM)
-    public EncryptedContent getDocumentContent(
+    public Response getDocumentContent(
         @PathParam("email") User user,
         @PathParam("documentId") DocumentId documentId,
-        @PathParam("contentId") DocumentId contentId) throws IOException {
+        @PathParam("contentId") DocumentId contentId,
+        @HeaderParam(RANGE) String range,
+        @HeaderParam(IF_RANGE) String ifRange,
+        @HeaderParam(IF_NONE_MATCH) String ifNoneMatch) throws IOException {
 
-        return documentRepository.loadContent(user, documentId, contentId).orElseThrow(NotFoundException::new);
+        EncryptedContentFile content = documentRepository.findContent(user, documentId, contentId).orElseThrow(NotFoundException::new);
+        BasicFileAttributes attributes = readAttributes(content.file().toPath(), BasicFileAttributes.class);
+        long length = attributes.size();
+        EntityTag etag = contentTag(attributes);
+        if (isNotModified(ifNoneMatch, etag)) {
+            return contentHeaders(notModified(etag), etag, attributes).build();
+        }
+        Optional<List<ByteRange>> ranges = ofNullable(range)
+            .filter(r -> isCurrent(ifRange, etag, attributes.lastModifiedTime()))
+            .flatMap(r -> ByteRange.parse(r, length, MAX_RANGES));
+        if (ranges.isEmpty()) {
+            return contentHeaders(ok(content), etag, attributes).build();
+        }
+        if (ranges.get().isEmpty()) {
+            return status(REQUESTED_RANGE_NOT_SATISFIABLE).header(CONTENT_RANGE, BYTES + " */" + length).build();
+        }
+        PartialFile partialFile = new PartialFile(content.file(), length, ranges.get(), UUID.randomUUID().toString());
+        ResponseBuilder response = contentHeaders(status(PARTIAL_CONTENT).entity(partialFile), etag, attributes);
+        if (partialFile.isMultipart()) {
+            return response.type(partialFile.mediaType()).build();
+        }
+        return response.header(CONTENT_RANGE, partialFile.ranges().get(0).contentRange(length)).build();
+    }
+
+    /**
+     * Downloads several content files in one response, e.g. the thumbnails of a gallery.
+     * The files are streamed as {@link FileBatch} in the requested order.
+     * Access is checked once per document. Files that are missing or not shared with the caller are sent without content.
+     */
+    @POST
+    @RolesAllowed("authenticated")
+    @Path("files")
+    @Consumes(APPLICATION_JSON)
+    @Produces({FileBatch.MEDIA_TYPE, APPLICATION_OCTET_STREAM})
+    public FileBatch getDocumentContents(
+        @PathParam("email") User user,
+        ContentReferences references) throws IOException {
+
+        if (references == null || references.files() == null || references.files().size() > maxBatchSize) {
+            throw new BadRequestException("between 0 and " + maxBatchSize + " files expected");
+        }
+        boolean owner = securityContext.isUserInRole("owner");
+        Email callerEmail = new Email(securityContext.getUserPrincipal().getName());
+        Map<DocumentId, Boolean> readableDocuments = new HashMap<>();
+        List<FileBatch.Entry> entries = new ArrayList<>();
+        for (ContentReference reference : references.files()) {
+            if (!isPathSegment(reference.documentId()) || !isPathSegment(reference.contentId())) {
+                throw new BadRequestException("invalid file " + reference);
+            }
+            String name = reference.documentId().id() + "/" + reference.contentId().id();
+            boolean readable = owner || readableDocuments.computeIfAbsent(reference.documentId(),
+                documentId -> documentRepository.hasSharedKey(user, documentId, callerEmail));
+            entries.add(Optional.of(readable)
+                .filter(Boolean::booleanValue)
+                .flatMap(r -> documentRepository.findContent(user, reference.documentId(), reference.contentId()))
+                .map(content -> new FileBatch.Entry(name, content.file(), content.file().length()))
+                .orElseGet(() -> FileBatch.Entry.missing(name)));
+        }
+        return new FileBatch(entries);
+    }
+
+    /**
+     * Reports length and validators of a content file without reading it.
+     */
+    @HEAD
+    @RolesAllowed({"owner", "recipient"})
+    @Path("{documentId}/files/{contentId}")
+    @Produces(APPLICATION_OCTET_STREAM)
+    public Response getDocumentContentHeaders(
+        @PathParam("email") User user,
+        @PathParam("documentId") DocumentId documentId,
+        @PathParam("contentId") DocumentId contentId,
+        @HeaderParam(IF_NONE_MATCH) String ifNoneMatch) throws IOException {
+
+        EncryptedContentFile content = documentRepository.findContent(user, documentId, contentId).orElseThrow(NotFoundException::new);
+        BasicFileAttributes attributes = readAttributes(content.file().toPath(), BasicFileAttributes.class);
+        EntityTag etag = contentTag(attributes);
+        if (isNotModified(ifNoneMatch, etag)) {
+            return contentHeaders(notModified(etag), etag, attributes).build();
+        }
+        return contentHeaders(ok(), etag, attributes).header(CONTENT_LENGTH, attributes.size()).build();
     }
 
     @GET
     @RolesAllowed({"owner", "recipient"})
     @Path("{documentId}/keys/{share-email}")
     @Produces(APPLICATION_JSON)
-    public EncryptedSharedKey getSharedKey(
+    public Response getSharedKey(
         @PathParam("email") User user,
         @PathParam("documentId") DocumentId documentId,
-        @PathParam("share-email") Email userTheDocumentIsSharedWith) throws IOException {
+        @PathParam("share-email") Email userTheDocumentIsSharedWith,
+        @HeaderParam(IF_NONE_MATCH) String ifNoneMatch) throws IOException {
 
-        return documentRepository.findDocumentKey(user, documentId, userTheDocumentIsSharedWith)
-                .orElseThrow(NotFoundException::new);
+        EntityTag etag = documentRepository.getKeyVersion(user, documentId, userTheDocumentIsSharedWith)
+            .map(EntityTag::new)
+            .orElseThrow(NotFoundException::new);
+        if (isNotModified(ifNoneMatch, etag)) {
+            return notModified(etag).build();
+        }
+        EncryptedSharedKey key = documentRepository.findDocumentKey(user, documentId, userTheDocumentIsSharedWith)
+            .orElseThrow(NotFoundException::new);
+        return ok(key).tag(etag).build();
     }
 
     @PUT
@@ -164,9 +403,90 @@ public class DocumentResource {
         return ok().build();
     }
 
+    private boolean isPathSegment(DocumentId id) {
+        return id != null && id.id() != null && !RESERVED_SEGMENTS.contains(id.id())
+            && id.id().indexOf('/') < 0 && id.id().indexOf('\\') < 0;
+    }
+
+    private String encodeCursor(DocumentId documentId) {
+        return getUrlEncoder().withoutPadding().encodeToString(documentId.id().getBytes(UTF_8));
+    }
+
+    private DocumentId decodeCursor(String cursor) {
+        try {
+            return new DocumentId(new String(getUrlDecoder().decode(cursor), UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("invalid cursor");
+        }
+    }
+
+    private ResponseBuilder contentHeaders(ResponseBuilder response, EntityTag etag, BasicFileAttributes attributes) {
+        return response
+            .header(ACCEPT_RANGES, BYTES)
+            .tag(etag)
+            .lastModified(new Date(attributes.lastModifiedTime().toMillis()));
+    }
+
+    /**
+     * Creates a strong entity tag of a file from its length, modification time and file key (i.e. the inode),
+     * so a file that is replaced within the resolution of the modification time gets a new tag, too.
+     */
+    private EntityTag contentTag(BasicFileAttributes attributes) {
+        return new EntityTag(Long.toHexString(attributes.size())
+            + "-" + Long.toHexString(attributes.lastModifiedTime().to(NANOSECONDS))
+            + "-" + Integer.toHexString(Objects.hashCode(attributes.fileKey())));
+    }
+
+    /**
+     * Checks the {@code If-None-Match} precondition, which is a list of entity tags or {@code *}.
+     * As demanded for {@code GET} and {@code HEAD}, tags are compared weakly.
+     */
+    private boolean isNotModified(String ifNoneMatch, EntityTag etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String value = tag.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals("\"" + etag.getValue() + "\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private EntityTag versionTag(long version) {
+        return new EntityTag(String.valueOf(version));
+    }
+
+    private ResponseBuilder notModified(EntityTag etag) {
+        return status(NOT_MODIFIED).tag(etag);
+    }
+
+    /**
+     * Checks the {@code If-Range} precondition, which is either a strong entity tag or a http date.
+     */
+    private boolean isCurrent(String ifRange, EntityTag etag, FileTime lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals("\"" + etag.getValue() + "\"");
+        }
+        try {
+            Instant date = ZonedDateTime.parse(ifRange, RFC_1123_DATE_TIME).toInstant();
+            return date.equals(lastModified.toInstant().truncatedTo(SECONDS));
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
     /**
      * Uploads a document via multipart form data containing metadata, shared key,
-     * and multiple content streams.
+     * and multiple content streams. The content streams are copied to disk part by part,
+     * so they are never held in memory as a whole.
      *
      * @param user  the user uploading the document
      * @param input the multipart form data input
@@ -184,15 +504,21 @@ public class DocumentResource {
         @Multipart(value = "issuer") String issuer,
         List<Attachment> files) throws IOException {
 
-        DocumentId documentId = documentRepository.persist(user, metadata);
-
-        documentRepository.persist(user, documentId, new Email(issuer), new EncryptedContent(keyBytes));
-
-        ofNullable(files).ifPresent(f -> f.stream().filter(a -> a.getContentDisposition().getFilename() != null).forEach(attachment -> {
-            FileName name = new FileName(attachment.getContentDisposition().getFilename());
-            EncryptedContent content = new EncryptedContent(attachment.getObject(byte[].class));
-            documentRepository.persist(user, documentId, name, content);
-        }));
+        List<ContentUpload> contents = new ArrayList<>();
+        DocumentId documentId;
+        try {
+            for (Attachment attachment : ofNullable(files).orElse(List.of())) {
+                String filename = attachment.getContentDisposition().getFilename();
+                if (filename != null) {
+                    contents.add(new ContentUpload(new FileName(filename), attachment.getDataHandler().getInputStream()));
+                }
+            }
+            documentId = documentRepository.persist(user, metadata, new Email(issuer), new EncryptedContent(keyBytes), contents);
+        } finally {
+            for (ContentUpload content : contents) {
+                content.content().close();
+            }
+        }
         URI location = uriInfo.getAbsolutePathBuilder().path(documentId.id()).build();
         return created(location).build();
     }
@@ -0,0 +1,72 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.application;
+
+import static jakarta.ws.rs.core.HttpHeaders.LAST_EVENT_ID_HEADER;
+import static jakarta.ws.rs.core.MediaType.SERVER_SENT_EVENTS;
+import static java.util.Locale.ROOT;
+
+import jakarta.annotation.security.RolesAllowed;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+
+import cloud.imagey.domain.user.User;
+import cloud.imagey.domain.user.UserEvent;
+import cloud.imagey.infrastructure.jaxrs.EventStreams;
+import cloud.imagey.infrastructure.jaxrs.SseSubscriber;
+
+@Path("{email}/events")
+@ApplicationScoped
+public class EventResource {
+
+    @Inject
+    private EventStreams eventStreams;
+
+    /**
+     * Streams the events of the user as server-sent events, named by the {@link UserEvent} type with the subject as data,
+     * so a client holds one connection instead of polling every conversation.
+     * A client that reconnects with {@code Last-Event-ID} gets the events it missed or a {@code reset} event.
+     */
+    @GET
+    @RolesAllowed("owner")
+    @Produces(SERVER_SENT_EVENTS)
+    public void streamEvents(
+        @PathParam("email") User user,
+        @HeaderParam(LAST_EVENT_ID_HEADER) String lastEventId,
+        @Context SseEventSink sink,
+        @Context Sse sse) {
+
+        eventStreams.subscribe(owner(user), lastEventId, new SseSubscriber(sink, sse));
+    }
+
+    public void publish(@Observes UserEvent event) {
+        eventStreams.publish(owner(event.user()), event.type(), event.subject());
+    }
+
+    private String owner(User user) {
+        return user.email().address().toLowerCase(ROOT);
+    }
+}
@@ -16,6 +16,8 @@
  */
 package cloud.imagey.application;
 
+import java.util.Map;
+
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.ws.rs.ApplicationPath;
 import jakarta.ws.rs.core.Application;
@@ -23,4 +25,14 @@ import jakarta.ws.rs.core.Application;
 @ApplicationPath("/users")
 @ApplicationScoped
 public class ImageyApplication extends Application {
+
+    /**
+     * Multipart parts bigger than this are buffered in temporary files by CXF instead of in memory.
+     */
+    private static final String ATTACHMENT_MEMORY_THRESHOLD = String.valueOf(64 * 1024);
+
+    @Override
+    public Map<String, Object> getProperties() {
+        return Map.of("attachment-memory-threshold", ATTACHMENT_MEMORY_THRESHOLD);
+    }
 }
@@ -27,7 +27,6 @@ import static java.util.function.Predicate.not;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -38,6 +37,7 @@ import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.HeaderParam;
@@ -73,6 +73,9 @@ public class MessageResource {
     @Inject
     @ConfigProperty(name = "chat.polling.timeout", defaultValue = "30")
     private long pollingTimeoutSeconds;
+    @Inject
+    @ConfigProperty(name = "chat.page.max-size", defaultValue = "100")
+    private int maxPageSize;
     private Map<Channel, Queue<AsyncResponse>> waitingRequests = new ConcurrentHashMap<>();
 
     @POST
@@ -88,6 +91,14 @@ public class MessageResource {
         return Response.created(uriInfo.getAbsolutePathBuilder().path(message.id().value()).build()).build();
     }
 
+    /**
+     * Returns a page of the messages of the conversation, sorted by id.
+     * Without a cursor the latest messages are returned. With {@code before} the messages before the given one are returned,
+     * so older messages can be loaded page by page. With {@code after} (or {@code sinceId}) the messages after the given one are returned
+     * and, if there are none, the request waits for new messages as long as the {@code Prefer: wait=<seconds>} header allows.
+     *
+     * @param limit the maximum number of messages, capped at {@code chat.page.max-size}
+     */
     @GET
     @RolesAllowed("owner")
     @Produces(APPLICATION_JSON)
@@ -95,12 +106,20 @@ public class MessageResource {
         @PathParam("email") User receiver,
         @PathParam("contact") User sender,
         @QueryParam("sinceId") MessageId sinceId,
+        @QueryParam("after") MessageId after,
+        @QueryParam("before") MessageId before,
+        @QueryParam("limit") Integer limit,
         @HeaderParam("Prefer") Prefer prefer,
         @Suspended AsyncResponse asyncResponse) {
 
-        long timeout = min(pollingTimeoutSeconds, ofNullable(prefer).map(Prefer::timeout).orElse(0L));
+        if (limit != null && limit < 1) {
+            throw new BadRequestException("limit must be positive");
+        }
+        long timeout = before == null ? min(pollingTimeoutSeconds, ofNullable(prefer).map(Prefer::timeout).orElse(0L)) : 0;
+        int pageSize = min(ofNullable(limit).orElse(maxPageSize), maxPageSize);
 
-        List<Message> messages = messageRepository.fetchMessages(receiver, sender, Optional.ofNullable(sinceId));
+        List<Message> messages = messageRepository.fetchMessages(receiver, sender,
+            ofNullable(after).or(() -> ofNullable(sinceId)), ofNullable(before), pageSize);
         if (messages.isEmpty() && timeout > 0) {
             asyncResponse.setTimeout(timeout, SECONDS);
             asyncResponse.setTimeoutHandler(ar -> ar.resume(Response.ok(emptyList()).build()));
@@ -24,6 +24,9 @@ import static jakarta.ws.rs.core.MediaType.MULTIPART_FORM_DATA;
 import static java.util.Optional.empty;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -43,6 +46,7 @@ import org.apache.cxf.jaxrs.ext.multipart.Multipart;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import cloud.imagey.domain.document.ContentUpload;
 import cloud.imagey.domain.document.DocumentId;
 import cloud.imagey.domain.document.DocumentMetadata;
 import cloud.imagey.domain.document.DocumentRepository;
@@ -72,26 +76,21 @@ public class ProfileResource {
         @Multipart("metadata") byte[] metadataBytes,
         @Multipart("key") byte[] keyBytes,
         @Multipart("issuer") String issuer,
-        @Multipart("content") byte[] contentBytes,
-        @Multipart(value = "smallImage", required = false) byte[] smallImageBytes,
-        @Multipart(value = "previewImage", required = false) byte[] previewImageBytes)
+        @Multipart("content") InputStream content,
+        @Multipart(value = "smallImage", required = false) InputStream smallImage,
+        @Multipart(value = "previewImage", required = false) InputStream previewImage)
             throws IOException {
 
-        EncryptedContent metadata = new EncryptedContent(metadataBytes);
-        DocumentId documentId = documentRepository.persist(user, metadata);
-        EncryptedContent keyContent = new EncryptedContent(keyBytes);
-        documentRepository.persist(user, documentId, new Email(issuer), keyContent);
-
-        EncryptedContent content = new EncryptedContent(contentBytes);
-        documentRepository.persist(user, documentId, new FileName(CONTENT.id()), content);
-
-        if (smallImageBytes != null) {
-            documentRepository.persist(user, documentId, new FileName(SMALL.id()), new EncryptedContent(smallImageBytes));
+        List<ContentUpload> contents = new ArrayList<>();
+        contents.add(new ContentUpload(new FileName(CONTENT.id()), content));
+        if (smallImage != null) {
+            contents.add(new ContentUpload(new FileName(SMALL.id()), smallImage));
         }
-
-        if (previewImageBytes != null) {
-            documentRepository.persist(user, documentId, new FileName(PREVIEW.id()), new EncryptedContent(previewImageBytes));
+        if (previewImage != null) {
+            contents.add(new ContentUpload(new FileName(PREVIEW.id()), previewImage));
         }
+        documentRepository.persist(
+            user, new EncryptedContent(metadataBytes), new Email(issuer), new EncryptedContent(keyBytes), contents);
 
         return Response.ok().build();
     }
@@ -114,7 +114,9 @@ public class RolesFilter implements ContainerRequestFilter {
     }
 
     private boolean hasRole(User currentPrincipal, User contextUser, UriInfo uriInfo, String role) {
-        if ("owner".equals(role)) {
+        if ("authenticated".equals(role)) {
+            return true;
+        } else if ("owner".equals(role)) {
             return currentPrincipal.equals(contextUser);
         } else if ("contact".equals(role)) {
             return contactRepository.isContact(contextUser, currentPrincipal);
@@ -53,6 +53,6 @@ public class CorsFilter implements ContainerResponseFilter {
         responseContext.getHeaders().add("Access-Control-Allow-Credentials", "true");
         responseContext.getHeaders().add("Access-Control-Allow-Headers", "origin, content-type, accept, authorization");
         responseContext.getHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD");
-        responseContext.getHeaders().add("Access-Control-Expose-Headers", "Location");
+        responseContext.getHeaders().add("Access-Control-Expose-Headers", "Location, Link, ETag");
     }
 }
\ No newline at end of file
@@ -19,7 +19,6 @@ package cloud.imagey.domain.chat;
 import static cloud.imagey.domain.chat.ContactStatus.INVITATION_RECEIVED;
 import static jakarta.json.bind.JsonbBuilder.create;
 import static java.nio.charset.Charset.defaultCharset;
-import static java.util.Collections.emptyList;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
 
@@ -27,19 +26,18 @@ import java.io.File;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Stream;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import cloud.imagey.domain.encryption.EncryptedSharedKey;
 import cloud.imagey.domain.mail.Email;
 import cloud.imagey.domain.user.User;
 import cloud.imagey.infrastructure.common.AbstractFileRepository;
+import cloud.imagey.infrastructure.common.BlobStore;
 
 @ApplicationScoped
 public class ContactRepository extends AbstractFileRepository {
@@ -48,63 +46,48 @@ public class ContactRepository extends AbstractFileRepository {
     private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     @Inject
-    @ConfigProperty(name = "root.path")
-    private String rootPath;
+    private BlobStore blobStore;
 
     public void persist(User sender, User recipient, ContactStatus newStatus) {
         File contactRequests = new File(getUserHome(sender), "contact-requests");
         File recipientRequests = new File(contactRequests, recipient.email().address());
-        writeStringToFile(new File(recipientRequests, "status.txt"), newStatus.name(), defaultCharset());
+        blobStore.write(new File(recipientRequests, "status.txt"), newStatus.name().getBytes(defaultCharset()));
     }
 
     public void persist(User user, User contact, EncryptedSharedKey key) {
         File userHome = getUserHome(user);
         File contactHome = new File(userHome, "contacts");
         File contactFolder = new File(contactHome, contact.email().address());
-        contactFolder.mkdirs();
         File keyFile = new File(contactFolder, "key.json");
-        writeStringToFile(keyFile, create().toJson(key), UTF_8, false);
+        blobStore.write(keyFile, create().toJson(key).getBytes(UTF_8));
 
         // Delete any pending invitations since they are now a contact
-        File requestDirectory = new File(new File(userHome, "contact-requests"), contact.email().address());
-        if (requestDirectory.exists()) {
-            deleteDirectory(requestDirectory);
-        }
+        blobStore.delete(new File(new File(userHome, "contact-requests"), contact.email().address()));
     }
 
     public List<User> findContactRequests(User user) {
         File userHome = getUserHome(user);
         File contactRequests = new File(userHome, "contact-requests");
-        if (!contactRequests.exists()) {
-            return emptyList();
-        }
-        File[] contacts = contactRequests.listFiles();
-        return Stream.of(contacts)
-                .filter(File::isDirectory)
-                .sorted()
-                .filter(directory -> readStatus(new File(directory, "status.txt")) == INVITATION_RECEIVED)
-                .map(file -> new User(new Email(file.getName())))
+        return blobStore.children(contactRequests).stream()
+                .filter(name -> readStatus(new File(new File(contactRequests, name), "status.txt")).orElse(null) == INVITATION_RECEIVED)
+                .map(name -> new User(new Email(name)))
                 .toList();
     }
 
     public Optional<ContactStatus> getContactStatus(User user, User contact) {
         File userHome = getUserHome(user);
         File contactFolder = new File(new File(userHome, "contact-requests"), contact.email().address());
-        File statusFile = new File(contactFolder, "status.txt");
-        if (!statusFile.exists()) {
-            return empty();
-        }
-        return of(readStatus(statusFile));
+        return readStatus(new File(contactFolder, "status.txt"));
     }
 
     public Optional<EncryptedSharedKey> getContactKey(User user, User contact) {
         File userHome = getUserHome(user);
         File contactFolder = new File(new File(userHome, "contacts"), contact.email().address());
-        File keyFile = new File(contactFolder, "key.json");
-        LOG.info("key file found: " + keyFile.exists());
-        if (keyFile.exists()) {
+        Optional<byte[]> key = blobStore.read(new File(contactFolder, "key.json"));
+        LOG.info("key file found: " + key.isPresent());
+        if (key.isPresent()) {
             try {
-                return of(create().fromJson(readFileToString(keyFile), EncryptedSharedKey.class));
+                return of(create().fromJson(new String(key.get(), UTF_8), EncryptedSharedKey.class));
             } catch (Exception e) {
                 LOG.error("Failed to read key", e);
                 return empty();
@@ -117,7 +100,7 @@ public class ContactRepository extends AbstractFileRepository {
         File userHome = getUserHome(user);
         File contactFolder = new File(new File(userHome, "contacts"), contact.email().address());
         File keyFile = new File(contactFolder, "key.json");
-        writeStringToFile(keyFile, create().toJson(key), UTF_8);
+        blobStore.write(keyFile, create().toJson(key).getBytes(UTF_8));
     }
 
     public void reissueKey(User user, User contact, ContactKeys keys) {
@@ -125,40 +108,30 @@ public class ContactRepository extends AbstractFileRepository {
 
         File contactHome = getUserHome(contact);
         File contactFolder = new File(new File(contactHome, "contacts"), user.email().address());
-        if (!contactFolder.exists()) {
-            mkdir(contactFolder);
-        }
-
         File keyFile = new File(contactFolder, "key.json");
-        writeStringToFile(keyFile, create().toJson(keys.contactKey()), UTF_8, false);
+        blobStore.write(keyFile, create().toJson(keys.contactKey()).getBytes(UTF_8));
     }
 
     public boolean isContact(User user, User contact) {
         File userHome = getUserHome(user);
         File contactsHome = new File(userHome, "contacts");
-        return new File(contactsHome, contact.email().address()).exists();
+        return blobStore.exists(new File(contactsHome, contact.email().address()));
     }
 
     public List<User> findContacts(User user) {
         File userHome = getUserHome(user);
         File contactsHome = new File(userHome, "contacts");
-        if (!contactsHome.exists() || !contactsHome.isDirectory()) {
-            return emptyList();
-        }
-        return Stream.of(contactsHome.listFiles())
-                .filter(File::isDirectory)
-                .map(File::getName)
-                .sorted()
+        return blobStore.children(contactsHome).stream()
                 .map(Email::new)
                 .map(User::new)
                 .toList();
     }
 
-    private ContactStatus readStatus(File statusFile) {
-        return ContactStatus.valueOf(readFileToString(statusFile));
+    private Optional<ContactStatus> readStatus(File statusFile) {
+        return blobStore.read(statusFile).map(status -> ContactStatus.valueOf(new String(status, defaultCharset())));
     }
 
     private File getUserHome(User user) {
-        return new File(rootPath, user.email().address());
+        return new File(blobStore.root(), user.email().address());
     }
 }
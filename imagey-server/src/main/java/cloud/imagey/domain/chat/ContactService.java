@@ -20,11 +20,13 @@ import static cloud.imagey.domain.chat.ContactStatus.DENIAL_RECEIVED;
 import static cloud.imagey.domain.chat.ContactStatus.DENIAL_SENT;
 import static cloud.imagey.domain.chat.ContactStatus.INVITATION_RECEIVED;
 import static cloud.imagey.domain.token.TokenService.ONE_WEEK;
+import static cloud.imagey.domain.user.UserEvent.CONTACT;
 
 import java.io.IOException;
 import java.util.List;
 
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
 import jakarta.inject.Inject;
 import jakarta.inject.Provider;
 import jakarta.validation.ValidationException;
@@ -43,6 +45,7 @@ import cloud.imagey.domain.token.Token;
 import cloud.imagey.domain.token.TokenService;
 import cloud.imagey.domain.user.DomainName;
 import cloud.imagey.domain.user.User;
+import cloud.imagey.domain.user.UserEvent;
 import cloud.imagey.domain.user.UserRepository;
 import cloud.imagey.infrastructure.ResourceConflictException;
 
@@ -60,6 +63,8 @@ public class ContactService {
     @Inject
     private ContactRepository contactRepository;
     @Inject
+    private Event<UserEvent> userEvent;
+    @Inject
     private Provider<DomainName> currentDomain;
     @Inject
     @ConfigProperty(name = "secure-doc.urls")
@@ -85,9 +90,11 @@ public class ContactService {
             if (currentStatus == null || currentStatus == DENIAL_SENT) {
                 contactRepository.persist(sender, recipient, ContactStatus.INVITATION_SENT);
                 contactRepository.persist(recipient, sender, ContactStatus.INVITATION_RECEIVED);
+                notifyContacts(sender, recipient);
                 return true;
             }
             contactRepository.persist(recipient, sender, ContactStatus.INVITATION_RECEIVED);
+            notifyContacts(sender, recipient);
             return false;
         } else {
             contactRepository.persist(sender, recipient, ContactStatus.INVITATION_SENT);
@@ -98,6 +105,7 @@ public class ContactService {
                 invitationSubject,
                 invitationBody
             ).formatted(domain.getAppName(), sender.email().address(), link));
+            userEvent.fire(new UserEvent(sender, CONTACT, recipient.email().address()));
             return true;
         }
     }
@@ -106,6 +114,7 @@ public class ContactService {
         if (contactRepository.getContactStatus(user, contact).filter(INVITATION_RECEIVED::equals).isPresent()) {
             contactRepository.persist(user, contact, keys.userKey());
             contactRepository.persist(contact, user, keys.contactKey());
+            notifyContacts(user, contact);
         } else {
             throw new ResourceConflictException("Contact request rejected");
         }
@@ -114,6 +123,7 @@ public class ContactService {
     public void declineInvitation(User user, User requestor) throws IOException {
         contactRepository.persist(user, requestor, ContactStatus.DENIAL_SENT);
         contactRepository.persist(requestor, user, ContactStatus.DENIAL_RECEIVED);
+        notifyContacts(user, requestor);
     }
 
     public void reissueKey(User user, User contact, ContactKeys keys) throws IOException {
@@ -121,5 +131,11 @@ public class ContactService {
             throw new ResourceConflictException("Not a contact");
         }
         contactRepository.reissueKey(user, contact, keys);
+        notifyContacts(user, contact);
+    }
+
+    private void notifyContacts(User user, User contact) {
+        userEvent.fire(new UserEvent(user, CONTACT, contact.email().address()));
+        userEvent.fire(new UserEvent(contact, CONTACT, user.email().address()));
     }
 }
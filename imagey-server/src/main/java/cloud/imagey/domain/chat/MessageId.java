@@ -16,22 +16,43 @@
  */
 package cloud.imagey.domain.chat;
 
-import java.util.UUID;
+import java.util.regex.Pattern;
 
 import jakarta.json.bind.annotation.JsonbTypeAdapter;
 
 import cloud.imagey.domain.chat.MessageId.Adapter;
 import cloud.imagey.infrastructure.record.AbstractSimpleRecordAdapter;
 
+/**
+ * The id of a message, which is the sequence number of the message in its conversation.
+ * Messages, that were stored before messages were numbered, keep their ids of the form {@code <millis>-<uuid>}
+ * and are sorted before all numbered messages.
+ */
 @JsonbTypeAdapter(Adapter.class)
 public record MessageId(String value) implements Comparable<MessageId> {
 
-    protected MessageId() {
-        this(System.currentTimeMillis() + "-" + UUID.randomUUID().toString());
+    private static final Pattern SEQUENCE = Pattern.compile("\\d{1,18}");
+
+    public MessageId(long sequence) {
+        this(Long.toString(sequence));
+    }
+
+    public boolean isSequence() {
+        return SEQUENCE.matcher(value).matches();
+    }
+
+    public long sequence() {
+        return Long.parseLong(value);
     }
 
     @Override
     public int compareTo(MessageId o) {
+        if (isSequence() && o.isSequence()) {
+            return Long.compare(sequence(), o.sequence());
+        }
+        if (isSequence() != o.isSequence()) {
+            return isSequence() ? 1 : -1;
+        }
         return value.compareTo(o.value);
     }
 
@@ -16,86 +16,246 @@
  */
 package cloud.imagey.domain.chat;
 
-import static jakarta.json.bind.JsonbBuilder.create;
-
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Function;
 
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import cloud.imagey.domain.mail.Email;
 import cloud.imagey.domain.user.User;
 import cloud.imagey.infrastructure.common.AbstractFileRepository;
+import cloud.imagey.infrastructure.common.BlobStore;
+import cloud.imagey.infrastructure.common.RecordLog;
+import cloud.imagey.infrastructure.common.StripedLocks;
 
+/**
+ * Stores the messages of a conversation in one append-only log, that is shared by both participants.
+ * The log is located below the participant with the lower email address in {@code conversations/<other participant>}.
+ * The id of a message is its sequence number in the log, which is assigned by the append, that stores the message,
+ * so the ids of a conversation increase without gaps in the order the messages were stored, independent of the clock.
+ * Messages, that were stored as one file per message in the {@code messages} folders of the participants, are moved into the log
+ * in the background at startup or, if the conversation is opened before, when it is opened.
+ * They keep their ids, which are still accepted as cursors.
+ */
 @ApplicationScoped
 public class MessageRepository extends AbstractFileRepository {
 
+    private static final Logger LOG = LogManager.getLogger(MessageRepository.class);
+    private static final String LEGACY_SUFFIX = ".json";
+    private static final int INDEX_BATCH_SIZE = 100;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    @Inject
+    private BlobStore blobStore;
+    @Inject
+    @ConfigProperty(name = "chat.log.segment-size", defaultValue = "16777216")
+    private long segmentSize;
+    @Inject
+    @ConfigProperty(name = "chat.log.sync", defaultValue = "true")
+    private boolean sync;
     @Inject
-    @ConfigProperty(name = "root.path")
-    private String rootPath;
+    @ConfigProperty(name = "chat.log.open-logs", defaultValue = "1024")
+    private long openLogs;
+    @Inject
+    @ConfigProperty(name = "chat.lock.stripes", defaultValue = "256")
+    private int lockStripes;
 
-    Message persist(User receiver, User sender, MessageContent encryptedContent) {
-        MessageId id = new MessageId();
-        Message message = new Message(sender, encryptedContent);
-        String jsonContent = create().toJson(message);
+    private final Jsonb jsonb = JsonbBuilder.create();
+    private Map<File, Conversation> conversations;
+    private StripedLocks conversationLocks;
 
-        File receiverHome = new File(rootPath, receiver.email().address());
-        if (!receiverHome.exists()) {
-            mkdir(receiverHome);
-        }
-        File messagesHome = new File(receiverHome, "messages");
-        if (!messagesHome.exists()) {
-            mkdir(messagesHome);
-        }
-        File senderFolder = new File(messagesHome, sender.email().address());
-        if (!senderFolder.exists()) {
-            mkdir(senderFolder);
-        }
-        File messageFile = new File(senderFolder, id.value() + ".json");
-        writeStringToFile(messageFile, jsonContent, UTF_8, false);
+    /**
+     * Keeps at most {@code chat.log.open-logs} conversation logs open and serializes the access to a conversation
+     * by {@code chat.lock.stripes} locks. The least recently used log is closed, when another one is opened,
+     * without an admission filter, because reopening a conversation rescans its log.
+     */
+    @PostConstruct
+    public void initialize() {
+        conversations = Collections.synchronizedMap(new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, Conversation> eldest) {
+                if (size() <= openLogs) {
+                    return false;
+                }
+                eldest.getValue().log.close();
+                return true;
+            }
+        });
+        conversationLocks = new StripedLocks(lockStripes);
+        Thread importer = new Thread(this::importMessageFiles, "message-import");
+        importer.setDaemon(true);
+        importer.start();
+    }
 
-        File senderHome = new File(rootPath, sender.email().address());
-        if (!senderHome.exists()) {
-            mkdir(senderHome);
-        }
-        File senderMessagesHome = new File(senderHome, "messages");
-        if (!senderMessagesHome.exists()) {
-            mkdir(senderMessagesHome);
-        }
-        File receiverFolder = new File(senderMessagesHome, receiver.email().address());
-        if (!receiverFolder.exists()) {
-            mkdir(receiverFolder);
+    /**
+     * Moves the messages, that are stored as files, of all conversations into their logs,
+     * so the first request for a conversation rarely has to.
+     */
+    void importMessageFiles() {
+        for (String owner : blobStore.children(blobStore.root())) {
+            File messagesHome = new File(new File(blobStore.root(), owner), "messages");
+            for (String contact : blobStore.children(messagesHome)) {
+                try {
+                    withConversation(new User(new Email(owner)), new User(new Email(contact)), conversation -> null);
+                } catch (RuntimeException e) {
+                    LOG.warn("Import of the messages of {} with {} failed", owner, contact, e);
+                }
+            }
         }
-        File senderMessageFile = new File(receiverFolder, id.value() + ".json");
-        writeStringToFile(senderMessageFile, jsonContent, UTF_8, false);
+    }
+
+    Message persist(User receiver, User sender, MessageContent encryptedContent) {
+        byte[] json = jsonb.toJson(new Message(sender, encryptedContent)).getBytes(UTF_8);
+        long sequence = withConversation(receiver, sender, conversation -> conversation.log.append(json));
 
         return new Message(sender, encryptedContent)
-            .withId(id)
+            .withId(new MessageId(sequence))
             .inChannel(new Channel(sender.email().address() + ":" + receiver.email().address()));
     }
 
-    public List<Message> fetchMessages(User receiver, User sender, java.util.Optional<MessageId> sinceId) {
-        File receiverHome = new File(rootPath, receiver.email().address());
-        File messagesHome = new File(receiverHome, "messages");
-        File senderFolder = new File(messagesHome, sender.email().address());
-
-        List<Message> messages = new ArrayList<>();
-        if (senderFolder.exists() && senderFolder.isDirectory()) {
-            File[] files = senderFolder.listFiles((dir, name) -> name.endsWith(".json"));
-            Arrays.sort(files, Comparator.comparing(File::getName));
-            for (File file : files) {
-                String id = file.getName().replace(".json", "");
-                if (sinceId.isEmpty() || new MessageId(id).compareTo(sinceId.get()) > 0) {
-                    Message message = create().fromJson(readFileToString(file), Message.class);
-                    messages.add(message.withId(new MessageId(id)));
+    /**
+     * Returns a page of the messages of a conversation, sorted by id.
+     * Without {@code after} the latest messages before {@code before} (or of the whole conversation) are returned,
+     * otherwise the first messages after {@code after}. A poll for messages after the latest one does not access the log.
+     * Unknown ids, e.g. of messages stored as files, that were never imported, are ignored,
+     * so they return the latest messages instead of the whole conversation.
+     *
+     * @param limit the maximum number of messages to return
+     */
+    public List<Message> fetchMessages(User receiver, User sender, Optional<MessageId> after, Optional<MessageId> before, int limit) {
+        return withConversation(receiver, sender, conversation -> {
+            Optional<Long> from = after.flatMap(id -> conversation.sequence(id));
+            long to = before.flatMap(id -> conversation.sequence(id)).orElse(conversation.log.lastSequence() + 1);
+            long count = Math.min(limit, to - from.orElse(0L) - 1);
+            if (count <= 0) {
+                return List.<Message>of();
+            }
+            long start = from.orElse(to - 1 - count);
+            return conversation.log.read(start, (int)count).stream().map(this::toMessage).toList();
+        });
+    }
+
+    private Message toMessage(RecordLog.Entry entry) {
+        Message message = jsonb.fromJson(new String(entry.data(), UTF_8), Message.class);
+        return message.id() != null ? message : message.withId(new MessageId(entry.sequence()));
+    }
+
+    private <T> T withConversation(User participant, User otherParticipant, Function<Conversation, T> operation) {
+        boolean ordered = participant.email().address().compareTo(otherParticipant.email().address()) < 0;
+        User first = ordered ? participant : otherParticipant;
+        User second = ordered ? otherParticipant : participant;
+        File folder = new File(new File(new File(blobStore.root(), first.email().address()), "conversations"),
+            second.email().address());
+        return conversationLocks.locked(folder, () -> {
+            Conversation conversation = conversations.computeIfAbsent(blobStore.locate(folder),
+                logFolder -> new Conversation(new RecordLog(logFolder, segmentSize, sync)));
+            if (!conversation.imported || conversation.log.lastSequence() == 0) {
+                importMessageFiles(conversation, first, second);
+                conversation.imported = true;
+            }
+            if (conversation.log.lastSequence() < conversation.indexed || !conversation.isIndexed()) {
+                index(conversation);
+            }
+            return operation.apply(conversation);
+        });
+    }
+
+    /**
+     * Indexes the ids of the messages, that were stored before messages were numbered. They are at the start of the log.
+     */
+    private void index(Conversation conversation) {
+        conversation.legacySequences.clear();
+        conversation.indexed = 0;
+        List<RecordLog.Entry> entries = conversation.log.read(0, INDEX_BATCH_SIZE);
+        while (!entries.isEmpty()) {
+            for (RecordLog.Entry entry : entries) {
+                MessageId id = jsonb.fromJson(new String(entry.data(), UTF_8), Message.class).id();
+                if (id == null) {
+                    conversation.indexed = conversation.log.lastSequence();
+                    return;
                 }
+                conversation.legacySequences.put(id, entry.sequence());
             }
+            entries = conversation.log.read(entries.get(entries.size() - 1).sequence(), INDEX_BATCH_SIZE);
+        }
+        conversation.indexed = conversation.log.lastSequence();
+    }
+
+    /**
+     * Appends the messages, that are stored as files in the folders of the participants, to the log in the order of their ids
+     * and deletes the files. The messages are appended as one batch and the files are deleted only after it is stored.
+     * Messages, whose ids are in the log already, are skipped, so an import, that was interrupted by a crash, is resumed.
+     */
+    private void importMessageFiles(Conversation conversation, User first, User second) {
+        File firstFolder = messageFolder(first, second);
+        File secondFolder = messageFolder(second, first);
+        SortedSet<String> names = new TreeSet<>(blobStore.children(firstFolder));
+        names.addAll(blobStore.children(secondFolder));
+        if (names.isEmpty()) {
+            return;
+        }
+        index(conversation);
+        List<byte[]> messages = new ArrayList<>();
+        for (String name : names) {
+            MessageId id = new MessageId(name.substring(0, Math.max(0, name.length() - LEGACY_SUFFIX.length())));
+            if (name.endsWith(LEGACY_SUFFIX) && !conversation.legacySequences.containsKey(id)) {
+                blobStore.read(new File(firstFolder, name))
+                    .or(() -> blobStore.read(new File(secondFolder, name)))
+                    .map(json -> jsonb.fromJson(new String(json, UTF_8), Message.class).withId(id))
+                    .ifPresent(message -> messages.add(jsonb.toJson(message).getBytes(UTF_8)));
+            }
+        }
+        if (!messages.isEmpty()) {
+            conversation.log.appendAll(messages);
+        }
+        blobStore.delete(firstFolder);
+        blobStore.delete(secondFolder);
+        index(conversation);
+    }
+
+    private File messageFolder(User owner, User contact) {
+        File messagesHome = new File(new File(blobStore.root(), owner.email().address()), "messages");
+        return new File(messagesHome, contact.email().address());
+    }
+
+    /**
+     * The log of a conversation with the sequence numbers of the messages, that were stored before messages were numbered.
+     */
+    private static final class Conversation {
+
+        private final RecordLog log;
+        private final Map<MessageId, Long> legacySequences = new HashMap<>();
+        private long indexed = -1;
+        private boolean imported;
+
+        private Conversation(RecordLog log) {
+            this.log = log;
+        }
+
+        private boolean isIndexed() {
+            return indexed >= 0;
+        }
+
+        private Optional<Long> sequence(MessageId id) {
+            return id.isSequence() ? Optional.of(id.sequence()) : Optional.ofNullable(legacySequences.get(id));
         }
-        return messages;
     }
 }
@@ -16,6 +16,8 @@
  */
 package cloud.imagey.domain.chat;
 
+import static cloud.imagey.domain.user.UserEvent.MESSAGE;
+
 import java.io.IOException;
 
 import jakarta.enterprise.context.ApplicationScoped;
@@ -26,6 +28,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import cloud.imagey.domain.user.User;
+import cloud.imagey.domain.user.UserEvent;
 
 @ApplicationScoped
 public class MessageService {
@@ -36,10 +39,14 @@ public class MessageService {
     private MessageRepository messageRepository;
     @Inject
     private Event<Message> messageEvent;
+    @Inject
+    private Event<UserEvent> userEvent;
 
     public Message sendMessage(User sender, User receiver, MessageContent encryptedContent) throws IOException {
         Message message = messageRepository.persist(receiver, sender, encryptedContent);
         messageEvent.fire(message);
+        userEvent.fire(new UserEvent(receiver, MESSAGE, sender.email().address()));
+        userEvent.fire(new UserEvent(sender, MESSAGE, receiver.email().address()));
         return message;
     }
 }
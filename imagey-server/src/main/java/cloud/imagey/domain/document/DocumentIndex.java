@@ -0,0 +1,393 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.domain.document;
+
+import static java.nio.file.Files.readAttributes;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import cloud.imagey.domain.mail.Email;
+import cloud.imagey.domain.user.User;
+import cloud.imagey.infrastructure.IoProblemException;
+import cloud.imagey.infrastructure.common.AbstractFileRepository;
+import cloud.imagey.infrastructure.common.BlobInfo;
+import cloud.imagey.infrastructure.common.BlobStore;
+import cloud.imagey.infrastructure.common.JournalRecovery;
+import cloud.imagey.infrastructure.common.StripedLocks;
+
+/**
+ * Per-user index of the documents folder, so listings don't need to scan the file system.
+ * Besides the documents with the issuers of their keys, it maps each issuer to its documents,
+ * so the documents of a folder are found without visiting the other documents of the user.
+ * The index is persisted as a compacted snapshot plus an append-only log of changes in the documents folder.
+ * It is loaded lazily and kept in memory for the most recently used users.
+ * The index of a user is read and written under a lock of the user, not of the cached index,
+ * so an index that is evicted and loaded again is never written by two threads at once.
+ * When the documents folder is changed behind the back of the index, or the index files are missing,
+ * the index is rebuilt from the documents folder.
+ */
+@ApplicationScoped
+public class DocumentIndex extends AbstractFileRepository {
+
+    static final String SNAPSHOT_FILE = ".index";
+    static final String LOG_FILE = ".index.log";
+
+    private static final Logger LOG = LogManager.getLogger(DocumentIndex.class);
+    private static final String METADATA_RECORD = "M";
+    private static final String KEY_RECORD = "K";
+    private static final String SEPARATOR = "\t";
+    private static final int METADATA_RECORD_FIELDS = 4;
+    private static final int KEY_RECORD_FIELDS = 3;
+
+    @Inject
+    private BlobStore blobStore;
+    @Inject
+    @ConfigProperty(name = "document.index.cache-size", defaultValue = "1000")
+    private int cacheSize;
+    @Inject
+    @ConfigProperty(name = "document.index.compaction-threshold", defaultValue = "1000")
+    private int compactionThreshold;
+    @Inject
+    @ConfigProperty(name = "document.index.lock-stripes", defaultValue = "256")
+    private int lockStripes;
+
+    private Map<User, UserIndex> indexes;
+    private StripedLocks indexLocks;
+
+    @PostConstruct
+    public void initializeCache() {
+        indexes = Collections.synchronizedMap(new LinkedHashMap<>(cacheSize, 1, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<User, UserIndex> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        indexLocks = new StripedLocks(lockStripes);
+    }
+
+    /**
+     * Returns the indexed documents of the user, sorted by id.
+     * The entries are streamed from the index, so only the consumed part of it is visited.
+     *
+     * @param after if present, only documents with an id greater than this are returned
+     */
+    public Stream<DocumentIndexEntry> entries(User user, Optional<DocumentId> after) {
+        NavigableMap<String, DocumentIndexEntry> entries = load(user).entries;
+        return after.map(id -> entries.tailMap(id.id(), false)).orElse(entries).values().stream();
+    }
+
+    /**
+     * Returns the indexed documents of the user, whose key is issued for the given user or folder, sorted by id.
+     * The documents are looked up in the reverse index of the issuer, so only the documents of the issuer are visited.
+     *
+     * @param after if present, only documents with an id greater than this are returned
+     */
+    public Stream<DocumentIndexEntry> entries(User user, String issuer, Optional<DocumentId> after) {
+        UserIndex index = load(user);
+        NavigableSet<String> documentIds = index.documentsByIssuer.getOrDefault(issuer, Collections.emptyNavigableSet());
+        return after.map(id -> documentIds.tailSet(id.id(), false)).orElse(documentIds).stream()
+            .map(index.entries::get)
+            .filter(Objects::nonNull);
+    }
+
+    /**
+     * Returns the indexed state of a document of the user.
+     */
+    public Optional<DocumentIndexEntry> entry(User user, DocumentId documentId) {
+        return Optional.ofNullable(load(user).entries.get(documentId.id()));
+    }
+
+    /**
+     * Returns a version of the index of the user, which changes whenever a document is added or changed.
+     */
+    public String version(User user) {
+        return indexLocks.locked(user, () -> current(user).validity.version());
+    }
+
+    /**
+     * Writes the metadata of a document and records it in the index.
+     *
+     * @param writer writes the metadata and returns the info of the written blob
+     */
+    public void persistMetadata(User user, DocumentId documentId, Supplier<BlobInfo> writer) {
+        indexLocks.locked(user, () -> {
+            UserIndex index = current(user);
+            BlobInfo metadata = writer.get();
+            long size = metadata.length();
+            long timestamp = metadata.modified();
+            index.entries.compute(documentId.id(), (id, entry)
+                -> (entry != null ? entry : new DocumentIndexEntry(documentId)).withMetadata(size, timestamp));
+            append(index, METADATA_RECORD + SEPARATOR + documentId.id() + SEPARATOR + size + SEPARATOR + timestamp);
+            return null;
+        });
+    }
+
+    /**
+     * Writes a shared key of a document and records its issuer in the index.
+     */
+    public void persistKey(User user, DocumentId documentId, Email issuer, Runnable writer) {
+        indexLocks.locked(user, () -> {
+            UserIndex index = current(user);
+            writer.run();
+            addIssuer(index, documentId, issuer.address());
+            append(index, KEY_RECORD + SEPARATOR + documentId.id() + SEPARATOR + issuer.address());
+            return null;
+        });
+    }
+
+    /**
+     * Drops the indexes of the users whose documents were written during the recovery of the journal,
+     * as these writes are not recorded in the index logs.
+     */
+    public void invalidate(@Observes JournalRecovery recovery) {
+        Path root = blobStore.root().toPath();
+        recovery.files().stream()
+            .map(file -> root.relativize(file.getAbsoluteFile().toPath().normalize()))
+            .flatMap(path -> documentOwner(path).stream())
+            .distinct()
+            .forEach(user -> indexLocks.locked(user, () -> {
+                indexes.remove(user);
+                File folder = blobStore.locate(getDocumentHome(user));
+                new File(folder, SNAPSHOT_FILE).delete();
+                new File(folder, LOG_FILE).delete();
+                LOG.info("Invalidated document index of {} after journal recovery", user.email().address());
+                return null;
+            }));
+    }
+
+    /**
+     * Returns the user of a path below the documents folder of the user. The user home is the first folder,
+     * that is named like an email address, as the sharded layout puts it below folders named after its hash.
+     */
+    private Optional<User> documentOwner(Path path) {
+        for (int i = 0; i < path.getNameCount() - 2; i++) {
+            if (path.getName(i).toString().contains("@")) {
+                return path.getName(i + 1).toString().equals("documents")
+                    ? Optional.of(new User(new Email(path.getName(i).toString()))) : Optional.empty();
+            }
+        }
+        return Optional.empty();
+    }
+
+    private UserIndex load(User user) {
+        return indexLocks.locked(user, () -> current(user));
+    }
+
+    /**
+     * Returns the index of the user, replayed or rebuilt if it is not current. The lock of the user has to be held.
+     */
+    private UserIndex current(User user) {
+        File documentHome = getDocumentHome(user);
+        File folder = blobStore.locate(documentHome);
+        UserIndex index = indexes.compute(user, (u, cached) -> cached != null && cached.folder.equals(folder)
+            ? cached : new UserIndex(documentHome, folder));
+        if (index.validity == null && hasIndexFiles(index.folder)) {
+            replay(index);
+        } else if (!currentValidity(index.folder).equals(index.validity)) {
+            rebuild(index);
+        }
+        return index;
+    }
+
+    private void replay(UserIndex index) {
+        index.entries.clear();
+        index.documentsByIssuer.clear();
+        index.logRecords = 0;
+        replay(index, new File(index.folder, SNAPSHOT_FILE));
+        index.logRecords = replay(index, new File(index.folder, LOG_FILE));
+        index.validity = currentValidity(index.folder);
+    }
+
+    private int replay(UserIndex index, File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        int records = 0;
+        for (String line : readFileToString(file).split("\n")) {
+            if (replay(index, line.split(SEPARATOR))) {
+                records++;
+            } else if (!line.isEmpty()) {
+                LOG.warn("Skipping invalid index record in {}", file);
+            }
+        }
+        return records;
+    }
+
+    private boolean replay(UserIndex index, String[] fields) {
+        try {
+            if (fields[0].equals(METADATA_RECORD) && fields.length == METADATA_RECORD_FIELDS) {
+                DocumentId documentId = new DocumentId(fields[1]);
+                long size = Long.parseLong(fields[2]);
+                long timestamp = Long.parseLong(fields[3]);
+                index.entries.compute(documentId.id(), (id, entry)
+                    -> (entry != null ? entry : new DocumentIndexEntry(documentId)).withMetadata(size, timestamp));
+                return true;
+            } else if (fields[0].equals(KEY_RECORD) && fields.length == KEY_RECORD_FIELDS) {
+                addIssuer(index, new DocumentId(fields[1]), fields[2]);
+                return true;
+            }
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void rebuild(UserIndex index) {
+        index.entries.clear();
+        index.documentsByIssuer.clear();
+        index.logRecords = 0;
+        Set<String> documentIds = blobStore.children(index.documentHome);
+        if (documentIds.isEmpty() && !index.folder.isDirectory()) {
+            index.validity = currentValidity(index.folder);
+            return;
+        }
+        LOG.info("Rebuilding document index of {}", index.documentHome);
+        for (String documentId : documentIds) {
+            File documentFolder = new File(index.documentHome, documentId);
+            DocumentIndexEntry entry = new DocumentIndexEntry(new DocumentId(documentId));
+            Optional<BlobInfo> metadata = blobStore.stat(new File(documentFolder, "metadata.enc"));
+            if (metadata.isPresent()) {
+                entry = entry.withMetadata(metadata.get().length(), metadata.get().modified());
+            }
+            index.entries.put(entry.documentId().id(), entry);
+            File keysFolder = new File(documentFolder, "keys");
+            for (String issuer : blobStore.children(keysFolder)) {
+                if (blobStore.exists(new File(new File(keysFolder, issuer), "encrypted-shared.key"))) {
+                    addIssuer(index, entry.documentId(), issuer);
+                }
+            }
+        }
+        compact(index);
+    }
+
+    /**
+     * Records the issuer of a key in the entry of the document and in the reverse index of the issuer.
+     */
+    private void addIssuer(UserIndex index, DocumentId documentId, String issuer) {
+        index.entries.compute(documentId.id(), (id, entry)
+            -> (entry != null ? entry : new DocumentIndexEntry(documentId)).withIssuer(issuer));
+        index.documentsByIssuer.computeIfAbsent(issuer, i -> new ConcurrentSkipListSet<>()).add(documentId.id());
+    }
+
+    private void append(UserIndex index, String record) {
+        writeStringToFile(new File(index.folder, LOG_FILE), record + "\n", UTF_8, true);
+        index.logRecords++;
+        if (index.logRecords > compactionThreshold) {
+            compact(index);
+        } else {
+            index.validity = currentValidity(index.folder);
+        }
+    }
+
+    private void compact(UserIndex index) {
+        StringBuilder snapshot = new StringBuilder();
+        for (DocumentIndexEntry entry : index.entries.values()) {
+            if (entry.hasMetadata()) {
+                snapshot.append(METADATA_RECORD).append(SEPARATOR).append(entry.documentId().id())
+                    .append(SEPARATOR).append(entry.metadataSize()).append(SEPARATOR).append(entry.timestamp()).append('\n');
+            }
+            for (String issuer : entry.issuers()) {
+                snapshot.append(KEY_RECORD).append(SEPARATOR).append(entry.documentId().id())
+                    .append(SEPARATOR).append(issuer).append('\n');
+            }
+        }
+        index.folder.mkdirs();
+        writeStreamToFile(new File(index.folder, SNAPSHOT_FILE), new ByteArrayInputStream(snapshot.toString().getBytes(UTF_8)));
+        new File(index.folder, LOG_FILE).delete();
+        index.logRecords = 0;
+        index.validity = currentValidity(index.folder);
+    }
+
+    private boolean hasIndexFiles(File documentHome) {
+        return new File(documentHome, SNAPSHOT_FILE).exists() || new File(documentHome, LOG_FILE).exists();
+    }
+
+    private Validity currentValidity(File documentHome) {
+        try {
+            BasicFileAttributes attributes = readAttributes(documentHome.toPath(), BasicFileAttributes.class);
+            return new Validity(attributes.fileKey(), attributes.lastModifiedTime(), new File(documentHome, LOG_FILE).length());
+        } catch (NoSuchFileException e) {
+            return new Validity(null, null, 0);
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    private File getDocumentHome(User user) {
+        return new File(new File(blobStore.root(), user.email().address()), "documents");
+    }
+
+    /**
+     * Identifies the state of the documents folder the in-memory index corresponds to.
+     */
+    private record Validity(Object folderKey, FileTime folderModified, long logLength) {
+
+        String version() {
+            return Long.toHexString(folderModified != null ? folderModified.to(NANOSECONDS) : 0)
+                + "-" + Long.toHexString(logLength)
+                + "-" + Integer.toHexString(Objects.hashCode(folderKey));
+        }
+    }
+
+    /**
+     * The index of the documents of a user. The documents are addressed by their documents folder in the flat layout,
+     * the index files are stored in the folder, where the documents folder is located.
+     */
+    private static final class UserIndex {
+
+        private final File documentHome;
+        private final File folder;
+        private final NavigableMap<String, DocumentIndexEntry> entries = new ConcurrentSkipListMap<>();
+        private final Map<String, NavigableSet<String>> documentsByIssuer = new ConcurrentHashMap<>();
+        private Validity validity;
+        private int logRecords;
+
+        private UserIndex(File documentHome, File folder) {
+            this.documentHome = documentHome;
+            this.folder = folder;
+        }
+    }
+}
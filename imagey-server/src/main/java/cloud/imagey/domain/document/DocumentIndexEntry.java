@@ -0,0 +1,60 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.domain.document;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The indexed state of a document.
+ *
+ * @param documentId the id of the document
+ * @param metadataSize the size of the encrypted metadata or -1, if the document has no metadata (yet)
+ * @param timestamp the modification time of the encrypted metadata
+ * @param issuers the users and folders the document key is issued for
+ */
+public record DocumentIndexEntry(DocumentId documentId, long metadataSize, long timestamp, Set<String> issuers) {
+
+    public DocumentIndexEntry(DocumentId documentId) {
+        this(documentId, -1, 0, Set.of());
+    }
+
+    public boolean hasMetadata() {
+        return metadataSize >= 0;
+    }
+
+    public boolean hasFolderKey() {
+        return issuers.stream().anyMatch(DocumentIndexEntry::isFolder);
+    }
+
+    public DocumentIndexEntry withMetadata(long size, long modified) {
+        return new DocumentIndexEntry(documentId, size, modified, issuers);
+    }
+
+    public DocumentIndexEntry withIssuer(String issuer) {
+        if (issuers.contains(issuer)) {
+            return this;
+        }
+        Set<String> newIssuers = new HashSet<>(issuers);
+        newIssuers.add(issuer);
+        return new DocumentIndexEntry(documentId, metadataSize, timestamp, Set.copyOf(newIssuers));
+    }
+
+    static boolean isFolder(String issuer) {
+        return !issuer.contains("@");
+    }
+}
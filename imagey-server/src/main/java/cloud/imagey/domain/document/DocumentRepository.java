@@ -16,19 +16,28 @@
  */
 package cloud.imagey.domain.document;
 
+import static cloud.imagey.domain.user.UserEvent.SHARE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.Base64.getEncoder;
-import static java.util.Collections.emptyList;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
 import jakarta.inject.Inject;
 
 import org.apache.logging.log4j.LogManager;
@@ -37,23 +46,105 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import cloud.imagey.domain.encryption.Base64Content;
 import cloud.imagey.domain.encryption.EncryptedContent;
+import cloud.imagey.domain.encryption.EncryptedContentFile;
 import cloud.imagey.domain.encryption.EncryptedSharedKey;
 import cloud.imagey.domain.mail.Email;
 import cloud.imagey.domain.user.User;
+import cloud.imagey.domain.user.UserEvent;
+import cloud.imagey.infrastructure.IoProblemException;
+import cloud.imagey.infrastructure.ResourceConflictException;
 import cloud.imagey.infrastructure.common.AbstractFileRepository;
+import cloud.imagey.infrastructure.common.BlobInfo;
+import cloud.imagey.infrastructure.common.BlobStore;
+import cloud.imagey.infrastructure.common.ContentTiering;
+import cloud.imagey.infrastructure.common.Journal;
+import cloud.imagey.infrastructure.common.MBeans;
+import cloud.imagey.infrastructure.common.RecordLog;
+import cloud.imagey.infrastructure.common.SingleFlight;
+import cloud.imagey.infrastructure.common.StripedLocks;
+import cloud.imagey.infrastructure.common.ThumbnailCache;
+import cloud.imagey.infrastructure.common.ThumbnailPrefetcher;
+import cloud.imagey.infrastructure.common.WeightedCache;
 
 @ApplicationScoped
 public class DocumentRepository extends AbstractFileRepository {
 
     private static final Logger LOG = LogManager.getLogger(DocumentRepository.class);
+    private static final long CACHE_ENTRY_OVERHEAD = 128;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
 
     @Inject
-    @ConfigProperty(name = "root.path")
-    private String rootPath;
+    private DocumentIndex documentIndex;
+    @Inject
+    private BlobStore blobStore;
+    @Inject
+    private ContentTiering contentTiering;
+    @Inject
+    private ThumbnailCache thumbnailCache;
+    @Inject
+    private ThumbnailPrefetcher thumbnailPrefetcher;
+    @Inject
+    private Event<UserEvent> userEvent;
+    @Inject
+    @ConfigProperty(name = "document.cache.size", defaultValue = "67108864")
+    private long cacheSize;
 
+    @Inject
+    @ConfigProperty(name = "document.single-flight.timeout", defaultValue = "5000")
+    private long singleFlightTimeout;
+    @Inject
+    @ConfigProperty(name = "document.lock.stripes", defaultValue = "256")
+    private int lockStripes;
+    @Inject
+    @ConfigProperty(name = "document.delta.segment-size", defaultValue = "1048576")
+    private long deltaSegmentSize;
+    @Inject
+    @ConfigProperty(name = "document.delta.sync", defaultValue = "true")
+    private boolean deltaSync;
+    @Inject
+    @ConfigProperty(name = "document.delta.open-logs", defaultValue = "1024")
+    private long openDeltaLogs;
+
+    private WeightedCache<File, String> cache;
+    private SingleFlight<List<Object>, Optional<EncryptedContent>> contentLoads;
+    private SingleFlight<List<Object>, Optional<DocumentMetadata>> metadataLoads;
+    private SingleFlight<List<Object>, Optional<EncryptedSharedKey>> keyLoads;
+    private StripedLocks documentLocks;
+    private Map<File, OpenDeltaLog> deltaLogs;
+
+    /**
+     * Creates the cache of the base64 encoded metadata and shared keys, which is bounded by {@code document.cache.size} bytes,
+     * and the coalescing of concurrent loads, which waits at most {@code document.single-flight.timeout} milliseconds
+     * for the load of another request. The cached files are addressed by their path, i.e. by user, document and issuer.
+     * Updates of documents are serialized by {@code document.lock.stripes} locks.
+     * At most {@code document.delta.open-logs} delta logs are kept open, the least recently used one is closed.
+     * Contents are moved to the cold volume under the lock of their document,
+     * which is the folder above their {@code files} folder.
+     */
     @PostConstruct
-    public void logRootPath() {
-        LOG.info("root.path = {}", rootPath);
+    public void initialize() {
+        LOG.info("root.path = {}", blobStore.root());
+        cache = new WeightedCache<>(cacheSize, content -> CACHE_ENTRY_OVERHEAD + 2L * content.length());
+        documentLocks = new StripedLocks(lockStripes);
+        contentTiering.lockMoves((file, move) -> documentLocks.locked(file.getParentFile().getParentFile(), move));
+        deltaLogs = Collections.synchronizedMap(new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, OpenDeltaLog> eldest) {
+                if (size() <= openDeltaLogs) {
+                    return false;
+                }
+                close(eldest.getValue());
+                return true;
+            }
+        });
+        contentLoads = new SingleFlight<>(singleFlightTimeout);
+        metadataLoads = new SingleFlight<>(singleFlightTimeout);
+        keyLoads = new SingleFlight<>(singleFlightTimeout);
+        MBeans.register("Cache", "documents", cache);
+        MBeans.register("SingleFlight", "content", contentLoads);
+        MBeans.register("SingleFlight", "metadata", metadataLoads);
+        MBeans.register("SingleFlight", "keys", keyLoads);
     }
 
     public DocumentId persist(User user, EncryptedContent metadata) {
@@ -62,76 +153,273 @@ public class DocumentRepository extends AbstractFileRepository {
         return documentId;
     }
 
-    public void persist(User user, DocumentId documentId, EncryptedContent metadata) {
+    /**
+     * Creates a document with its key and content files in one transaction,
+     * so either the whole document is stored or, after a crash, nothing of it.
+     * The document is recorded in the index before the transaction is closed,
+     * so after a crash in between, the recovery of the transaction rebuilds the index.
+     */
+    public DocumentId persist(User user, EncryptedContent metadata, Email issuer, EncryptedContent key, List<ContentUpload> contents) {
+        DocumentId documentId = new DocumentId(UUID.randomUUID().toString());
+        File documentFolder = new File(new File(getUserHome(user), "documents"), documentId.id());
+        File metadataFile = new File(documentFolder, "metadata.enc");
+        File keyFile = new File(new File(new File(documentFolder, "keys"), issuer.address()), "encrypted-shared.key");
+        File contentsFolder = blobStore.locate(new File(documentFolder, "files"));
+        try (Journal.Transaction transaction = beginTransaction()) {
+            transaction.write(metadataFile, metadata.content());
+            transaction.write(keyFile, key.content());
+            for (ContentUpload content : contents) {
+                transaction.write(new File(contentsFolder, content.fileName().name()), content.content());
+            }
+            documentIndex.persistMetadata(user, documentId, () -> {
+                transaction.commit();
+                return blobStore.stat(metadataFile).orElseThrow(() -> new IoProblemException(metadataFile + " not found"));
+            });
+            documentIndex.persistKey(user, documentId, issuer, () -> { });
+        }
+        cache.invalidate(metadataFile);
+        cache.invalidate(keyFile);
+        return documentId;
+    }
+
+    /**
+     * Writes the metadata of a document together with its next version.
+     *
+     * @return the new version of the metadata
+     */
+    public long persist(User user, DocumentId documentId, EncryptedContent metadata) {
+        return lockDocument(user, documentId, () -> persistMetadata(user, documentId, metadata, empty()));
+    }
+
+    /**
+     * Replaces the metadata of a document by metadata, that contains all deltas up to the given sequence number,
+     * and drops these deltas. Both happen together or, after a crash, not at all.
+     *
+     * @return the new version of the metadata
+     * @throws ResourceConflictException if no delta with the sequence number was appended yet
+     */
+    public long compact(User user, DocumentId documentId, EncryptedContent metadata, long compactedUpTo) {
+        File documentFolder = new File(new File(getUserHome(user), "documents"), documentId.id());
+        return lockDocument(user, documentId, () -> {
+            RecordLog deltaLog = deltaLog(documentFolder, blobStore.locate(new File(documentFolder, "deltas")));
+            if (compactedUpTo > deltaLog.lastSequence()) {
+                throw new ResourceConflictException("Delta " + compactedUpTo + " does not exist");
+            }
+            long version = persistMetadata(user, documentId, metadata, of(compactedUpTo));
+            deltaLog.truncate(compactedUpTo);
+            return version;
+        });
+    }
+
+    private long persistMetadata(User user, DocumentId documentId, EncryptedContent metadata, Optional<Long> compactedUpTo) {
         File userHome = getUserHome(user);
         File documentHome = new File(userHome, "documents");
         File documentFolder = new File(documentHome, documentId.id());
-        if (!documentFolder.exists()) {
-            mkdir(documentFolder);
-        }
         File documentMetadataFile = new File(documentFolder, "metadata.enc");
-        writeByteArrayToFile(documentMetadataFile, metadata.content());
+        File versionFile = new File(documentFolder, "metadata.version");
+        File deltaBaseFile = new File(documentFolder, "deltas.base");
+        long version = readLong(versionFile) + 1;
+        try (Journal.Transaction transaction = beginTransaction()) {
+            transaction.write(documentMetadataFile, metadata.content());
+            transaction.write(versionFile, Long.toString(version).getBytes(US_ASCII));
+            compactedUpTo.ifPresent(upTo -> transaction.write(deltaBaseFile, Long.toString(upTo).getBytes(US_ASCII)));
+            documentIndex.persistMetadata(user, documentId, () -> {
+                transaction.commit();
+                return blobStore.stat(documentMetadataFile)
+                    .orElseThrow(() -> new IoProblemException(documentMetadataFile + " not found"));
+            });
+        }
+        cache.invalidate(documentMetadataFile);
+        return version;
+    }
+
+    /**
+     * Appends an encrypted change to the metadata of a document, so the metadata must not be rewritten for it.
+     *
+     * @return the sequence number of the delta or empty, if the document does not exist
+     */
+    public Optional<Long> appendDelta(User user, DocumentId documentId, EncryptedContent delta) {
+        File documentFolder = new File(new File(getUserHome(user), "documents"), documentId.id());
+        return lockDocument(user, documentId, () -> blobStore.exists(new File(documentFolder, "metadata.enc"))
+            ? of(deltaLog(documentFolder, blobStore.locate(new File(documentFolder, "deltas"))).append(delta.content()))
+            : Optional.<Long>empty());
+    }
+
+    /**
+     * Returns the deltas of a document, that were appended after the given sequence number and are not yet compacted into its metadata.
+     * Concurrent reads don't wait for each other and a document without deltas is read without creating its delta log.
+     *
+     * @param limit the maximum number of deltas to return
+     */
+    public List<Delta> findDeltas(User user, DocumentId documentId, long after, int limit) {
+        File documentFolder = new File(new File(getUserHome(user), "documents"), documentId.id());
+        return readDocument(user, documentId, () -> {
+            File deltaFolder = blobStore.locate(new File(documentFolder, "deltas"));
+            if (!deltaFolder.isDirectory()) {
+                return List.<Delta>of();
+            }
+            long compactedUpTo = readLong(new File(documentFolder, "deltas.base"));
+            return deltaLog(documentFolder, deltaFolder).read(Math.max(after, compactedUpTo), limit).stream()
+                .map(entry -> new Delta(entry.sequence(), getEncoder().encodeToString(entry.data())))
+                .toList();
+        });
+    }
+
+    private RecordLog deltaLog(File documentFolder, File deltaFolder) {
+        return deltaLogs.computeIfAbsent(deltaFolder,
+            folder -> new OpenDeltaLog(documentFolder, new RecordLog(folder, deltaSegmentSize, deltaSync))).log();
+    }
+
+    /**
+     * Closes an evicted delta log under the lock of its document, i.e. after the updates and reads, that still use it.
+     * The log is closed in the background, because the thread, that evicted it, holds the lock of another document.
+     */
+    private void close(OpenDeltaLog deltaLog) {
+        CompletableFuture.runAsync(() -> documentLocks.locked(deltaLog.documentFolder(), () -> {
+            deltaLog.log().close();
+            return null;
+        }));
+    }
+
+    /**
+     * Runs the check and the update of a document exclusively.
+     * Documents are guarded by striped locks, so updates of different documents, even of the same user, rarely wait for each other.
+     */
+    public <T> T lockDocument(User user, DocumentId documentId, Supplier<T> update) {
+        return documentLocks.locked(new File(new File(getUserHome(user), "documents"), documentId.id()), update);
+    }
+
+    /**
+     * Runs reads of a document, that have to see it consistently, while it is not updated.
+     * Reads of the same document don't wait for each other.
+     */
+    public <T> T readDocument(User user, DocumentId documentId, Supplier<T> read) {
+        return documentLocks.readLocked(new File(new File(getUserHome(user), "documents"), documentId.id()), read);
     }
 
     public void persist(User user, DocumentId documentId, FileName fileName, EncryptedContent content) {
+        persist(user, documentId, fileName, new ByteArrayInputStream(content.content()));
+    }
+
+    /**
+     * Writes a content file under the lock of the document, so it is not moved to the cold volume meanwhile.
+     */
+    public long persist(User user, DocumentId documentId, FileName fileName, InputStream content) {
         File userHome = getUserHome(user);
         File documentHome = new File(userHome, "documents");
         File documentFolder = new File(documentHome, documentId.id());
-        File contentsFolder = new File(documentFolder, "files");
-        if (!contentsFolder.exists()) {
-            mkdir(contentsFolder);
-        }
-        File contentFile = new File(contentsFolder, fileName.name());
-        writeByteArrayToFile(contentFile, content.content());
+        return lockDocument(user, documentId, () -> {
+            File contentsFolder = blobStore.locate(new File(documentFolder, "files"));
+            if (!contentsFolder.exists()) {
+                mkdir(contentsFolder);
+            }
+            File contentFile = new File(contentsFolder, fileName.name());
+            return writeStreamToFile(contentFile, content);
+        });
     }
 
+    /**
+     * Loads a content file. Concurrent loads of the same file share one read.
+     */
     public Optional<EncryptedContent> loadContent(User user, DocumentId documentId, DocumentId contentId) {
+        return contentLoads.load(List.of(user, documentId, contentId), () -> findContent(user, documentId, contentId)
+            .map(EncryptedContentFile::file)
+            .map(file -> thumbnailCache.read(file).orElseGet(() -> readFileToByteArray(file)))
+            .map(EncryptedContent::new));
+    }
+
+    /**
+     * Finds a content file on the fast volume or, if it was rarely read, on the cold volume.
+     */
+    public Optional<EncryptedContentFile> findContent(User user, DocumentId documentId, DocumentId contentId) {
+        thumbnailPrefetcher.touch(user.email().address());
         File userHome = getUserHome(user);
         File documentHome = new File(userHome, "documents");
         File documentFolder = new File(documentHome, documentId.id());
-        File contentsFolder = new File(documentFolder, "files");
-        File contentFile = new File(contentsFolder, contentId.id());
-        if (!contentFile.exists()) {
+        File contentFile = contentTiering.resolve(new File(new File(documentFolder, "files"), contentId.id()));
+        if (!contentFile.isFile()) {
             return empty();
         }
-        return of(new EncryptedContent(readFileToByteArray(contentFile)));
+        return of(new EncryptedContentFile(contentFile));
     }
 
 
-    public Optional<Long> getTimestamp(User user, DocumentId documentId) {
+    /**
+     * Returns the version of the metadata of a document, which is incremented by every update.
+     * Metadata that was never updated has version 0.
+     */
+    public Optional<Long> getVersion(User user, DocumentId documentId) {
         File userHome = getUserHome(user);
         File documentHome = new File(userHome, "documents");
         File documentFolder = new File(documentHome, documentId.id());
         File metadataFile = new File(documentFolder, "metadata.enc");
-        if (!metadataFile.exists()) {
+        if (!blobStore.exists(metadataFile)) {
             return empty();
         }
-        return of(metadataFile.lastModified());
+        return of(readLong(new File(documentFolder, "metadata.version")));
+    }
+
+    private long readLong(File file) {
+        return blobStore.read(file).map(value -> Long.parseLong(new String(value, US_ASCII))).orElse(0L);
     }
 
 
     public List<DocumentMetadata> findMetadata(User user, Optional<DocumentId> folderId) {
-        File userHome = getUserHome(user);
-        File documentHome = new File(userHome, "documents");
-        if (!documentHome.exists()) {
-            return emptyList();
-        }
-        return Stream.of(documentHome.list())
-            .filter(name -> new File(documentHome, name).isDirectory())
-            .filter(name -> folderId.isEmpty() || !name.equals(folderId.get().id()))
-            .sorted()
-            .map(DocumentId::new)
-            .flatMap(id -> findMetadata(user, id, user.email(), folderId).stream())
+        return findMetadata(user, folderId, empty(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a page of the documents of the user, sorted by id,
+     * and starts the prefetch of their small thumbnails, which the client requests next.
+     *
+     * @param after if present, the page starts after the document with this id
+     * @param limit the maximum number of documents to return
+     */
+    public List<DocumentMetadata> findMetadata(User user, Optional<DocumentId> folderId, Optional<DocumentId> after, int limit) {
+        Stream<DocumentIndexEntry> entries = folderId
+            .map(folder -> documentIndex.entries(user, folder.id(), after).filter(entry -> !entry.documentId().equals(folder)))
+            .orElseGet(() -> documentIndex.entries(user, after).filter(entry -> isOwnedBy(entry, user)));
+        List<DocumentMetadata> documents = entries
+            .filter(DocumentIndexEntry::hasMetadata)
+            .flatMap(entry -> findMetadata(user, entry.documentId(), user.email(), folderId).stream())
             .filter(metadata -> metadata.sharedKey() != null)
+            .limit(limit)
             .toList();
+        File documentHome = new File(getUserHome(user), "documents");
+        thumbnailPrefetcher.prefetch(user.email().address(), documents.stream()
+            .map(metadata -> blobStore.locate(new File(new File(new File(documentHome, metadata.documentId().id()), "files"), "small")))
+            .toList());
+        return documents;
     }
 
+    private boolean isOwnedBy(DocumentIndexEntry entry, User user) {
+        return entry.issuers().contains(user.email().address()) || entry.hasFolderKey();
+    }
+
+    /**
+     * Finds the metadata of a document with the key for the caller. Concurrent requests for the same document share one load.
+     */
     public Optional<DocumentMetadata> findMetadata(User user, DocumentId documentId, Email callerEmail, Optional<DocumentId> folderId) {
+        return metadataLoads.load(List.of(user, documentId, callerEmail, folderId),
+            () -> loadMetadata(user, documentId, callerEmail, folderId));
+    }
+
+    /**
+     * Returns the metadata of a document with its version. Both are read under the read lock of the document
+     * and not shared with concurrent loads, so the metadata is never older than the version.
+     */
+    public Optional<VersionedMetadata> findVersionedMetadata(
+        User user, DocumentId documentId, Email callerEmail, Optional<DocumentId> folderId) {
+        return readDocument(user, documentId, () -> getVersion(user, documentId).flatMap(version
+            -> loadMetadata(user, documentId, callerEmail, folderId).map(metadata -> new VersionedMetadata(metadata, version))));
+    }
+
+    private Optional<DocumentMetadata> loadMetadata(User user, DocumentId documentId, Email callerEmail, Optional<DocumentId> folderId) {
         File userHome = getUserHome(user);
         File documentHome = new File(userHome, "documents");
         File documentFolder = new File(documentHome, documentId.id());
         File metadataFile = new File(documentFolder, "metadata.enc");
-        if (!metadataFile.exists()) {
+        if (!blobStore.exists(metadataFile)) {
             return empty();
         }
 
@@ -149,43 +437,85 @@ public class DocumentRepository extends AbstractFileRepository {
         File documentHome = new File(userHome, "documents");
         File documentFolder = new File(documentHome, documentId.id());
         File metadataFile = new File(documentFolder, "metadata.enc");
-        return new Base64Content(getEncoder().encodeToString(readFileToByteArray(metadataFile)));
+        return new Base64Content(Optional.ofNullable(cache.get(metadataFile, this::readBase64))
+            .orElseThrow(() -> new IoProblemException(metadataFile + " not found")));
     }
 
+    /**
+     * Returns the key, that is shared with the given user.
+     * If the document has no key for its owner, the key of the folder the document is in is returned.
+     * Concurrent requests for the same key share one load.
+     */
     public Optional<EncryptedSharedKey> findDocumentKey(User user, DocumentId documentId, Email userTheDocumentIsSharedWith) {
+        return keyLoads.load(List.of(user, documentId, userTheDocumentIsSharedWith),
+            () -> loadDocumentKey(user, documentId, userTheDocumentIsSharedWith));
+    }
+
+    private Optional<EncryptedSharedKey> loadDocumentKey(User user, DocumentId documentId, Email userTheDocumentIsSharedWith) {
+        Optional<EncryptedSharedKey> key = findDocumentKey(user, documentId, userTheDocumentIsSharedWith.address());
+        if (key.isEmpty() && userTheDocumentIsSharedWith.address().equals(user.email().address())) {
+            return findFolderIssuer(user, documentId).flatMap(folder -> findDocumentKey(user, documentId, folder));
+        }
+        return key;
+    }
+
+    private Optional<EncryptedSharedKey> findDocumentKey(User user, DocumentId documentId, String issuer) {
+        File documentFolder = new File(new File(getUserHome(user), "documents"), documentId.id());
+        File keyFile = new File(new File(new File(documentFolder, "keys"), issuer), "encrypted-shared.key");
+        String issuerType = issuer.contains("@") ? "USER" : "FOLDER";
+        return Optional.ofNullable(cache.get(keyFile, this::readBase64))
+            .map(key -> new EncryptedSharedKey(issuerType, issuer, "0", key));
+    }
+
+    private String readBase64(File file) {
+        return blobStore.read(file).map(getEncoder()::encodeToString).orElse(null);
+    }
+
+    /**
+     * Returns the version of the key, that is shared with the given user, without reading it.
+     */
+    public Optional<String> getKeyVersion(User user, DocumentId documentId, Email userTheDocumentIsSharedWith) {
+        return findDocumentKeyFile(user, documentId, userTheDocumentIsSharedWith)
+            .flatMap(blobStore::stat)
+            .map(BlobInfo::version);
+    }
+
+    /**
+     * Finds the file of the key, that is shared with the given user.
+     * If the document has no key for its owner, the key of the folder the document is in is returned.
+     */
+    private Optional<File> findDocumentKeyFile(User user, DocumentId documentId, Email userTheDocumentIsSharedWith) {
         File userHome = getUserHome(user);
         File documentHome = new File(userHome, "documents");
         File documentFolder = new File(documentHome, documentId.id());
         File sharedKeysFolder = new File(documentFolder, "keys");
         File sharedKeyFolder = new File(sharedKeysFolder, userTheDocumentIsSharedWith.address());
         File sharedKey = new File(sharedKeyFolder, "encrypted-shared.key");
-        if (!sharedKey.exists() && userTheDocumentIsSharedWith.address().equals(user.email().address())) {
-            Optional<File> folderKey = findFolderKey(sharedKeysFolder);
-            if (folderKey.isPresent()) {
-                sharedKeyFolder = folderKey.get();
-                sharedKey = new File(sharedKeyFolder, "encrypted-shared.key");
-                userTheDocumentIsSharedWith = new Email(sharedKeyFolder.getName());
+        if (!blobStore.exists(sharedKey) && userTheDocumentIsSharedWith.address().equals(user.email().address())) {
+            Optional<String> folderIssuer = findFolderIssuer(user, documentId);
+            if (folderIssuer.isPresent()) {
+                sharedKey = new File(new File(sharedKeysFolder, folderIssuer.get()), "encrypted-shared.key");
             }
         }
-        if (!sharedKey.exists()) {
+        if (!blobStore.exists(sharedKey)) {
             return empty();
         }
-        String encodedKey = getEncoder().encodeToString(readFileToByteArray(sharedKey));
-        String issuer = userTheDocumentIsSharedWith.address();
-        String issuerType = issuer.contains("@") ? "USER" : "FOLDER";
-        return of(new EncryptedSharedKey(issuerType, issuer, "0", encodedKey));
+        return of(sharedKey);
     }
 
-    private Optional<File> findFolderKey(File sharedKeysFolder) {
-        File[] folders = sharedKeysFolder.listFiles(File::isDirectory);
-        if (folders != null) {
-            for (File folder : folders) {
-                if (!folder.getName().contains("@") && new File(folder, "encrypted-shared.key").exists()) {
-                    return of(folder);
-                }
-            }
-        }
-        return empty();
+    /**
+     * Returns a version of the document listing of the user, which changes whenever a document is added or changed.
+     */
+    public String getListingVersion(User user) {
+        return documentIndex.version(user);
+    }
+
+    /**
+     * Returns the folder, a key of the document is issued for, from the index instead of listing the keys of the document.
+     */
+    private Optional<String> findFolderIssuer(User user, DocumentId documentId) {
+        return documentIndex.entry(user, documentId)
+            .flatMap(entry -> entry.issuers().stream().filter(DocumentIndexEntry::isFolder).sorted().findFirst());
     }
 
     public void persist(User user, DocumentId documentId, Email userTheDocumentIsSharedWith, EncryptedContent key) {
@@ -194,11 +524,15 @@ public class DocumentRepository extends AbstractFileRepository {
         File documentFolder = new File(documentHome, documentId.id());
         File sharedKeysFolder = new File(documentFolder, "keys");
         File sharedKeyFolder = new File(sharedKeysFolder, userTheDocumentIsSharedWith.address());
-        if (!sharedKeyFolder.exists()) {
-            mkdir(sharedKeyFolder);
-        }
         File sharedKeyFile = new File(sharedKeyFolder, "encrypted-shared.key");
-        writeByteArrayToFile(sharedKeyFile, key.content());
+        try (Journal.Transaction transaction = beginTransaction()) {
+            transaction.write(sharedKeyFile, key.content());
+            documentIndex.persistKey(user, documentId, userTheDocumentIsSharedWith, transaction::commit);
+        }
+        cache.invalidate(sharedKeyFile);
+        if (userTheDocumentIsSharedWith.address().contains("@") && !userTheDocumentIsSharedWith.equals(user.email())) {
+            userEvent.fire(new UserEvent(new User(userTheDocumentIsSharedWith), SHARE, documentId.id()));
+        }
     }
 
     public boolean hasSharedKey(User user, DocumentId documentId, Email userTheDocumentIsSharedWith) {
@@ -208,10 +542,13 @@ public class DocumentRepository extends AbstractFileRepository {
         File sharedKeysFolder = new File(documentFolder, "keys");
         File sharedKeyFolder = new File(sharedKeysFolder, userTheDocumentIsSharedWith.address());
         File sharedKey = new File(sharedKeyFolder, "encrypted-shared.key");
-        return sharedKey.exists();
+        return blobStore.exists(sharedKey);
     }
 
     private File getUserHome(User user) {
-        return new File(rootPath, user.email().address());
+        return new File(blobStore.root(), user.email().address());
+    }
+
+    private record OpenDeltaLog(File documentFolder, RecordLog log) {
     }
 }
@@ -16,8 +16,8 @@
  */
 package cloud.imagey.domain.user;
 
+import static cloud.imagey.domain.user.UserEvent.DEVICE;
 import static jakarta.json.bind.JsonbBuilder.create;
-import static java.util.Arrays.stream;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
 
@@ -28,16 +28,17 @@ import java.util.Map;
 import java.util.Optional;
 
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
 import jakarta.inject.Inject;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import cloud.imagey.domain.encryption.PrivateKeyMetadata;
 import cloud.imagey.domain.encryption.PublicKey;
 import cloud.imagey.domain.token.Kid;
 import cloud.imagey.infrastructure.common.AbstractFileRepository;
+import cloud.imagey.infrastructure.common.BlobStore;
 
 @ApplicationScoped
 public class DeviceRepository extends AbstractFileRepository {
@@ -46,35 +47,36 @@ public class DeviceRepository extends AbstractFileRepository {
     private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     @Inject
-    @ConfigProperty(name = "root.path")
-    private String rootPath;
+    private BlobStore blobStore;
+    @Inject
+    private Event<UserEvent> userEvent;
 
     public List<DeviceId> loadDevices(User user) {
         File devicesDirectory = new File(getUserHome(user), "devices");
-        return stream(devicesDirectory.list()).sorted().map(DeviceId::new).toList();
+        return blobStore.children(devicesDirectory).stream().map(DeviceId::new).toList();
     }
 
     public Optional<PrivateKeyMetadata> loadPrivateKey(User user, DeviceId deviceId, Kid kid) {
         File keyDirectory = new File(new File(new File(getUserHome(user), "devices"), deviceId.id()), "private-keys");
-        return of(new File(keyDirectory, kid.id() + ".json"))
-            .filter(File::exists)
-            .map(keyFile -> readFileToString(keyFile))
+        return blobStore.read(new File(keyDirectory, kid.id() + ".json"))
+            .map(key -> new String(key, UTF_8))
             .map(this::parse);
     }
 
     public void storeDevicePublicKey(User user, DeviceId deviceId, PublicKey key) {
         File keyDirectory = new File(new File(new File(getUserHome(user), "devices"), deviceId.id()), "public-keys");
-        createNewFileWithContent(keyDirectory, "0.json", key.key());
+        blobStore.create(new File(keyDirectory, "0.json"), key.key().getBytes(UTF_8));
+        userEvent.fire(new UserEvent(user, DEVICE, deviceId.id()));
     }
 
     public Optional<PublicKey> loadDevicePublicKey(User user, DeviceId deviceId, Kid kid) {
         File keyDirectory = new File(new File(new File(getUserHome(user), "devices"), deviceId.id()), "public-keys");
-        File keyFile = new File(keyDirectory, kid.id() + ".json");
-        if (!keyFile.exists()) {
+        Optional<byte[]> key = blobStore.read(new File(keyDirectory, kid.id() + ".json"));
+        if (key.isEmpty()) {
             LOG.info("Public key does not exist.");
             return empty();
         } else {
-            Optional<PublicKey> publicKey = of(readFileToString(keyFile)).map(PublicKey::new);
+            Optional<PublicKey> publicKey = of(new String(key.get(), UTF_8)).map(PublicKey::new);
             LOG.info("Public key loaded");
             return publicKey;
         }
@@ -86,28 +88,30 @@ public class DeviceRepository extends AbstractFileRepository {
 
     public void storeEncryptedPrivateKey(User user, DeviceId deviceId, String metadata) {
         File keyDirectory = new File(new File(new File(getUserHome(user), "devices"), deviceId.id()), "private-keys");
-        createNewFileWithContent(keyDirectory, "0.json", metadata);
+        blobStore.create(new File(keyDirectory, "0.json"), metadata.getBytes(UTF_8));
+        userEvent.fire(new UserEvent(user, DEVICE, deviceId.id()));
     }
 
     public void storeDeviceRecoveryKey(User user, DeviceId deviceId, String recoveryKey) {
         File deviceDirectory = new File(new File(getUserHome(user), "devices"), deviceId.id());
-        createNewFileWithContent(deviceDirectory, "recovery-key.txt", recoveryKey);
+        blobStore.create(new File(deviceDirectory, "recovery-key.txt"), recoveryKey.getBytes(UTF_8));
     }
 
     public Optional<String> loadDeviceRecoveryKey(User user, DeviceId deviceId) {
         File recoveryKeyFile = new File(new File(new File(getUserHome(user), "devices"), deviceId.id()), "recovery-key.txt");
-        if (!recoveryKeyFile.exists()) {
+        Optional<byte[]> key = blobStore.read(recoveryKeyFile);
+        if (key.isEmpty()) {
             LOG.info("Recovery key does not exist.");
             return empty();
         } else {
-            Optional<String> recoveryKey = of(readFileToString(recoveryKeyFile));
+            Optional<String> recoveryKey = of(new String(key.get(), UTF_8));
             LOG.info("Recovery key loaded");
             return recoveryKey;
         }
     }
 
     private File getUserHome(User user) {
-        return new File(rootPath, user.email().address());
+        return new File(blobStore.root(), user.email().address());
     }
 
     private PrivateKeyMetadata parse(String json) {
@@ -0,0 +1,29 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.domain.user;
+
+/**
+ * Something changed for the user, i.e. a message, a contact request, a device or a shared document.
+ * The subject identifies what changed (the contact, the device or the document), so a client knows what to reload.
+ */
+public record UserEvent(User user, String type, String subject) {
+
+    public static final String MESSAGE = "message";
+    public static final String CONTACT = "contact";
+    public static final String DEVICE = "device";
+    public static final String SHARE = "share";
+}
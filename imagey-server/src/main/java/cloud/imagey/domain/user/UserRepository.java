@@ -29,11 +29,12 @@ import jakarta.inject.Inject;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import cloud.imagey.domain.encryption.PublicKey;
 import cloud.imagey.domain.token.Kid;
+import cloud.imagey.infrastructure.ResourceConflictException;
 import cloud.imagey.infrastructure.common.AbstractFileRepository;
+import cloud.imagey.infrastructure.common.BlobStore;
 
 @ApplicationScoped
 public class UserRepository extends AbstractFileRepository {
@@ -42,32 +43,34 @@ public class UserRepository extends AbstractFileRepository {
     private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     @Inject
-    @ConfigProperty(name = "root.path")
-    private String rootPath;
+    private BlobStore blobStore;
 
     @PostConstruct
     public void logRootPath() {
-        LOG.info("root.path = {}", rootPath);
+        LOG.info("root.path = {}", blobStore.root());
     }
 
     public void persist(User user) {
-        File userHome = createNewFile(new File(rootPath), user.email().address());
-        mkdir(userHome);
+        File userHome = getUserHome(user);
+        if (blobStore.exists(userHome)) {
+            throw new ResourceConflictException(user.email().address() + " already exists");
+        }
+        mkdir(blobStore.locate(userHome));
     }
 
     public boolean exists(User user) {
-        return getUserHome(user).exists();
+        return blobStore.exists(getUserHome(user));
     }
 
     public Optional<String> loadPublicKey(User user, Kid kid) {
         LOG.info("Loading public key with kid {}", kid);
         File publicKeysFolder = new File(getUserHome(user), "public-keys");
-        File keyFile = new File(publicKeysFolder, kid.id() + ".json");
-        if (!keyFile.exists()) {
+        Optional<byte[]> key = blobStore.read(new File(publicKeysFolder, kid.id() + ".json"));
+        if (key.isEmpty()) {
             LOG.info("Public key does not exist.");
             return empty();
         } else {
-            Optional<String> publicKey = of(readFileToString(keyFile));
+            Optional<String> publicKey = of(new String(key.get(), UTF_8));
             LOG.info("Public key loaded");
             return publicKey;
         }
@@ -75,10 +78,10 @@ public class UserRepository extends AbstractFileRepository {
 
     public void storePublicKey(User user, Kid kid, PublicKey publicKey) {
         File publicKeysFolder = new File(getUserHome(user), "public-keys");
-        createNewFileWithContent(publicKeysFolder, kid.id() + ".json", publicKey.key());
+        blobStore.create(new File(publicKeysFolder, kid.id() + ".json"), publicKey.key().getBytes(UTF_8));
     }
 
     private File getUserHome(User user) {
-        return new File(rootPath, user.email().address());
+        return new File(blobStore.root(), user.email().address());
     }
 }
@@ -16,11 +16,22 @@
  */
 package cloud.imagey.infrastructure.common;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import jakarta.inject.Inject;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -31,6 +42,19 @@ public class AbstractFileRepository {
 
     public static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final Logger LOG = LogManager.getLogger(AbstractFileRepository.class);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    @Inject
+    private Journal journal;
+
+    /**
+     * Starts a transaction, that writes several files atomically and durably.
+     *
+     * @see Journal
+     */
+    protected Journal.Transaction beginTransaction() {
+        return journal.begin();
+    }
 
     protected File createNewFile(File folder, String filename) {
         File file = new File(folder, filename);
@@ -95,6 +119,30 @@ public class AbstractFileRepository {
         }
     }
 
+    /**
+     * Streams the data into a temporary file next to the target and renames it atomically afterwards,
+     * so readers never see a partially written file. The copy uses a fixed-size buffer,
+     * which keeps the heap usage independent of the size of the data.
+     *
+     * @param file the target file
+     * @param data the data to write, not closed by this method
+     * @return the number of bytes written
+     */
+    protected long writeStreamToFile(File file, InputStream data) {
+        File temporaryFile = new File(file.getParentFile(), "." + file.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            long size;
+            try (OutputStream output = new FileOutputStream(temporaryFile)) {
+                size = IOUtils.copyLarge(data, output, new byte[COPY_BUFFER_SIZE]);
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+            return size;
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temporaryFile);
+            throw new IoProblemException(e);
+        }
+    }
+
     protected byte[] readFileToByteArray(File file) {
         try {
             return FileUtils.readFileToByteArray(file);
@@ -0,0 +1,65 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.file.Files.readAttributes;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.Optional;
+
+import cloud.imagey.infrastructure.IoProblemException;
+
+/**
+ * Length, modification time and version of a stored blob.
+ *
+ * @param length the length in bytes
+ * @param modified the modification time in milliseconds since the epoch
+ * @param version a value, that changes whenever the blob is written
+ */
+public record BlobInfo(long length, long modified, String version) {
+
+    /**
+     * Reads the attributes of a file. The version is made from the length, the modification time in nanoseconds
+     * and the file key (i.e. the inode), so a file that is replaced within the resolution of the modification time
+     * gets a new version, too.
+     */
+    public static Optional<BlobInfo> of(File file) {
+        try {
+            BasicFileAttributes attributes = readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return Optional.empty();
+            }
+            return Optional.of(new BlobInfo(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                Long.toHexString(attributes.size())
+                + "-" + Long.toHexString(attributes.lastModifiedTime().to(NANOSECONDS))
+                + "-" + Integer.toHexString(Objects.hashCode(attributes.fileKey()))));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    public static BlobInfo of(SegmentStore.Entry entry) {
+        return new BlobInfo(entry.length(), entry.timestamp(), "s" + Long.toHexString(entry.sequence()));
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import cloud.imagey.infrastructure.IoProblemException;
+import cloud.imagey.infrastructure.ResourceConflictException;
+
+/**
+ * Stores the small files of the repositories like metadata, keys, contacts and messages
+ * in the {@link Storage} selected by {@code storage.backend}:
+ * {@code file} stores one file per blob, {@code packed} packs the blobs below {@code storage.packed.threshold}
+ * into the {@link SegmentStorage}. The files are addressed by their path below {@code root.path}.
+ * The storage is maintained in the background, e.g. segments with too many overwritten or deleted records are compacted.
+ * With {@code storage.layout=sharded}, the files are stored in the {@link ShardedLayout}
+ * and the files of the flat layout are migrated into it in the background.
+ * {@code root.path} may list several data volumes. The users are spread over them by the {@link VolumeStorage},
+ * the first volume is the root the files are addressed by. Users, that belong to another volume after volumes were added or removed,
+ * are moved when the storage is opened, before it is used. The metrics of the volumes are published via JMX.
+ */
+@ApplicationScoped
+public class BlobStore {
+
+    static final String FILE_BACKEND = "file";
+    static final String PACKED_BACKEND = "packed";
+    static final String FLAT_LAYOUT = "flat";
+    static final String SHARDED_LAYOUT = "sharded";
+
+    private static final Logger LOG = LogManager.getLogger(BlobStore.class);
+    private static final String VOLUME_MBEAN = "Volume";
+
+    @Inject
+    @ConfigProperty(name = "root.path")
+    private List<String> rootPaths;
+    @Inject
+    @ConfigProperty(name = "storage.backend", defaultValue = FILE_BACKEND)
+    private String backend;
+    @Inject
+    @ConfigProperty(name = "storage.packed.threshold", defaultValue = "4096")
+    private int threshold;
+    @Inject
+    @ConfigProperty(name = "storage.packed.segment-size", defaultValue = "16777216")
+    private long segmentSize;
+    @Inject
+    @ConfigProperty(name = "storage.packed.sync", defaultValue = "true")
+    private boolean sync;
+    @Inject
+    @ConfigProperty(name = "storage.packed.compaction-interval", defaultValue = "300")
+    private long maintenanceInterval;
+    @Inject
+    @ConfigProperty(name = "storage.packed.compaction-ratio", defaultValue = "0.5")
+    private double compactionRatio;
+    @Inject
+    @ConfigProperty(name = "storage.layout", defaultValue = FLAT_LAYOUT)
+    private String layout;
+    @Inject
+    @ConfigProperty(name = "storage.layout.migration-interval", defaultValue = "60")
+    private long migrationInterval;
+
+    private Path root;
+    private VolumeStorage volumes;
+    private Storage storage;
+    private ShardedLayout shardedLayout;
+    private ScheduledExecutorService maintenance;
+
+    @PostConstruct
+    public void openStorage() {
+        List<VolumeStorage.Volume> volumeList = new ArrayList<>();
+        for (String rootPath : rootPaths) {
+            File volumeRoot = new File(rootPath).toPath().toAbsolutePath().normalize().toFile();
+            volumeList.add(new VolumeStorage.Volume(volumeRoot, openStorage(volumeRoot), new VolumeMetrics(volumeRoot)));
+        }
+        root = volumeList.get(0).root().toPath();
+        volumes = new VolumeStorage(volumeList);
+        storage = volumes;
+        volumeList.forEach(volume -> MBeans.register(VOLUME_MBEAN, volume.metrics().getPath(), volume.metrics()));
+        LOG.info("Using {} storage with {} layout on {} volumes", backend, layout, volumeList.size());
+        if (volumeList.size() > 1) {
+            rebalance();
+        }
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, maintenanceInterval, maintenanceInterval, SECONDS);
+        if (SHARDED_LAYOUT.equals(layout)) {
+            shardedLayout = new ShardedLayout(storage);
+            maintenance.scheduleWithFixedDelay(this::migrate, 0, migrationInterval, SECONDS);
+        } else if (!FLAT_LAYOUT.equals(layout)) {
+            throw new IllegalStateException("Unknown storage.layout " + layout
+                + ", supported are " + Arrays.asList(FLAT_LAYOUT, SHARDED_LAYOUT));
+        }
+    }
+
+    @PreDestroy
+    public void closeStorage() {
+        maintenance.shutdownNow();
+        volumes.volumes().forEach(volume -> MBeans.unregister(VOLUME_MBEAN, volume.metrics().getPath()));
+        storage.close();
+    }
+
+    /**
+     * Returns the root folder of the first volume, below which the files are addressed.
+     */
+    public File root() {
+        return root.toFile();
+    }
+
+    public BlobInfo write(File file, byte[] data) {
+        return storage.write(locations(file).get(0), data);
+    }
+
+    /**
+     * Forces a written file to the storage device, wherever the layout and the backend stored it.
+     */
+    public void force(File file) {
+        locations(file).forEach(storage::force);
+    }
+
+    /**
+     * Writes a blob, that must not be changed once it is written. Writing the same data again is accepted.
+     *
+     * @throws ResourceConflictException if the blob exists with different data
+     */
+    public void create(File file, byte[] data) {
+        Optional<byte[]> existing = read(file);
+        if (existing.isPresent()) {
+            if (Arrays.equals(existing.get(), data)) {
+                return;
+            }
+            throw new ResourceConflictException(file.getName() + " already exists");
+        }
+        write(file, data);
+    }
+
+    public Optional<byte[]> read(File file) {
+        return locations(file).stream().map(storage::read).flatMap(Optional::stream).findFirst();
+    }
+
+    public Optional<BlobInfo> stat(File file) {
+        return locations(file).stream().map(storage::stat).flatMap(Optional::stream).findFirst();
+    }
+
+    public boolean exists(File file) {
+        return locations(file).stream().anyMatch(storage::exists);
+    }
+
+    /**
+     * Deletes a file or a folder with all files below it.
+     */
+    public boolean delete(File file) {
+        boolean deleted = false;
+        for (String location : locations(file)) {
+            deleted |= storage.delete(location);
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the names of the files and folders directly below the folder in their natural order.
+     */
+    public SortedSet<String> children(File folder) {
+        return shardedLayout != null ? shardedLayout.children(key(folder)) : storage.children(key(folder));
+    }
+
+    /**
+     * Returns where a file or folder, that is accessed directly instead of through this store
+     * (like the content files of documents), is located in the file system.
+     * The files are addressed in the flat layout. In the sharded layout, a file is found at its flat location,
+     * until it is migrated, and new files are created at their sharded location.
+     */
+    public File locate(File file) {
+        List<File> locations = locations(file).stream().map(volumes::file).toList();
+        return locations.stream().filter(File::exists).findFirst().orElse(locations.get(0));
+    }
+
+    private String key(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(root)) {
+            throw new IoProblemException(file + " is not below " + root);
+        }
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private List<String> locations(File file) {
+        String key = key(file);
+        return shardedLayout != null ? shardedLayout.locations(key) : List.of(key);
+    }
+
+    private Storage openStorage(File volumeRoot) {
+        return switch (backend) {
+            case FILE_BACKEND -> new FileStorage(volumeRoot);
+            case PACKED_BACKEND -> new SegmentStorage(volumeRoot, segmentSize, sync, threshold, compactionRatio);
+            default -> throw new IllegalStateException("Unknown storage.backend " + backend
+                + ", supported are " + Arrays.asList(FILE_BACKEND, PACKED_BACKEND));
+        };
+    }
+
+    private void rebalance() {
+        try {
+            volumes.rebalance();
+        } catch (RuntimeException e) {
+            LOG.error("Rebalancing the volumes failed", e);
+        }
+    }
+
+    private void migrate() {
+        try {
+            shardedLayout.migrate();
+        } catch (RuntimeException e) {
+            LOG.error("Migration into the sharded layout failed", e);
+        }
+    }
+
+    private void maintain() {
+        try {
+            storage.maintain(System.currentTimeMillis() - SECONDS.toMillis(maintenanceInterval));
+        } catch (RuntimeException e) {
+            LOG.error("Maintenance of the storage failed", e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import cloud.imagey.infrastructure.IoProblemException;
+
+/**
+ * Moves large files, that are rarely read, to a cold volume, e.g. a cheap spinning disk configured by {@code tiering.cold.path}.
+ * The files are selected by {@code tiering.pattern}, a path below {@code root.path} in which {@code *} matches any name.
+ * By default these are the original contents of the documents, while the thumbnails stay on the fast volumes.
+ * Files, that were not accessed for {@code tiering.cold-after-days}, are moved in the background.
+ * The accesses are recorded in memory and flushed as access time of the files in batches,
+ * so the access time is kept even if the file system is mounted with {@code noatime}.
+ * A file is copied to the cold volume and moved there atomically, before it is deleted on the fast volume,
+ * so it can be found on one of them at any time.
+ * Without {@code tiering.cold.path} all files stay where they are.
+ */
+@ApplicationScoped
+public class ContentTiering {
+
+    private static final Logger LOG = LogManager.getLogger(ContentTiering.class);
+    private static final String ANY_NAME = "*";
+
+    @Inject
+    @ConfigProperty(name = "tiering.cold.path")
+    private Optional<String> coldPath;
+    @Inject
+    @ConfigProperty(name = "tiering.pattern", defaultValue = "*/documents/*/files/content")
+    private String pattern;
+    @Inject
+    @ConfigProperty(name = "tiering.cold-after-days", defaultValue = "30")
+    private long coldAfterDays;
+    @Inject
+    @ConfigProperty(name = "tiering.interval", defaultValue = "3600")
+    private long interval;
+    @Inject
+    @ConfigProperty(name = "tiering.access-flush-interval", defaultValue = "60")
+    private long accessFlushInterval;
+    @Inject
+    private BlobStore blobStore;
+
+    private final Map<Path, Long> accesses = new ConcurrentHashMap<>();
+    private BiFunction<File, Supplier<Boolean>, Boolean> moveLock = (file, move) -> move.get();
+    private File coldRoot;
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        if (coldPath.isEmpty()) {
+            return;
+        }
+        coldRoot = new File(coldPath.get()).toPath().toAbsolutePath().normalize().toFile();
+        LOG.info("Moving {} to {} after {} days without access", pattern, coldRoot, coldAfterDays);
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "content-tiering");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flushAccesses, accessFlushInterval, accessFlushInterval, SECONDS);
+        executor.scheduleWithFixedDelay(this::tier, interval, interval, SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            flushAccesses();
+        }
+    }
+
+    /**
+     * Runs every move of a file to the cold volume under the given lock of the file,
+     * so the owner of the files can prevent moves while it writes them.
+     */
+    public void lockMoves(BiFunction<File, Supplier<Boolean>, Boolean> lock) {
+        moveLock = lock;
+    }
+
+    /**
+     * Returns the file, where a file addressed below {@code root.path} currently is stored,
+     * i.e. on the fast volume or, if it was moved there, on the cold volume, and records the access.
+     */
+    public File resolve(File file) {
+        File hotFile = blobStore.locate(file);
+        if (coldRoot == null || hotFile.isFile()) {
+            record(hotFile);
+            return hotFile;
+        }
+        File coldFile = coldFile(file);
+        return coldFile.isFile() ? coldFile : hotFile;
+    }
+
+    /**
+     * Moves the files, that match the pattern and were not accessed for the configured days, to the cold volume.
+     *
+     * @return the number of moved files
+     */
+    public int tier() {
+        if (coldRoot == null) {
+            return 0;
+        }
+        flushAccesses();
+        long coldSince = System.currentTimeMillis() - DAYS.toMillis(coldAfterDays);
+        try {
+            return tier(blobStore.root(), pattern.split("/"), 0, coldSince);
+        } catch (RuntimeException e) {
+            LOG.error("Moving files to {} failed", coldRoot, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the recorded accesses as access time to the files.
+     */
+    public void flushAccesses() {
+        Iterator<Map.Entry<Path, Long>> entries = accesses.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, Long> access = entries.next();
+            entries.remove();
+            try {
+                Files.getFileAttributeView(access.getKey(), BasicFileAttributeView.class)
+                    .setTimes(null, FileTime.fromMillis(access.getValue()), null);
+            } catch (IOException e) {
+                LOG.debug("Access time of {} not recorded", access.getKey(), e);
+            }
+        }
+    }
+
+    private void record(File file) {
+        if (coldRoot != null) {
+            accesses.put(file.toPath(), System.currentTimeMillis());
+        }
+    }
+
+    private int tier(File folder, String[] names, int index, long coldSince) {
+        if (index == names.length) {
+            return moveIfCold(folder, coldSince) ? 1 : 0;
+        }
+        if (!ANY_NAME.equals(names[index])) {
+            return tier(new File(folder, names[index]), names, index + 1, coldSince);
+        }
+        int moved = 0;
+        for (String child : blobStore.children(folder)) {
+            moved += tier(new File(folder, child), names, index + 1, coldSince);
+        }
+        return moved;
+    }
+
+    private boolean moveIfCold(File file, long coldSince) {
+        return moveLock.apply(file, () -> {
+            File hotFile = blobStore.locate(file);
+            try {
+                if (!hotFile.isFile() || accesses.containsKey(hotFile.toPath())
+                    || attributes(hotFile).lastAccessTime().toMillis() >= coldSince) {
+                    return false;
+                }
+                return move(hotFile, coldFile(file));
+            } catch (IOException e) {
+                throw new IoProblemException(e);
+            }
+        });
+    }
+
+    /**
+     * Copies the file to a temporary file on the cold volume, that replaces the cold file atomically,
+     * and deletes the file on the fast volume, unless it was changed meanwhile.
+     */
+    private boolean move(File hotFile, File coldFile) throws IOException {
+        BasicFileAttributes hotAttributes = attributes(hotFile);
+        Files.createDirectories(coldFile.getParentFile().toPath());
+        File temporaryFile = new File(coldFile.getParentFile(), "." + coldFile.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.copy(hotFile.toPath(), temporaryFile.toPath());
+            FileStorage.force(temporaryFile);
+            Files.move(temporaryFile.toPath(), coldFile.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            FileUtils.deleteQuietly(temporaryFile);
+        }
+        if (!isUnchanged(hotAttributes, attributes(hotFile))) {
+            LOG.debug("{} was changed while it was moved to {}", hotFile, coldFile);
+            Files.deleteIfExists(coldFile.toPath());
+            return false;
+        }
+        Files.delete(hotFile.toPath());
+        LOG.debug("Moved {} to {}", hotFile, coldFile);
+        return true;
+    }
+
+    private boolean isUnchanged(BasicFileAttributes before, BasicFileAttributes after) {
+        return before.size() == after.size()
+            && before.lastModifiedTime().equals(after.lastModifiedTime())
+            && Objects.equals(before.fileKey(), after.fileKey());
+    }
+
+    private BasicFileAttributes attributes(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    private File coldFile(File file) {
+        Path root = blobStore.root().toPath();
+        return coldRoot.toPath().resolve(root.relativize(file.toPath().toAbsolutePath().normalize())).toFile();
+    }
+}
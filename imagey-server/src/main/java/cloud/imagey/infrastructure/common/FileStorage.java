@@ -0,0 +1,212 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cloud.imagey.infrastructure.IoProblemException;
+
+/**
+ * Stores every blob as a file below the root folder, i.e. the directory layout imagey always used.
+ */
+public class FileStorage implements Storage {
+
+    private static final Logger LOG = LogManager.getLogger(FileStorage.class);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File root;
+
+    public FileStorage(File root) {
+        this.root = root;
+    }
+
+    @Override
+    public Optional<byte[]> read(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(FileUtils.readFileToByteArray(file));
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    @Override
+    public Optional<InputStream> open(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new FileInputStream(file));
+        } catch (FileNotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<BlobInfo> stat(String key) {
+        return BlobInfo.of(file(key));
+    }
+
+    @Override
+    public BlobInfo write(String key, byte[] data) {
+        return write(key, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Copies the data into a temporary file next to the target and renames it atomically afterwards.
+     */
+    @Override
+    public BlobInfo write(String key, InputStream data) {
+        File file = file(key);
+        File temporaryFile = new File(file.getParentFile(), "." + file.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (OutputStream output = new FileOutputStream(temporaryFile)) {
+                IOUtils.copyLarge(data, output, new byte[COPY_BUFFER_SIZE]);
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temporaryFile);
+            throw new IoProblemException(e);
+        }
+        return BlobInfo.of(file).orElseThrow(() -> new IoProblemException(file + " vanished after writing it"));
+    }
+
+    @Override
+    public boolean delete(String key) {
+        File file = file(key);
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            FileUtils.forceDelete(file);
+            return true;
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    @Override
+    public boolean move(String source, String target) {
+        File sourceFile = file(source);
+        if (!sourceFile.exists()) {
+            return false;
+        }
+        try {
+            move(sourceFile, file(target));
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public SortedSet<String> children(String folder) {
+        SortedSet<String> children = new TreeSet<>();
+        String[] names = file(folder).list();
+        for (String name : names != null ? names : new String[0]) {
+            if (!name.startsWith(".")) {
+                children.add(name);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Returns whether a file or folder exists for the key, even if the folder is empty.
+     */
+    @Override
+    public boolean exists(String key) {
+        return file(key).exists();
+    }
+
+    /**
+     * Renames the source, if the target does not exist, and merges it into the target otherwise.
+     * A source folder, that is not empty after the merge, because a file was written to it concurrently,
+     * is left for the next move.
+     */
+    private void move(File source, File target) throws IOException {
+        if (!target.exists()) {
+            Files.createDirectories(target.getParentFile().toPath());
+            Files.move(source.toPath(), target.toPath(), ATOMIC_MOVE);
+        } else if (source.isDirectory() && target.isDirectory()) {
+            File[] children = source.listFiles();
+            for (File child : children != null ? children : new File[0]) {
+                move(child, new File(target, child.getName()));
+            }
+            try {
+                Files.delete(source.toPath());
+            } catch (DirectoryNotEmptyException e) {
+                LOG.info("{} was changed while it was moved to {}", source, target);
+            }
+        } else {
+            FileUtils.forceDelete(source);
+        }
+    }
+
+    /**
+     * Forces a file and its folder to the storage device. Forcing folders is not supported on all platforms,
+     * so it is tried only.
+     */
+    static void force(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.getParentFile().toPath(), READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.debug("Could not force {}", file.getParentFile(), e);
+        }
+    }
+
+    @Override
+    public File file(String key) {
+        return key.isEmpty() ? root : new File(root, key.replace('/', File.separatorChar));
+    }
+}
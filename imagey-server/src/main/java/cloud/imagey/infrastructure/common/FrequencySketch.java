@@ -0,0 +1,83 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+/**
+ * Estimates how often keys were requested recently with a count-min sketch of 4-bit counters.
+ * All counters are halved after ten times the expected number of keys were counted,
+ * so the frequencies of keys that are not requested anymore decay and the counters do not saturate.
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAXIMUM_COUNT = 15;
+    private static final int MINIMUM_WIDTH = 1024;
+    private static final int MAXIMUM_WIDTH = 16_777_216;
+    private static final int SAMPLE_FACTOR = 10;
+    private static final long[] SEEDS = {0x97cb3127L, 0xb492b66fL, 0x9ae16a3bL, 0xc3a5c85cL};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final long sampleSize;
+    private long additions;
+
+    /**
+     * @param expectedKeys the number of keys, whose frequency should be estimated accurately
+     */
+    public FrequencySketch(long expectedKeys) {
+        int width = Integer.highestOneBit((int)Math.max(MINIMUM_WIDTH, Math.min(MAXIMUM_WIDTH, expectedKeys)) - 1) << 1;
+        counters = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = SAMPLE_FACTOR * Math.max(expectedKeys, 1);
+    }
+
+    public synchronized void increment(int hash) {
+        boolean incremented = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(hash, i);
+            if (counters[i][index] < MAXIMUM_COUNT) {
+                counters[i][index]++;
+                incremented = true;
+            }
+        }
+        if (incremented && ++additions >= sampleSize) {
+            halve();
+        }
+    }
+
+    public synchronized int frequency(int hash) {
+        int frequency = MAXIMUM_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counters[i][index(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private int index(int hash, int row) {
+        long spread = (hash + SEEDS[row]) * SEEDS[row];
+        return (int)(spread ^ (spread >>> Integer.SIZE)) & mask;
+    }
+
+    private void halve() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte)(row[i] >> 1);
+            }
+        }
+        additions /= 2;
+    }
+}
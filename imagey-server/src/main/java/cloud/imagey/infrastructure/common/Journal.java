@@ -0,0 +1,507 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Event;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import cloud.imagey.infrastructure.IoProblemException;
+
+/**
+ * Write-ahead journal, that makes writes of several files atomic and durable without an fsync per file.
+ * A {@link Transaction} collects its writes. Small data is kept in memory, larger streams are copied to a staging folder
+ * and forced to disk on their own. On commit, a record with all writes (small data inline, staged files by name)
+ * is appended to the journal. Commits arriving within {@code journal.group-commit-window} microseconds
+ * are forced together with a single fsync. Only then the writes are applied to their targets, which are not forced.
+ * This is done by a checkpoint, which truncates the journal afterwards.
+ * On startup, committed transactions, that were not applied, are applied again and staged files of uncommitted transactions are deleted.
+ */
+@ApplicationScoped
+public class Journal {
+
+    static final String JOURNAL_FILE = ".journal";
+    static final String STAGING_FOLDER = ".staging";
+
+    private static final Logger LOG = LogManager.getLogger(Journal.class);
+    private static final byte COMMITTED = 1;
+    private static final byte APPLIED = 2;
+    private static final byte BLOB = 1;
+    private static final byte FILE = 2;
+    private static final byte MOVE = 3;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    @Inject
+    @ConfigProperty(name = "journal.enabled", defaultValue = "true")
+    private boolean enabled;
+    @Inject
+    @ConfigProperty(name = "journal.group-commit-window", defaultValue = "1000")
+    private long groupCommitWindow;
+    @Inject
+    @ConfigProperty(name = "journal.inline-threshold", defaultValue = "65536")
+    private long inlineThreshold;
+    @Inject
+    @ConfigProperty(name = "journal.checkpoint-size", defaultValue = "4194304")
+    private long checkpointSize;
+    @Inject
+    private BlobStore blobStore;
+    @Inject
+    private Event<JournalRecovery> recovery;
+
+    private final BlockingQueue<Append> appends = new LinkedBlockingQueue<>();
+    private final Set<File> unforcedFiles = ConcurrentHashMap.newKeySet();
+    private final Set<File> unforcedBlobs = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger unappliedTransactions = new AtomicInteger();
+    private final AtomicLong transactionIds = new AtomicLong();
+    private Path root;
+    private FileChannel channel;
+    private Thread committer;
+
+    public void start(@Observes @Initialized(ApplicationScoped.class) Object event) {
+        LOG.debug("Journal started");
+    }
+
+    @PostConstruct
+    public void recover() {
+        root = blobStore.root().toPath();
+        if (!enabled) {
+            return;
+        }
+        File journalFile = root.resolve(JOURNAL_FILE).toFile();
+        if (journalFile.exists()) {
+            Map<Long, List<Operation>> committed = readJournal(journalFile);
+            List<File> files = new ArrayList<>();
+            for (List<Operation> operations : committed.values()) {
+                operations.forEach(operation -> files.add(apply(operation)));
+            }
+            FileUtils.deleteQuietly(root.resolve(STAGING_FOLDER).toFile());
+            checkpoint();
+            if (!files.isEmpty()) {
+                LOG.info("Recovered {} transactions from {}", committed.size(), journalFile);
+                recovery.fire(new JournalRecovery(files));
+            }
+        } else {
+            FileUtils.deleteQuietly(root.resolve(STAGING_FOLDER).toFile());
+        }
+        committer = new Thread(this::commitLoop, "journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (committer != null) {
+            committer.interrupt();
+        }
+        List<Append> pending = new ArrayList<>();
+        appends.drainTo(pending);
+        pending.forEach(append -> append.done().completeExceptionally(new IOException("Journal stopped")));
+        closeChannel();
+    }
+
+    public Transaction begin() {
+        return new Transaction(transactionIds.incrementAndGet());
+    }
+
+    /**
+     * Reads the committed transactions, that were not applied. Reading stops at the first invalid record,
+     * which is the end of the journal after a crash.
+     */
+    private Map<Long, List<Operation>> readJournal(File journalFile) {
+        Map<Long, List<Operation>> committed = new LinkedHashMap<>();
+        Set<Long> applied = new HashSet<>();
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(journalFile.toPath())))) {
+            while (input.available() >= RECORD_HEADER_SIZE) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+                if (length < 0 || length > input.available()) {
+                    LOG.warn("Ignoring torn end of {}", journalFile);
+                    break;
+                }
+                byte[] record = new byte[length];
+                input.readFully(record);
+                if (checksum != checksum(record)) {
+                    LOG.warn("Ignoring invalid end of {}", journalFile);
+                    break;
+                }
+                DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = recordInput.readByte();
+                long transactionId = recordInput.readLong();
+                if (type == COMMITTED) {
+                    committed.put(transactionId, readOperations(recordInput));
+                } else {
+                    applied.add(transactionId);
+                }
+            }
+        } catch (EOFException e) {
+            LOG.warn("Ignoring invalid end of {}", journalFile);
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+        committed.keySet().removeAll(applied);
+        return committed;
+    }
+
+    private List<Operation> readOperations(DataInputStream input) throws IOException {
+        List<Operation> operations = new ArrayList<>();
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = input.readByte();
+            File target = root.resolve(input.readUTF()).toFile();
+            if (type == MOVE) {
+                operations.add(new Operation(type, target, null, root.resolve(input.readUTF()).toFile()));
+            } else {
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+                operations.add(new Operation(type, target, data, null));
+            }
+        }
+        return operations;
+    }
+
+    private void commitLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                write(nextBatch());
+                try {
+                    if (unappliedTransactions.get() == 0 && channel != null && channel.size() > checkpointSize) {
+                        checkpoint();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Checkpoint failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the next append and collects the appends, that arrive within the group commit window.
+     */
+    private List<Append> nextBatch() throws InterruptedException {
+        List<Append> batch = new ArrayList<>();
+        batch.add(appends.take());
+        long deadline = System.nanoTime() + MICROSECONDS.toNanos(groupCommitWindow);
+        for (long remaining = groupCommitWindow; remaining > 0; remaining = deadline - System.nanoTime()) {
+            appends.drainTo(batch);
+            Append next = appends.poll(deadline - System.nanoTime(), NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return batch;
+    }
+
+    private void write(List<Append> batch) {
+        try {
+            FileChannel journal = channel();
+            ByteBuffer[] records = batch.stream().map(Append::record).map(ByteBuffer::wrap).toArray(ByteBuffer[]::new);
+            long remaining = batch.stream().mapToLong(append -> append.record().length).sum();
+            while (remaining > 0) {
+                remaining -= journal.write(records);
+            }
+            if (batch.stream().anyMatch(Append::sync)) {
+                journal.force(false);
+            }
+            batch.forEach(append -> append.done().complete(null));
+        } catch (IOException | RuntimeException e) {
+            batch.forEach(append -> append.done().completeExceptionally(e));
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        File journalFile = root.resolve(JOURNAL_FILE).toFile();
+        if (channel == null || !channel.isOpen() || !journalFile.exists()) {
+            closeChannel();
+            Files.createDirectories(root);
+            channel = FileChannel.open(journalFile.toPath(), CREATE, WRITE, APPEND);
+        }
+        return channel;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            IOUtils.closeQuietly(channel);
+            channel = null;
+        }
+    }
+
+    /**
+     * Forces the applied files to disk and truncates the journal. Blobs are forced where the {@link BlobStore} stored them,
+     * which is not their logical location in the sharded layout, on other volumes or in packed segments.
+     * If a file can't be forced, the journal is kept, so its transactions are applied again after a crash.
+     */
+    private void checkpoint() {
+        try {
+            for (File file : new ArrayList<>(unforcedFiles)) {
+                FileStorage.force(file);
+                unforcedFiles.remove(file);
+            }
+            for (File blob : new ArrayList<>(unforcedBlobs)) {
+                blobStore.force(blob);
+                unforcedBlobs.remove(blob);
+            }
+            FileChannel journal = channel();
+            journal.truncate(0);
+            journal.force(true);
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    private File apply(Operation operation) {
+        try {
+            if (operation.type() == BLOB) {
+                blobStore.write(operation.target(), operation.data());
+            } else if (operation.type() == FILE) {
+                write(operation.target(), operation.data());
+            } else if (operation.source().exists()) {
+                move(operation.source(), operation.target());
+            }
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+        (operation.type() == BLOB ? unforcedBlobs : unforcedFiles).add(operation.target());
+        return operation.target();
+    }
+
+    private void append(byte type, long transactionId, List<Operation> operations, boolean sync) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(record);
+            output.writeByte(type);
+            output.writeLong(transactionId);
+            if (operations != null) {
+                output.writeInt(operations.size());
+                for (Operation operation : operations) {
+                    output.writeByte(operation.type());
+                    output.writeUTF(relativize(operation.target()));
+                    if (operation.type() == MOVE) {
+                        output.writeUTF(relativize(operation.source()));
+                    } else {
+                        output.writeInt(operation.data().length);
+                        output.write(operation.data());
+                    }
+                }
+            }
+            byte[] payload = record.toByteArray();
+            ByteBuffer framed = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+            framed.putInt(payload.length).putInt(checksum(payload)).put(payload);
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            appends.add(new Append(framed.array(), sync, done));
+            if (sync) {
+                done.get();
+            }
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IoProblemException("Interrupted while waiting for the journal");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException cause ? new IoProblemException(cause) : new IoProblemException(e.getMessage());
+        }
+    }
+
+    /**
+     * Moves a staged file to its target, which is copied, if the target is on another data volume than the staging folder.
+     */
+    /**
+     * Writes an inline file to a temporary file next to it, which is forced and renamed atomically,
+     * so readers of the file never see it half written, even while a transaction is replayed.
+     */
+    private void write(File target, byte[] data) throws IOException {
+        Files.createDirectories(target.getParentFile().toPath());
+        File temporaryFile = new File(target.getParentFile(), "." + target.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            FileUtils.writeByteArrayToFile(temporaryFile, data);
+            FileStorage.force(temporaryFile);
+            Files.move(temporaryFile.toPath(), target.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            FileUtils.deleteQuietly(temporaryFile);
+        }
+    }
+
+    private void move(File source, File target) throws IOException {
+        Files.createDirectories(target.getParentFile().toPath());
+        try {
+            Files.move(source.toPath(), target.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Returns the path of a file relative to the root or the absolute path, if the file is on another data volume.
+     */
+    private String relativize(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        return path.startsWith(root) ? root.relativize(path).toString() : path.toString();
+    }
+
+    private int checksum(byte[] data) {
+        CRC32 checksum = new CRC32();
+        checksum.update(data);
+        return (int)checksum.getValue();
+    }
+
+    /**
+     * Writes of several files, that are applied together or not at all.
+     * A transaction, that is closed without commit, is rolled back.
+     */
+    public final class Transaction implements AutoCloseable {
+
+        private final long id;
+        private final List<Operation> operations = new ArrayList<>();
+        private boolean committed;
+
+        private Transaction(long id) {
+            this.id = id;
+        }
+
+        /**
+         * Writes a small blob, e.g. metadata or a key, which may be packed by the {@link BlobStore}.
+         */
+        public void write(File file, byte[] data) {
+            operations.add(new Operation(BLOB, file, data, null));
+        }
+
+        /**
+         * Writes a file from a stream. Small streams are kept in memory, larger ones are copied to the staging folder.
+         *
+         * @return the number of bytes written
+         */
+        public long write(File file, InputStream data) {
+            File stagedFile = root.resolve(STAGING_FOLDER).resolve(id + "-" + UUID.randomUUID()).toFile();
+            try {
+                Files.createDirectories(stagedFile.getParentFile().toPath());
+                long size;
+                try (OutputStream output = new FileOutputStream(stagedFile)) {
+                    size = IOUtils.copyLarge(data, output, new byte[COPY_BUFFER_SIZE]);
+                }
+                if (enabled && size <= inlineThreshold) {
+                    operations.add(new Operation(FILE, file, Files.readAllBytes(stagedFile.toPath()), null));
+                    Files.delete(stagedFile.toPath());
+                } else {
+                    if (enabled) {
+                        FileStorage.force(stagedFile);
+                    }
+                    operations.add(new Operation(MOVE, file, null, stagedFile));
+                }
+                return size;
+            } catch (IOException e) {
+                FileUtils.deleteQuietly(stagedFile);
+                throw new IoProblemException(e);
+            }
+        }
+
+        /**
+         * Makes the writes durable and applies them to their files.
+         * The transaction is marked as applied, when it is closed, so if the server crashes before,
+         * the writes are applied again on startup and a {@link JournalRecovery} is fired.
+         * Derived data, e.g. an index of the written files, that is updated between commit and close,
+         * can thus be rebuilt after a crash.
+         */
+        public void commit() {
+            if (enabled) {
+                unappliedTransactions.incrementAndGet();
+                try {
+                    append(COMMITTED, id, operations, true);
+                    operations.forEach(Journal.this::apply);
+                } catch (RuntimeException e) {
+                    unappliedTransactions.decrementAndGet();
+                    throw e;
+                }
+            } else {
+                operations.forEach(Journal.this::apply);
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() {
+            if (!committed) {
+                operations.stream().filter(operation -> operation.source() != null).forEach(operation -> {
+                    FileUtils.deleteQuietly(operation.source());
+                });
+            } else if (enabled) {
+                try {
+                    append(APPLIED, id, null, false);
+                } finally {
+                    unappliedTransactions.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private record Operation(byte type, File target, byte[] data, File source) {
+    }
+
+    private record Append(byte[] record, boolean sync, CompletableFuture<Void> done) {
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Publishes metrics via JMX as {@code cloud.imagey:type=<type>,name=<name>}.
+ * An MBean of a previous instance with the same name, e.g. of a redeployment, is replaced.
+ */
+public final class MBeans {
+
+    private static final Logger LOG = LogManager.getLogger(MBeans.class);
+
+    private MBeans() {
+    }
+
+    public static void register(String type, String name, Object mbean) {
+        update(type, name, mbean);
+    }
+
+    public static void unregister(String type, String name) {
+        update(type, name, null);
+    }
+
+    private static void update(String type, String name, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName("cloud.imagey:type=" + type + ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            if (mbean != null) {
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (JMException e) {
+            LOG.warn("Metrics of {} {} are not available", type, name, e);
+        }
+    }
+}
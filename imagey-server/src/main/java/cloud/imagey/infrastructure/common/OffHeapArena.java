@@ -0,0 +1,88 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Native memory outside of the heap, that is divided into chunks of equal size.
+ * The chunks are carved from slabs of direct buffers, which are allocated when they are needed first
+ * and never released, so the garbage collector neither copies nor scans the cached bytes.
+ * As all chunks have the same size, freed chunks can be reused without fragmentation.
+ */
+public class OffHeapArena {
+
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+    private final int chunkSize;
+    private final int chunksPerSlab;
+    private final int chunkCount;
+    private final ByteBuffer[] slabs;
+    private final int[] freeChunks;
+    private int freeChunkCount;
+    private int unusedChunk;
+
+    /**
+     * @param capacity the maximum number of bytes to allocate
+     * @param chunkSize the size of the chunks in bytes
+     */
+    public OffHeapArena(long capacity, int chunkSize) {
+        this.chunkSize = chunkSize;
+        chunksPerSlab = Math.max(1, SLAB_SIZE / chunkSize);
+        chunkCount = (int)Math.min(Integer.MAX_VALUE, capacity / chunkSize);
+        slabs = new ByteBuffer[(chunkCount + chunksPerSlab - 1) / chunksPerSlab];
+        freeChunks = new int[chunkCount];
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Allocates the chunks to store the given number of bytes.
+     *
+     * @return the indexes of the chunks or {@code null}, if not enough chunks are free
+     */
+    public synchronized int[] allocate(long length) {
+        long count = (length + chunkSize - 1) / chunkSize;
+        if (count > freeChunkCount + chunkCount - unusedChunk) {
+            return null;
+        }
+        int[] chunks = new int[(int)count];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = freeChunkCount > 0 ? freeChunks[--freeChunkCount] : unusedChunk++;
+        }
+        return chunks;
+    }
+
+    public synchronized void free(int[] chunks) {
+        for (int chunk : chunks) {
+            freeChunks[freeChunkCount++] = chunk;
+        }
+    }
+
+    /**
+     * Returns a buffer, that views the chunk with the given index.
+     */
+    public synchronized ByteBuffer chunk(int index) {
+        int slab = index / chunksPerSlab;
+        if (slabs[slab] == null) {
+            slabs[slab] = ByteBuffer.allocateDirect(Math.min(chunksPerSlab, chunkCount - slab * chunksPerSlab) * chunkSize);
+        }
+        return slabs[slab].slice(index % chunksPerSlab * chunkSize, chunkSize);
+    }
+}
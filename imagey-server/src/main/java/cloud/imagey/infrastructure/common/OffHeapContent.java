@@ -0,0 +1,161 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The content of a file, that is stored in chunks of an {@link OffHeapArena}.
+ * The chunks are freed, when the content was removed from its cache and all readers released it,
+ * so a reader, that is still writing the content to a slow client, never sees chunks reused by other content.
+ */
+public class OffHeapContent {
+
+    private final OffHeapArena arena;
+    private final int[] chunks;
+    private final long length;
+    private final String version;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean prefetched = new AtomicBoolean();
+
+    private OffHeapContent(OffHeapArena arena, int[] chunks, long length, String version) {
+        this.arena = arena;
+        this.chunks = chunks;
+        this.length = length;
+        this.version = version;
+    }
+
+    /**
+     * Reads a file into the arena without copying it through the heap.
+     *
+     * @param evictor frees chunks of the arena, if it is full, and returns {@code false}, if there is nothing left to free
+     * @return the content, which is referenced once, or {@code null}, if the arena is full or the file changed while reading
+     */
+    public static OffHeapContent load(OffHeapArena arena, File file, BlobInfo info, BooleanSupplier evictor) throws IOException {
+        int[] chunks = arena.allocate(info.length());
+        while (chunks == null && evictor.getAsBoolean()) {
+            chunks = arena.allocate(info.length());
+        }
+        if (chunks == null) {
+            return null;
+        }
+        OffHeapContent content = new OffHeapContent(arena, chunks, info.length(), info.version());
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            for (int i = 0; i < chunks.length; i++) {
+                ByteBuffer chunk = arena.chunk(chunks[i]);
+                chunk.limit((int)Math.min(arena.chunkSize(), info.length() - (long)i * arena.chunkSize()));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk) < 0) {
+                        content.release();
+                        return null;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            content.release();
+            throw e;
+        }
+        return content;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public String version() {
+        return version;
+    }
+
+    /**
+     * Returns the number of bytes the content occupies in the arena.
+     */
+    public long weight() {
+        return (long)chunks.length * arena.chunkSize();
+    }
+
+    /**
+     * Adds a reference, which has to be released after reading.
+     *
+     * @return {@code false}, if the content was freed already
+     */
+    public boolean retain() {
+        int count = references.get();
+        while (count > 0) {
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+            count = references.get();
+        }
+        return false;
+    }
+
+    public void markPrefetched() {
+        prefetched.set(true);
+    }
+
+    /**
+     * Returns whether the content was prefetched and not read since, and marks it as read.
+     */
+    public boolean takePrefetched() {
+        return prefetched.compareAndSet(true, false);
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            arena.free(chunks);
+        }
+    }
+
+    /**
+     * Writes the given range of the content from the native memory to the channel.
+     * The chunks are handed to the channel as they are, so they are not copied into the heap.
+     *
+     * @param start the first byte to write
+     * @param end the byte after the last byte to write
+     */
+    public void writeTo(WritableByteChannel output, long start, long end) throws IOException {
+        int chunkSize = arena.chunkSize();
+        for (int i = (int)(start / chunkSize); i < chunks.length && (long)i * chunkSize < end; i++) {
+            long chunkStart = (long)i * chunkSize;
+            ByteBuffer chunk = arena.chunk(chunks[i]);
+            chunk.position((int)(Math.max(start, chunkStart) - chunkStart));
+            chunk.limit((int)(Math.min(Math.min(end, length), chunkStart + chunkSize) - chunkStart));
+            ByteBuffer range = chunk.slice();
+            while (range.hasRemaining()) {
+                output.write(range);
+            }
+        }
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[(int)length];
+        for (int i = 0; i < chunks.length; i++) {
+            int offset = i * arena.chunkSize();
+            arena.chunk(chunks[i]).get(bytes, offset, Math.min(arena.chunkSize(), bytes.length - offset));
+        }
+        return bytes;
+    }
+}
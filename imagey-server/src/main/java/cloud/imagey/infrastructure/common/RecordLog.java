@@ -0,0 +1,397 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cloud.imagey.infrastructure.IoProblemException;
+
+/**
+ * An append-only log of records in segment files of one folder. Each record gets the next sequence number of the log.
+ * A record consists of a magic number, the sequence number, a timestamp, the data (a 32 bit length followed by the bytes)
+ * and a CRC32 of everything after the magic number. A segment is named after the sequence number of its first record
+ * and a new segment is started, when the current one would exceed the maximum segment size.
+ * The offsets of the records are kept in memory per segment and are rebuilt by scanning the segments, when the log is opened.
+ * A torn record at the end of the last segment, as left by a crash, is truncated during this scan.
+ * Old records are removed by {@link #truncate(long)}, which deletes whole segments.
+ * If the folder is deleted, the log starts over empty.
+ */
+public class RecordLog implements Closeable {
+
+    static final String SEGMENT_SUFFIX = ".log";
+
+    private static final Logger LOG = LogManager.getLogger(RecordLog.class);
+    private static final int MAGIC = 0x494d4c47;
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int TRAILER_SIZE = Integer.BYTES;
+    private static final int INITIAL_OFFSETS = 16;
+
+    private final File folder;
+    private final long maxSegmentSize;
+    private final boolean sync;
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private long sequence;
+
+    /**
+     * Opens the log and recovers its segments.
+     *
+     * @param folder the folder of the segment files
+     * @param maxSegmentSize the size, after which a new segment is started
+     * @param sync whether every append is forced to the storage device before it is acknowledged
+     */
+    public RecordLog(File folder, long maxSegmentSize, boolean sync) {
+        this.folder = folder;
+        this.maxSegmentSize = maxSegmentSize;
+        this.sync = sync;
+        recover();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @return the sequence number of the record
+     */
+    public synchronized long append(byte[] data) {
+        reopenIfDeleted();
+        write(data);
+        force();
+        return sequence;
+    }
+
+    /**
+     * Appends records as one batch, which is forced to the storage device only once at its end.
+     * After a crash, only the first records of the batch may be stored.
+     *
+     * @return the sequence number of the last record
+     */
+    public synchronized long appendAll(List<byte[]> records) {
+        reopenIfDeleted();
+        for (byte[] data : records) {
+            write(data);
+        }
+        force();
+        return sequence;
+    }
+
+    private void write(byte[] data) {
+        int recordSize = HEADER_SIZE + data.length + TRAILER_SIZE;
+        Segment active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (active == null || active.size > 0 && active.size + recordSize > maxSegmentSize) {
+            force();
+            active = roll();
+        }
+        long timestamp = System.currentTimeMillis();
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(MAGIC).putLong(sequence + 1).putLong(timestamp).putInt(data.length).put(data);
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), Integer.BYTES, record.position() - Integer.BYTES);
+        record.putInt((int)checksum.getValue()).flip();
+        try {
+            FileChannel channel = active.channel();
+            while (record.hasRemaining()) {
+                channel.write(record, active.size + record.position());
+            }
+        } catch (IOException e) {
+            active.truncateQuietly();
+            throw new IoProblemException(e);
+        }
+        active.add(recordSize);
+        sequence++;
+    }
+
+    /**
+     * Forces the last segment to the storage device, if every append has to be.
+     */
+    private void force() {
+        if (!sync || segments.isEmpty()) {
+            return;
+        }
+        Segment active = segments.lastEntry().getValue();
+        try {
+            active.channel().force(false);
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    /**
+     * Returns the records after the given sequence number in the order of their sequence numbers.
+     *
+     * @param limit the maximum number of records to return
+     */
+    public synchronized List<Entry> read(long after, int limit) {
+        reopenIfDeleted();
+        List<Entry> entries = new ArrayList<>();
+        Long start = segments.floorKey(after + 1);
+        for (Segment segment : segments.tailMap(start != null ? start : Long.MIN_VALUE, true).values()) {
+            int from = (int)Math.min(segment.count, Math.max(0, after + 1 - segment.first));
+            for (int i = from; i < segment.count && entries.size() < limit; i++) {
+                entries.add(segment.read(i));
+            }
+            if (segment != segments.lastEntry().getValue()) {
+                segment.close();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the sequence number of the last record, or of the last truncated record, if the log is empty.
+     */
+    public synchronized long lastSequence() {
+        reopenIfDeleted();
+        return sequence;
+    }
+
+    /**
+     * Deletes the segments, that contain only records up to the given sequence number.
+     * Records of the remaining segments are kept, so readers, that must not see them, have to skip them.
+     */
+    public synchronized void truncate(long upTo) {
+        while (!segments.isEmpty() && segments.firstEntry().getValue().count > 0 && segments.firstEntry().getValue().last() <= upTo) {
+            Segment segment = segments.firstEntry().getValue();
+            if (segments.size() == 1) {
+                roll();
+            }
+            segment.close();
+            if (!segment.file.delete()) {
+                throw new IoProblemException("Failed to delete " + segment.file);
+            }
+            segments.remove(segment.first);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        segments.values().forEach(Segment::close);
+    }
+
+    private void reopenIfDeleted() {
+        if (!segments.isEmpty() && !folder.isDirectory()) {
+            close();
+            segments.clear();
+            sequence = 0;
+            recover();
+        }
+    }
+
+    private void recover() {
+        String[] names = folder.list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        for (String name : names != null ? names : new String[0]) {
+            try {
+                long first = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(first, new Segment(new File(folder, name), first));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring {} in {}", name, folder);
+            }
+        }
+        for (Segment segment : segments.values()) {
+            segment.scan(segment == segments.lastEntry().getValue());
+            sequence = Math.max(sequence, segment.last());
+        }
+    }
+
+    private Segment roll() {
+        segments.values().forEach(Segment::close);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IoProblemException("Failed to create " + folder);
+        }
+        Segment segment = new Segment(new File(folder, String.format("%020d", sequence + 1) + SEGMENT_SUFFIX), sequence + 1);
+        try {
+            segment.channel();
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+        segments.put(segment.first, segment);
+        return segment;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * A segment file with the offsets of its records, whose sequence numbers start at {@code first} without gaps.
+     */
+    private static final class Segment {
+
+        private final File file;
+        private final long first;
+        private long[] offsets = new long[INITIAL_OFFSETS];
+        private int count;
+        private long size;
+        private FileChannel channel;
+        private boolean writable;
+
+        private Segment(File file, long first) {
+            this.file = file;
+            this.first = first;
+        }
+
+        private long last() {
+            return first + count - 1;
+        }
+
+        private void add(int recordSize) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = size;
+            size += recordSize;
+        }
+
+        private Entry read(int index) {
+            try {
+                FileChannel segmentChannel = readChannel();
+                ByteBuffer header = readFully(segmentChannel, offsets[index], HEADER_SIZE);
+                header.getInt();
+                long recordSequence = header.getLong();
+                long timestamp = header.getLong();
+                int length = header.getInt();
+                return new Entry(recordSequence, timestamp, readFully(segmentChannel, offsets[index] + HEADER_SIZE, length).array());
+            } catch (IOException e) {
+                throw new IoProblemException(e);
+            }
+        }
+
+        /**
+         * Reads the offsets of the valid records.
+         *
+         * @param last whether the segment is the last one, which is truncated after the last valid record
+         */
+        private void scan(boolean last) {
+            try {
+                FileChannel segmentChannel = channel();
+                long fileSize = segmentChannel.size();
+                while (size < fileSize) {
+                    int recordSize = scanRecord(segmentChannel, fileSize);
+                    if (recordSize < 0) {
+                        LOG.warn("Invalid record in {} at {}", file, size);
+                        if (last) {
+                            segmentChannel.truncate(size);
+                            segmentChannel.force(true);
+                        }
+                        break;
+                    }
+                    add(recordSize);
+                }
+                if (!last) {
+                    close();
+                }
+            } catch (IOException e) {
+                throw new IoProblemException(e);
+            }
+        }
+
+        /**
+         * @return the size of the record at the end of the segment or {@code -1}, if the record is invalid or incomplete
+         */
+        private int scanRecord(FileChannel segmentChannel, long fileSize) throws IOException {
+            if (fileSize - size < HEADER_SIZE) {
+                return -1;
+            }
+            ByteBuffer header = readFully(segmentChannel, size, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getLong() != first + count) {
+                return -1;
+            }
+            int length = header.getInt(HEADER_SIZE - Integer.BYTES);
+            if (length < 0 || fileSize - size - HEADER_SIZE < (long)length + TRAILER_SIZE) {
+                return -1;
+            }
+            ByteBuffer data = readFully(segmentChannel, size + HEADER_SIZE, length + TRAILER_SIZE);
+            CRC32 checksum = new CRC32();
+            checksum.update(header.rewind().position(Integer.BYTES));
+            checksum.update(data.slice(0, length));
+            if ((int)checksum.getValue() != data.getInt(length)) {
+                return -1;
+            }
+            return HEADER_SIZE + length + TRAILER_SIZE;
+        }
+
+        private FileChannel channel() throws IOException {
+            if (channel == null || !channel.isOpen() || !writable) {
+                close();
+                channel = FileChannel.open(file.toPath(), READ, WRITE, CREATE);
+                writable = true;
+            }
+            return channel;
+        }
+
+        /**
+         * Returns the open channel or opens the segment read-only, so reading never creates a segment.
+         */
+        private FileChannel readChannel() throws IOException {
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(file.toPath(), READ);
+                writable = false;
+            }
+            return channel;
+        }
+
+        private void truncateQuietly() {
+            try {
+                channel().truncate(size);
+            } catch (IOException e) {
+                LOG.warn("Failed to truncate {}", file, e);
+            }
+        }
+
+        private void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close {}", file, e);
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * A record of the log.
+     *
+     * @param sequence the sequence number of the record, which increases with every append
+     * @param timestamp the time the record was appended in milliseconds since the epoch
+     * @param data the data of the record
+     */
+    public record Entry(long sequence, long timestamp, byte[] data) {
+    }
+}
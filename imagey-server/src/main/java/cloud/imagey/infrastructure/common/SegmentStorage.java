@@ -0,0 +1,280 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cloud.imagey.infrastructure.IoProblemException;
+
+/**
+ * Embedded storage, that packs small blobs into the {@link SegmentStore} of the user they belong to
+ * (i.e. the first folder of the key or, in the {@link ShardedLayout}, the first folder below the shards),
+ * which saves the inodes and directory entries of one file per blob.
+ * Blobs from the threshold on are written as files.
+ * Blobs are read from the segments first and from the files otherwise,
+ * so existing files stay readable, when a file based root is switched to this storage.
+ */
+public class SegmentStorage implements Storage {
+
+    static final String SEGMENTS_FOLDER = ".segments";
+
+    private static final Logger LOG = LogManager.getLogger(SegmentStorage.class);
+
+    private final File root;
+    private final long segmentSize;
+    private final boolean sync;
+    private final int threshold;
+    private final double compactionRatio;
+    private final FileStorage files;
+    private final Map<String, SegmentStore> segmentStores = new ConcurrentHashMap<>();
+
+    /**
+     * @param root the root folder
+     * @param segmentSize the size, after which a new segment is started
+     * @param sync whether every write is forced to the storage device before it is acknowledged
+     * @param threshold the size in bytes, from which blobs are written as files
+     * @param compactionRatio the share of overwritten or deleted records, from which segments are compacted
+     */
+    public SegmentStorage(File root, long segmentSize, boolean sync, int threshold, double compactionRatio) {
+        this.root = root;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        this.threshold = threshold;
+        this.compactionRatio = compactionRatio;
+        this.files = new FileStorage(root);
+    }
+
+    @Override
+    public Optional<byte[]> read(String key) {
+        Optional<byte[]> data = find(key).flatMap(location -> location.store().get(location.key()));
+        return data.isPresent() ? data : files.read(key);
+    }
+
+    @Override
+    public Optional<InputStream> open(String key) {
+        Optional<InputStream> data = find(key).flatMap(location -> location.store().get(location.key())).map(ByteArrayInputStream::new);
+        return data.isPresent() ? data : files.open(key);
+    }
+
+    @Override
+    public Optional<BlobInfo> stat(String key) {
+        Optional<BlobInfo> info = find(key).flatMap(location -> location.store().stat(location.key())).map(BlobInfo::of);
+        return info.isPresent() ? info : files.stat(key);
+    }
+
+    @Override
+    public BlobInfo write(String key, byte[] data) {
+        Optional<Location> location = locate(key);
+        if (location.isPresent() && !location.get().key().isEmpty() && data.length < threshold) {
+            BlobInfo info = BlobInfo.of(location.get().store().put(location.get().key(), data));
+            if (files.stat(key).isPresent()) {
+                files.delete(key);
+            }
+            return info;
+        }
+        BlobInfo info = files.write(key, data);
+        location.ifPresent(l -> l.store().delete(l.key()));
+        return info;
+    }
+
+    /**
+     * Reads the stream up to the threshold to decide, whether the blob is packed or written as a file.
+     */
+    @Override
+    public BlobInfo write(String key, InputStream data) {
+        try {
+            byte[] head = data.readNBytes(threshold);
+            if (head.length < threshold) {
+                return write(key, head);
+            }
+            BlobInfo info = files.write(key, new SequenceInputStream(new ByteArrayInputStream(head), data));
+            locate(key).ifPresent(l -> l.store().delete(l.key()));
+            return info;
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    @Override
+    public void force(String key) {
+        Optional<Location> location = find(key);
+        if (location.isPresent() && location.get().store().stat(location.get().key()).isPresent()) {
+            location.get().store().force();
+        } else {
+            files.force(key);
+        }
+    }
+
+    @Override
+    public File file(String key) {
+        return files.file(key);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        boolean deleted = false;
+        Optional<Location> location = find(key);
+        if (location.isPresent() && location.get().key().isEmpty()) {
+            SegmentStore store = segmentStores.remove(key);
+            if (store != null) {
+                store.close();
+            }
+        } else if (location.isPresent()) {
+            SegmentStore store = location.get().store();
+            deleted = store.delete(location.get().key());
+            for (String child : store.keys(location.get().key() + "/")) {
+                deleted |= store.delete(child);
+            }
+        }
+        return files.delete(key) || deleted;
+    }
+
+    /**
+     * Moves the packed blobs into the segments of the target, where they may belong to another user, and moves the files.
+     * When a whole user is moved, the segments of the user are deleted afterwards.
+     */
+    @Override
+    public boolean move(String source, String target) {
+        boolean moved = false;
+        Optional<Location> location = find(source);
+        if (location.isPresent()) {
+            SegmentStore store = location.get().store();
+            String key = location.get().key();
+            for (String packedKey : packedKeys(store, key)) {
+                String targetKey = key.isEmpty() ? target + "/" + packedKey : target + packedKey.substring(key.length());
+                Optional<byte[]> data = store.get(packedKey);
+                if (data.isPresent() && stat(targetKey).isEmpty()) {
+                    write(targetKey, data.get());
+                }
+                store.delete(packedKey);
+                moved = true;
+            }
+            if (key.isEmpty()) {
+                segmentStores.remove(source).close();
+                FileUtils.deleteQuietly(new File(new File(root, source), SEGMENTS_FOLDER));
+            }
+        }
+        return files.move(source, target) || moved;
+    }
+
+    @Override
+    public SortedSet<String> children(String folder) {
+        SortedSet<String> children = new TreeSet<>(files.children(folder));
+        find(folder).ifPresent(location -> {
+            String prefix = location.key().isEmpty() ? "" : location.key() + "/";
+            for (String key : location.store().keys(prefix)) {
+                children.add(key.substring(prefix.length()).split("/", 2)[0]);
+            }
+        });
+        return children;
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return files.exists(key) || Storage.super.exists(key);
+    }
+
+    /**
+     * Compacts the segments with too many overwritten or deleted records and closes the files of idle segments.
+     */
+    @Override
+    public void maintain(long idleSince) {
+        for (SegmentStore store : segmentStores.values()) {
+            try {
+                long lastAccess = store.lastAccess();
+                if (store.garbageRatio() > compactionRatio) {
+                    store.compact();
+                }
+                if (lastAccess < idleSince) {
+                    store.release();
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Maintenance of segments failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        segmentStores.values().forEach(SegmentStore::close);
+        segmentStores.clear();
+    }
+
+    /**
+     * Returns the packed key and the packed keys below it.
+     */
+    private SortedSet<String> packedKeys(SegmentStore store, String key) {
+        SortedSet<String> keys = store.keys(key.isEmpty() ? "" : key + "/");
+        if (!key.isEmpty() && store.stat(key).isPresent()) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Locates the key like {@link #locate(String)}, but only if the segments of the user exist,
+     * so reading does not create the folder of an unknown user.
+     */
+    private Optional<Location> find(String key) {
+        return owner(key)
+            .filter(owner -> new File(new File(root, owner), SEGMENTS_FOLDER).isDirectory())
+            .flatMap(owner -> locate(key));
+    }
+
+    private Optional<Location> locate(String key) {
+        return owner(key).map(owner -> {
+            SegmentStore store = segmentStores.computeIfAbsent(owner,
+                user -> new SegmentStore(new File(new File(root, user), SEGMENTS_FOLDER), segmentSize, sync));
+            return new Location(store, owner.length() < key.length() ? key.substring(owner.length() + 1) : "");
+        });
+    }
+
+    /**
+     * Returns the folder of the user, that the key belongs to, including the shards above it.
+     * Keys of the shards themselves belong to no user.
+     */
+    private Optional<String> owner(String key) {
+        int end = -1;
+        String name;
+        do {
+            int start = end + 1;
+            if (start >= key.length()) {
+                return Optional.empty();
+            }
+            end = key.indexOf('/', start);
+            end = end < 0 ? key.length() : end;
+            name = key.substring(start, end);
+        } while (ShardedLayout.isShard(name));
+        return Optional.of(key.substring(0, end));
+    }
+
+    private record Location(SegmentStore store, String key) {
+    }
+}
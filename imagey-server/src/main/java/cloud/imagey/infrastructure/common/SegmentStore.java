@@ -0,0 +1,461 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cloud.imagey.infrastructure.IoProblemException;
+
+/**
+ * Stores small blobs in append-only segment files of one folder instead of one file per blob.
+ * Each record consists of a magic number, a sequence number, a timestamp, the key (an unsigned 16 bit length followed by the UTF-8 bytes),
+ * the data (a 32 bit length, which is {@code -1} for deletions, followed by the bytes) and a CRC32 of everything after the magic number.
+ * The offsets of the current records are kept in memory and are rebuilt by scanning the segments when the store is opened.
+ * A torn record at the end of the last segment, as left by a crash, is truncated during this scan.
+ * Overwritten and deleted records are reclaimed by {@link #compact()}, which copies the current records into new segments
+ * and deletes the older segments afterwards, oldest first, so a crash in between never revives a deleted blob.
+ */
+public class SegmentStore implements Closeable {
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final Logger LOG = LogManager.getLogger(SegmentStore.class);
+    private static final int MAGIC = 0x494d4753;
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES + Short.BYTES;
+    private static final int TRAILER_SIZE = Integer.BYTES;
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+    private static final int DELETED = -1;
+
+    private final File folder;
+    private final long maxSegmentSize;
+    private final boolean sync;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NavigableMap<String, Entry> entries = new TreeMap<>();
+    private final Map<Long, FileChannel> channels = new ConcurrentHashMap<>();
+    private boolean open;
+    private long activeSegment;
+    private long activeSize;
+    private long sequence;
+    private long totalSize;
+    private volatile long lastAccess;
+
+    /**
+     * @param folder the folder of the segment files
+     * @param maxSegmentSize the size, after which a new segment is started
+     * @param sync whether every write is forced to the storage device before it is acknowledged
+     */
+    public SegmentStore(File folder, long maxSegmentSize, boolean sync) {
+        this.folder = folder;
+        this.maxSegmentSize = maxSegmentSize;
+        this.sync = sync;
+    }
+
+    public Optional<Entry> stat(String key) {
+        return read(() -> Optional.ofNullable(entries.get(key)));
+    }
+
+    public Optional<byte[]> get(String key) {
+        return read(() -> Optional.ofNullable(entries.get(key)).map(this::readData));
+    }
+
+    /**
+     * Returns the keys, that start with the given prefix, in their natural order.
+     */
+    public SortedSet<String> keys(String prefix) {
+        return read(() -> new TreeSet<>(entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet()));
+    }
+
+    public Entry put(String key, byte[] data) {
+        return write(() -> {
+            Entry entry = append(key, ++sequence, System.currentTimeMillis(), data);
+            entries.put(key, entry);
+            return entry;
+        });
+    }
+
+    /**
+     * @return {@code true}, if the key was present
+     */
+    public boolean delete(String key) {
+        return write(() -> {
+            if (!entries.containsKey(key)) {
+                return false;
+            }
+            append(key, ++sequence, System.currentTimeMillis(), null);
+            entries.remove(key);
+            return true;
+        });
+    }
+
+    /**
+     * Forces the records written so far to the storage device. Segments, that are not active any more, were forced when they were rolled.
+     */
+    public void force() {
+        write(() -> {
+            force(activeSegment);
+            return null;
+        });
+    }
+
+    /**
+     * Returns the share of the segments, that is occupied by overwritten or deleted records.
+     */
+    public double garbageRatio() {
+        return read(() -> totalSize == 0 ? 0 : 1 - (double)liveSize() / totalSize);
+    }
+
+    /**
+     * Returns the time of the last access in milliseconds since the epoch.
+     */
+    public long lastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Copies the current records into new segments and deletes all older segments.
+     */
+    public void compact() {
+        write(() -> {
+            long firstSegment = activeSegment + 1;
+            LOG.info("Compacting {} from {} to {} bytes", folder, totalSize, liveSize());
+            roll(firstSegment);
+            totalSize = 0;
+            for (Map.Entry<String, Entry> current : entries.entrySet()) {
+                Entry entry = current.getValue();
+                current.setValue(append(current.getKey(), entry.sequence(), entry.timestamp(), readData(entry)));
+            }
+            force(activeSegment);
+            for (Long segment : new TreeSet<>(channels.keySet()).headSet(firstSegment)) {
+                closeChannel(segment);
+            }
+            for (Long segment : segments()) {
+                if (segment < firstSegment && !segmentFile(segment).delete()) {
+                    throw new IoProblemException("Failed to delete " + segmentFile(segment));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Closes the open segment files. They are opened again on the next access.
+     */
+    public void release() {
+        write(() -> {
+            for (Long segment : new ArrayList<>(channels.keySet())) {
+                closeChannel(segment);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (Long segment : new ArrayList<>(channels.keySet())) {
+                closeChannel(segment);
+            }
+            entries.clear();
+            open = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private <T> T read(Supplier<T> operation) {
+        lastAccess = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            if (isOpen()) {
+                return operation.get();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return write(operation);
+    }
+
+    private <T> T write(Supplier<T> operation) {
+        lastAccess = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            if (!isOpen()) {
+                recover();
+            }
+            return operation.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isOpen() {
+        return open && folder.isDirectory();
+    }
+
+    private void recover() {
+        for (Long segment : new ArrayList<>(channels.keySet())) {
+            closeChannel(segment);
+        }
+        entries.clear();
+        sequence = 0;
+        totalSize = 0;
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IoProblemException("Failed to create " + folder);
+        }
+        List<Long> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            activeSize = scan(segments.get(i), i == segments.size() - 1);
+            totalSize += activeSize;
+        }
+        activeSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        if (segments.isEmpty()) {
+            activeSize = 0;
+        }
+        open = true;
+    }
+
+    /**
+     * Reads the records of a segment into the index.
+     *
+     * @param last whether the segment is the last one, which is truncated after the last valid record
+     * @return the size of the valid records of the segment
+     */
+    private long scan(long segment, boolean last) {
+        try {
+            FileChannel channel = channel(segment);
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long recordEnd = scanRecord(channel, position, size, segment);
+                if (recordEnd < 0) {
+                    LOG.warn("Invalid record in {} at {}", segmentFile(segment), position);
+                    if (last) {
+                        channel.truncate(position);
+                        channel.force(true);
+                    }
+                    return position;
+                }
+                position = recordEnd;
+            }
+            return position;
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    /**
+     * @return the end of the record or {@code -1}, if the record is invalid or incomplete
+     */
+    private long scanRecord(FileChannel channel, long position, long size, long segment) throws IOException {
+        if (size - position < HEADER_SIZE) {
+            return -1;
+        }
+        ByteBuffer header = readFully(channel, position, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            return -1;
+        }
+        long recordSequence = header.getLong();
+        long timestamp = header.getLong();
+        int keyLength = Short.toUnsignedInt(header.getShort());
+        if (size - position < HEADER_SIZE + keyLength + Integer.BYTES) {
+            return -1;
+        }
+        ByteBuffer key = readFully(channel, position + HEADER_SIZE, keyLength + Integer.BYTES);
+        int dataLength = key.getInt(keyLength);
+        long dataOffset = position + HEADER_SIZE + keyLength + Integer.BYTES;
+        if (dataLength < DELETED || size - dataOffset < (long)Math.max(dataLength, 0) + TRAILER_SIZE) {
+            return -1;
+        }
+        ByteBuffer data = readFully(channel, dataOffset, Math.max(dataLength, 0) + TRAILER_SIZE);
+        CRC32 checksum = new CRC32();
+        checksum.update(header.rewind().position(Integer.BYTES));
+        checksum.update(key.rewind());
+        checksum.update(data.slice(0, Math.max(dataLength, 0)));
+        if ((int)checksum.getValue() != data.getInt(Math.max(dataLength, 0))) {
+            return -1;
+        }
+        String name = new String(key.array(), 0, keyLength, UTF_8);
+        sequence = Math.max(sequence, recordSequence);
+        Entry existing = entries.get(name);
+        if (existing == null || existing.sequence() <= recordSequence) {
+            if (dataLength == DELETED) {
+                entries.remove(name);
+            } else {
+                entries.put(name, new Entry(segment, dataOffset, dataLength, timestamp, recordSequence));
+            }
+        }
+        return dataOffset + Math.max(dataLength, 0) + TRAILER_SIZE;
+    }
+
+    private Entry append(String key, long recordSequence, long timestamp, byte[] data) {
+        byte[] name = key.getBytes(UTF_8);
+        if (name.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        int dataLength = data != null ? data.length : DELETED;
+        int recordSize = HEADER_SIZE + name.length + Integer.BYTES + Math.max(dataLength, 0) + TRAILER_SIZE;
+        if (activeSize > 0 && activeSize + recordSize > maxSegmentSize) {
+            force(activeSegment);
+            roll(activeSegment + 1);
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(MAGIC).putLong(recordSequence).putLong(timestamp).putShort((short)name.length).put(name).putInt(dataLength);
+        if (data != null) {
+            record.put(data);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), Integer.BYTES, record.position() - Integer.BYTES);
+        record.putInt((int)checksum.getValue()).flip();
+        long position = activeSize;
+        try {
+            FileChannel channel = channel(activeSegment);
+            while (record.hasRemaining()) {
+                channel.write(record, position + record.position());
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+        activeSize += recordSize;
+        totalSize += recordSize;
+        long dataOffset = position + HEADER_SIZE + name.length + Integer.BYTES;
+        return new Entry(activeSegment, dataOffset, dataLength, timestamp, recordSequence);
+    }
+
+    private void roll(long segment) {
+        activeSegment = segment;
+        activeSize = 0;
+    }
+
+    private byte[] readData(Entry entry) {
+        try {
+            return readFully(channel(entry.segment()), entry.offset(), entry.length()).array();
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    private ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private long liveSize() {
+        long size = 0;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            size += HEADER_SIZE + entry.getKey().getBytes(UTF_8).length + Integer.BYTES + entry.getValue().length() + TRAILER_SIZE;
+        }
+        return size;
+    }
+
+    private List<Long> segments() {
+        List<Long> segments = new ArrayList<>();
+        String[] names = folder.list((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        for (String name : names != null ? names : new String[0]) {
+            try {
+                segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring {} in {}", name, folder);
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(folder, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private FileChannel channel(long segment) throws IOException {
+        FileChannel channel = channels.get(segment);
+        if (channel == null || !channel.isOpen()) {
+            synchronized (channels) {
+                channel = channels.get(segment);
+                if (channel == null || !channel.isOpen()) {
+                    channel = FileChannel.open(segmentFile(segment).toPath(), READ, WRITE, CREATE);
+                    channels.put(segment, channel);
+                }
+            }
+        }
+        return channel;
+    }
+
+    private void force(long segment) {
+        try {
+            channel(segment).force(true);
+        } catch (IOException e) {
+            throw new IoProblemException(e);
+        }
+    }
+
+    private void closeChannel(long segment) {
+        FileChannel channel = channels.remove(segment);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close {}", segmentFile(segment), e);
+            }
+        }
+    }
+
+    /**
+     * The location of a blob in the segments.
+     *
+     * @param segment the number of the segment
+     * @param offset the offset of the data within the segment
+     * @param length the length of the data
+     * @param timestamp the time the blob was written in milliseconds since the epoch
+     * @param sequence the number of the write, which is unique within the store
+     */
+    public record Entry(long segment, long offset, int length, long timestamp, long sequence) {
+    }
+}
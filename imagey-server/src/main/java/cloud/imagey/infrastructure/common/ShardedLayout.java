@@ -0,0 +1,142 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Spreads the user homes below {@code root.path} and the document folders below {@code documents}
+ * over two levels of folders named after the first bytes of the SHA-256 hash of their names,
+ * e.g. {@code alice@imagey.cloud/documents/42} is stored at {@code 9f/3a/alice@imagey.cloud/documents/c1/07/42}.
+ * This keeps the folders small, when there are many users or documents.
+ * Keys are translated from the flat layout, which the repositories address, to the sharded layout.
+ * Blobs, that are not yet migrated from the flat layout, are still found there.
+ */
+public class ShardedLayout {
+
+    static final String DOCUMENTS = "documents";
+
+    private static final Logger LOG = LogManager.getLogger(ShardedLayout.class);
+    private static final int SHARD_LENGTH = 2;
+    private static final String HEX_DIGITS = "0123456789abcdef";
+
+    private final Storage storage;
+
+    public ShardedLayout(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Returns the keys, that may contain the blob of the key of the flat layout: the sharded key first,
+     * the flat key second, when it differs.
+     */
+    public List<String> locations(String key) {
+        String sharded = shard(key);
+        return sharded.equals(key) ? List.of(key) : List.of(sharded, key);
+    }
+
+    /**
+     * Translates a key of the flat layout into the sharded layout.
+     */
+    public String shard(String key) {
+        if (key.isEmpty()) {
+            return key;
+        }
+        String[] path = key.split("/", -1);
+        StringBuilder sharded = new StringBuilder(prefix(path[0])).append(path[0]);
+        for (int i = 1; i < path.length; i++) {
+            sharded.append('/');
+            if (i == 2 && path[1].equals(DOCUMENTS)) {
+                sharded.append(prefix(path[i]));
+            }
+            sharded.append(path[i]);
+        }
+        return sharded.toString();
+    }
+
+    /**
+     * Returns the children of a folder of the flat layout from both layouts.
+     */
+    public SortedSet<String> children(String folder) {
+        SortedSet<String> children = new TreeSet<>();
+        if (isSharded(folder)) {
+            String shardedFolder = shard(folder);
+            String prefix = shardedFolder.isEmpty() ? "" : shardedFolder + "/";
+            for (String first : shards(shardedFolder)) {
+                for (String second : shards(prefix + first)) {
+                    children.addAll(storage.children(prefix + first + "/" + second));
+                }
+            }
+            storage.children(folder).stream().filter(name -> !isShard(name)).forEach(children::add);
+        } else {
+            for (String location : locations(folder)) {
+                children.addAll(storage.children(location));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Moves all users and documents, that are still stored in the flat layout, into the sharded layout.
+     * The documents of a user are moved one by one, so a user with many documents is never moved at once.
+     */
+    public void migrate() {
+        for (String user : storage.children("")) {
+            if (!isShard(user)) {
+                LOG.info("Moving {} into the sharded layout", user);
+                for (String documentId : storage.children(user + "/" + DOCUMENTS)) {
+                    String documentFolder = user + "/" + DOCUMENTS + "/" + documentId;
+                    storage.move(documentFolder, shard(documentFolder));
+                }
+                storage.move(user, shard(user));
+            }
+        }
+    }
+
+    private boolean isSharded(String folder) {
+        return folder.isEmpty() || folder.split("/").length == 2 && folder.endsWith("/" + DOCUMENTS);
+    }
+
+    private SortedSet<String> shards(String folder) {
+        SortedSet<String> shards = new TreeSet<>(storage.children(folder));
+        shards.removeIf(name -> !isShard(name));
+        return shards;
+    }
+
+    static boolean isShard(String name) {
+        return name.length() == SHARD_LENGTH && name.chars().allMatch(c -> HEX_DIGITS.indexOf(c) >= 0);
+    }
+
+    private static String prefix(String name) {
+        try {
+            String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(name.getBytes(UTF_8)));
+            return hash.substring(0, SHARD_LENGTH) + "/" + hash.substring(SHARD_LENGTH, 2 * SHARD_LENGTH) + "/";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
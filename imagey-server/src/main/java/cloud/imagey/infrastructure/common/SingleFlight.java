@@ -0,0 +1,114 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller loads the value and all callers,
+ * that request the key while it is loaded, get the same value or exception instead of loading it again.
+ * A caller waits at most the configured time for the load of another caller and loads the value itself afterwards,
+ * so a slow load does not block the waiting callers indefinitely.
+ */
+public class SingleFlight<K, V> implements SingleFlightMXBean {
+
+    private final Map<K, CompletableFuture<V>> loads = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+
+    /**
+     * @param timeoutMillis the maximum time to wait for the load of another caller
+     */
+    public SingleFlight(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public V load(K key, Supplier<V> loader) {
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> running = loads.putIfAbsent(key, load);
+        if (running != null) {
+            return await(running, loader);
+        }
+        loadCount.increment();
+        try {
+            V value = loader.get();
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(key, load);
+        }
+    }
+
+    @Override
+    public long getLoads() {
+        return loadCount.sum();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalescedCount.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeoutCount.sum();
+    }
+
+    @Override
+    public double getCoalescingRatio() {
+        long coalesced = coalescedCount.sum();
+        long requests = loadCount.sum() + coalesced;
+        return requests == 0 ? 0 : (double)coalesced / requests;
+    }
+
+    private V await(CompletableFuture<V> running, Supplier<V> loader) {
+        try {
+            V value = running.get(timeoutMillis, MILLISECONDS);
+            coalescedCount.increment();
+            return value;
+        } catch (TimeoutException e) {
+            timeoutCount.increment();
+            loadCount.increment();
+            return loader.get();
+        } catch (ExecutionException e) {
+            coalescedCount.increment();
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a concurrent load", e);
+        }
+    }
+}
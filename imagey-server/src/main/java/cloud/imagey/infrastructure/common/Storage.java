@@ -0,0 +1,104 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.SortedSet;
+
+/**
+ * Service provider interface of the backends, that store the blobs of the repositories.
+ * Blobs are addressed by keys, which are paths relative to {@code root.path} with {@code /} as separator,
+ * i.e. the directory layout of the {@link FileStorage}. A key is a folder, when there are blobs below it.
+ * Names starting with a dot are reserved for the internal files of the backends and are never listed.
+ * Implementations must be thread-safe and a completed {@link #write(String, byte[])} must be visible to all threads.
+ */
+public interface Storage extends AutoCloseable {
+
+    Optional<byte[]> read(String key);
+
+    /**
+     * Opens a blob for streaming, e.g. when it may be too large to be read into memory.
+     */
+    Optional<InputStream> open(String key);
+
+    Optional<BlobInfo> stat(String key);
+
+    /**
+     * Creates or replaces a blob. Readers see either the old or the new data, never a part of it.
+     */
+    BlobInfo write(String key, byte[] data);
+
+    /**
+     * Creates or replaces a blob with the data of the stream, which is not closed.
+     */
+    BlobInfo write(String key, InputStream data);
+
+    /**
+     * Returns the file, where the blob of the key is stored, if it is stored as a file.
+     * It is used to access large blobs like content files directly.
+     */
+    File file(String key);
+
+    /**
+     * Forces a written blob to the storage device, e.g. before the journal, that recorded the write, is truncated.
+     * A blob, that does not exist any more, is ignored.
+     */
+    default void force(String key) {
+        FileStorage.force(file(key));
+    }
+
+    /**
+     * Deletes a blob or a folder with all blobs below it.
+     *
+     * @return {@code true}, if anything was deleted
+     */
+    boolean delete(String key);
+
+    /**
+     * Moves a blob or a folder with all blobs below it. Blobs, that already exist at the target, are kept
+     * and their source is dropped, so a move can be repeated to pick up blobs written to the source in the meantime.
+     *
+     * @return {@code true}, if anything was moved
+     */
+    boolean move(String source, String target);
+
+    /**
+     * Returns the names of the blobs and folders directly below the folder in their natural order.
+     */
+    SortedSet<String> children(String folder);
+
+    /**
+     * Returns whether the key is a blob or a folder.
+     */
+    default boolean exists(String key) {
+        return stat(key).isPresent() || !children(key).isEmpty();
+    }
+
+    /**
+     * Does background work like compactions. It is called periodically, while the storage is in use.
+     *
+     * @param idleSince resources, that were not accessed since then (in milliseconds since the epoch), may be released
+     */
+    default void maintain(long idleSince) {
+    }
+
+    @Override
+    default void close() {
+    }
+}
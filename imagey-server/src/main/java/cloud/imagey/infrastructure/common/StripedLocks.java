@@ -0,0 +1,69 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * A fixed number of reentrant read-write locks guarding an unbounded number of keys.
+ * Keys with the same stripe share a lock, so actions on different keys rarely wait for each other,
+ * without creating a lock per key or a global lock.
+ * Readers of a key share its lock, while a writer holds it exclusively. A writer may read, but a reader must not write.
+ */
+public class StripedLocks {
+
+    private static final int HASH_SPREAD = 16;
+
+    private final ReentrantReadWriteLock[] locks;
+
+    public StripedLocks(int stripes) {
+        locks = new ReentrantReadWriteLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Runs the action exclusively for the key.
+     */
+    public <T> T locked(Object key, Supplier<T> action) {
+        return locked(locks[stripe(key)].writeLock(), action);
+    }
+
+    /**
+     * Runs the action for the key, while no action runs exclusively for it.
+     */
+    public <T> T readLocked(Object key, Supplier<T> action) {
+        return locked(locks[stripe(key)].readLock(), action);
+    }
+
+    private <T> T locked(Lock lock, Supplier<T> action) {
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int stripe(Object key) {
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> HASH_SPREAD), locks.length);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.util.Optional.empty;
+import static java.util.Optional.of;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Caches the thumbnails of the documents, i.e. the files named like {@code thumbnail.cache.names},
+ * in an {@link OffHeapArena} of {@code thumbnail.cache.size} bytes, so the most requested bytes are neither read
+ * from disk again nor kept on the heap, where they would prolong garbage collections.
+ * A thumbnail is admitted, when it is not larger than {@code thumbnail.cache.max-entry-size}
+ * and it is requested for the second time, and it stays cached according to the frequency of its requests.
+ * The cached thumbnails are validated with the version of the file, so replaced files are never served from the cache.
+ */
+@ApplicationScoped
+public class ThumbnailCache {
+
+    private static final Logger LOG = LogManager.getLogger(ThumbnailCache.class);
+    private static final int ADMISSION_FREQUENCY = 2;
+
+    @Inject
+    @ConfigProperty(name = "thumbnail.cache.size", defaultValue = "67108864")
+    private long size;
+    @Inject
+    @ConfigProperty(name = "thumbnail.cache.chunk-size", defaultValue = "8192")
+    private int chunkSize;
+    @Inject
+    @ConfigProperty(name = "thumbnail.cache.max-entry-size", defaultValue = "1048576")
+    private long maxEntrySize;
+    @Inject
+    @ConfigProperty(name = "thumbnail.cache.names", defaultValue = "small,preview")
+    private List<String> names;
+
+    private OffHeapArena arena;
+    private WeightedCache<File, OffHeapContent> cache;
+    private final LongAdder prefetchHits = new LongAdder();
+
+    public ThumbnailCache() {
+    }
+
+    public ThumbnailCache(long size, int chunkSize, long maxEntrySize, List<String> names) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.maxEntrySize = maxEntrySize;
+        this.names = names;
+        openCache();
+    }
+
+    @PostConstruct
+    public void openCache() {
+        if (size <= 0) {
+            return;
+        }
+        arena = new OffHeapArena(size, chunkSize);
+        cache = new WeightedCache<>(size, OffHeapContent::weight, OffHeapContent::release);
+        MBeans.register("Cache", "thumbnails", cache);
+    }
+
+    /**
+     * Returns the cached content of a thumbnail, which has to be released after reading it.
+     */
+    public Optional<OffHeapContent> open(File file) {
+        if (cache == null || !names.contains(file.getName())) {
+            return empty();
+        }
+        Optional<BlobInfo> info = BlobInfo.of(file);
+        if (info.isEmpty()) {
+            return empty();
+        }
+        OffHeapContent cached = cache.getIfPresent(file);
+        if (cached != null && cached.version().equals(info.get().version()) && cached.retain()) {
+            if (cached.takePrefetched()) {
+                prefetchHits.increment();
+            }
+            return of(cached);
+        }
+        if (info.get().length() > maxEntrySize || cache.frequency(file) < ADMISSION_FREQUENCY) {
+            return empty();
+        }
+        return load(file, info.get());
+    }
+
+    /**
+     * Loads a thumbnail into the cache before it is requested, regardless of how often it was requested before.
+     *
+     * @return the number of bytes read, i.e. 0, if the thumbnail is cached already or can't be cached
+     */
+    public long prefetch(File file) {
+        Optional<BlobInfo> info = caches(file) ? BlobInfo.of(file) : Optional.empty();
+        if (info.isEmpty() || info.get().length() > maxEntrySize) {
+            return 0;
+        }
+        OffHeapContent cached = cache.peek(file);
+        if (cached != null && cached.version().equals(info.get().version())) {
+            return 0;
+        }
+        Optional<OffHeapContent> loaded = load(file, info.get());
+        loaded.ifPresent(content -> {
+            content.markPrefetched();
+            content.release();
+        });
+        return loaded.map(OffHeapContent::length).orElse(0L);
+    }
+
+    /**
+     * Returns how many prefetched thumbnails were requested afterwards.
+     */
+    public long prefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    /**
+     * Returns the content of a cached thumbnail as byte array.
+     */
+    public Optional<byte[]> read(File file) {
+        return open(file).map(content -> {
+            try {
+                return content.toByteArray();
+            } finally {
+                content.release();
+            }
+        });
+    }
+
+    /**
+     * Returns whether the file is served from this cache, if it is requested often enough.
+     */
+    public boolean caches(File file) {
+        return cache != null && names.contains(file.getName());
+    }
+
+    public CacheMetricsMXBean metrics() {
+        return cache;
+    }
+
+    private Optional<OffHeapContent> load(File file, BlobInfo info) {
+        try {
+            OffHeapContent loaded = OffHeapContent.load(arena, file, info, cache::evict);
+            if (loaded == null) {
+                return empty();
+            }
+            loaded.retain();
+            cache.put(file, loaded);
+            return of(loaded);
+        } catch (IOException e) {
+            LOG.warn("Caching {} failed", file, e);
+            return empty();
+        }
+    }
+}
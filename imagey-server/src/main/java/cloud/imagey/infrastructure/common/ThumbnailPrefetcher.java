@@ -0,0 +1,252 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Reads the thumbnails of a listing in the background, before the client requests them one by one in listing order.
+ * The first {@code prefetch.count} thumbnails are loaded into the {@link ThumbnailCache}
+ * or, if they are not cached there, into the page cache of the operating system.
+ * The prefetches run in a pool of {@code prefetch.threads} threads with a bounded queue,
+ * each reads at most {@code prefetch.max-bytes}, and a prefetch is cancelled, when the next listing of the same owner
+ * replaces it or the owner requested no thumbnail for {@code prefetch.idle-timeout} seconds.
+ * {@code prefetch.enabled=false} switches prefetching off.
+ */
+@ApplicationScoped
+public class ThumbnailPrefetcher implements PrefetchMetricsMXBean {
+
+    private static final Logger LOG = LogManager.getLogger(ThumbnailPrefetcher.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    @Inject
+    @ConfigProperty(name = "prefetch.enabled", defaultValue = "true")
+    private boolean enabled;
+    @Inject
+    @ConfigProperty(name = "prefetch.count", defaultValue = "60")
+    private int count;
+    @Inject
+    @ConfigProperty(name = "prefetch.threads", defaultValue = "2")
+    private int threads;
+    @Inject
+    @ConfigProperty(name = "prefetch.queue-size", defaultValue = "100")
+    private int queueSize;
+    @Inject
+    @ConfigProperty(name = "prefetch.max-bytes", defaultValue = "8388608")
+    private long maxBytes;
+    @Inject
+    @ConfigProperty(name = "prefetch.idle-timeout", defaultValue = "30")
+    private long idleTimeout;
+    @Inject
+    private ThumbnailCache thumbnailCache;
+
+    private final Map<String, Prefetch> prefetches = new ConcurrentHashMap<>();
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder prefetchedFiles = new LongAdder();
+    private final LongAdder prefetchedBytes = new LongAdder();
+    private ThreadPoolExecutor executor;
+
+    public ThumbnailPrefetcher() {
+    }
+
+    public ThumbnailPrefetcher(ThumbnailCache thumbnailCache, int count, int threads, long maxBytes, long idleTimeout) {
+        this.thumbnailCache = thumbnailCache;
+        this.enabled = true;
+        this.count = count;
+        this.threads = threads;
+        this.queueSize = count;
+        this.maxBytes = maxBytes;
+        this.idleTimeout = idleTimeout;
+        start();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            LOG.info("Prefetching of thumbnails is disabled");
+            return;
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 0, SECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "thumbnail-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        MBeans.register("Prefetch", "thumbnails", this);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            MBeans.unregister("Prefetch", "thumbnails");
+        }
+    }
+
+    /**
+     * Schedules the prefetch of the thumbnails of a listing and cancels the previous prefetch of the owner.
+     *
+     * @param owner the owner of the thumbnails, whose requests keep the prefetch alive
+     * @param thumbnails the thumbnails in the order they are expected to be requested
+     */
+    public void prefetch(String owner, List<File> thumbnails) {
+        if (executor == null || thumbnails.isEmpty()) {
+            return;
+        }
+        Prefetch prefetch = new Prefetch(owner, List.copyOf(thumbnails.subList(0, Math.min(count, thumbnails.size()))));
+        cancel(prefetches.put(owner, prefetch));
+        try {
+            executor.execute(() -> run(prefetch));
+            scheduled.increment();
+        } catch (RejectedExecutionException e) {
+            prefetches.remove(owner, prefetch);
+            rejected.increment();
+        }
+    }
+
+    /**
+     * Records, that the owner is still requesting thumbnails, so the prefetch is not cancelled as idle.
+     */
+    public void touch(String owner) {
+        Prefetch prefetch = prefetches.get(owner);
+        if (prefetch != null) {
+            prefetch.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    public void cancel(String owner) {
+        cancel(prefetches.remove(owner));
+    }
+
+    @Override
+    public long getScheduled() {
+        return scheduled.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    @Override
+    public long getPrefetchedFiles() {
+        return prefetchedFiles.sum();
+    }
+
+    @Override
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.sum();
+    }
+
+    @Override
+    public long getHits() {
+        return thumbnailCache.prefetchHits();
+    }
+
+    @Override
+    public double getHitRate() {
+        long files = prefetchedFiles.sum();
+        return files == 0 ? 0 : (double)getHits() / files;
+    }
+
+    private void cancel(Prefetch prefetch) {
+        if (prefetch != null && !prefetch.cancelled) {
+            prefetch.cancelled = true;
+            cancelled.increment();
+        }
+    }
+
+    private void run(Prefetch prefetch) {
+        long bytes = 0;
+        for (File thumbnail : prefetch.thumbnails) {
+            if (prefetch.cancelled || bytes >= maxBytes || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (System.currentTimeMillis() - prefetch.lastActivity > SECONDS.toMillis(idleTimeout)) {
+                cancel(prefetch);
+                break;
+            }
+            try {
+                long read = thumbnailCache.caches(thumbnail) ? thumbnailCache.prefetch(thumbnail) : readIntoPageCache(thumbnail);
+                if (read > 0) {
+                    prefetchedFiles.increment();
+                    prefetchedBytes.add(read);
+                    bytes += read;
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Prefetching {} failed", thumbnail, e);
+            }
+        }
+        prefetches.remove(prefetch.owner, prefetch);
+    }
+
+    private long readIntoPageCache(File file) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        ByteBuffer buffer = READ_BUFFER.get();
+        long read = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            for (int bytes = channel.read(buffer.clear()); bytes > 0; bytes = channel.read(buffer.clear())) {
+                read += bytes;
+            }
+        }
+        return read;
+    }
+
+    private static final class Prefetch {
+
+        private final String owner;
+        private final List<File> thumbnails;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile boolean cancelled;
+
+        private Prefetch(String owner, List<File> thumbnails) {
+            this.owner = owner;
+            this.thumbnails = thumbnails;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.File;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the operations on a data volume. Streams opened for reading count as a read without bytes.
+ */
+public class VolumeMetrics implements VolumeMetricsMXBean {
+
+    private final File root;
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder readTime = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writeTime = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder usersMovedIn = new LongAdder();
+
+    public VolumeMetrics(File root) {
+        this.root = root;
+    }
+
+    void read(long bytes, long startNanos) {
+        reads.increment();
+        bytesRead.add(bytes);
+        readTime.add(System.nanoTime() - startNanos);
+    }
+
+    void written(long bytes, long startNanos) {
+        writes.increment();
+        bytesWritten.add(bytes);
+        writeTime.add(System.nanoTime() - startNanos);
+    }
+
+    void deleted() {
+        deletes.increment();
+    }
+
+    void userMovedIn() {
+        usersMovedIn.increment();
+    }
+
+    @Override
+    public String getPath() {
+        return root.getPath();
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getReadTimeMillis() {
+        return NANOSECONDS.toMillis(readTime.sum());
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getWriteTimeMillis() {
+        return NANOSECONDS.toMillis(writeTime.sum());
+    }
+
+    @Override
+    public long getDeletes() {
+        return deletes.sum();
+    }
+
+    @Override
+    public long getUsersMovedIn() {
+        return usersMovedIn.sum();
+    }
+
+    @Override
+    public long getUsableSpace() {
+        return root.getUsableSpace();
+    }
+
+    @Override
+    public long getTotalSpace() {
+        return root.getTotalSpace();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+/**
+ * I/O metrics of a data volume, which are exposed via JMX as {@code cloud.imagey:type=Volume,name="<path>"}.
+ */
+public interface VolumeMetricsMXBean {
+
+    String getPath();
+
+    long getReads();
+
+    long getBytesRead();
+
+    long getReadTimeMillis();
+
+    long getWrites();
+
+    long getBytesWritten();
+
+    long getWriteTimeMillis();
+
+    long getDeletes();
+
+    long getUsersMovedIn();
+
+    long getUsableSpace();
+
+    long getTotalSpace();
+}
@@ -0,0 +1,341 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cloud.imagey.infrastructure.IoProblemException;
+
+/**
+ * Spreads the users over several data volumes, each with its own {@link Storage}.
+ * A user is placed on a volume by a consistent hash ring with virtual nodes, so adding a volume only moves
+ * the users, that the new volume takes over. These are moved by {@link #rebalance()},
+ * while they stay readable from their old volume. The volumes are fixed while the storage is open,
+ * so volumes are added or removed by a restart. The tree of a user, i.e. the folder named after the user
+ * in the flat or the {@link ShardedLayout}, is always stored on one volume.
+ * Keys above the user trees, like the root, are spread over all volumes.
+ */
+public class VolumeStorage implements Storage {
+
+    private static final Logger LOG = LogManager.getLogger(VolumeStorage.class);
+    private static final int VIRTUAL_NODES = 128;
+    private static final int MAX_SHARD_LEVELS = 2;
+
+    private final List<Volume> volumes;
+    private final NavigableMap<Long, Volume> ring = new TreeMap<>();
+    private final Map<String, Volume> placements = new ConcurrentHashMap<>();
+    private final Map<String, Volume> moving = new ConcurrentHashMap<>();
+
+    /**
+     * @param volumes the volumes, the first one is the primary volume, which stores the keys, that belong to no user
+     */
+    public VolumeStorage(List<Volume> volumes) {
+        this.volumes = List.copyOf(volumes);
+        for (Volume volume : volumes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(volume.root().getPath() + "#" + i), volume);
+            }
+        }
+    }
+
+    public List<Volume> volumes() {
+        return volumes;
+    }
+
+    @Override
+    public Optional<byte[]> read(String key) {
+        long start = System.nanoTime();
+        return find(key, (volume, data) -> {
+            volume.metrics().read(data.length, start);
+            return data;
+        }, Storage::read);
+    }
+
+    @Override
+    public Optional<InputStream> open(String key) {
+        long start = System.nanoTime();
+        return find(key, (volume, data) -> {
+            volume.metrics().read(0, start);
+            return data;
+        }, Storage::open);
+    }
+
+    @Override
+    public Optional<BlobInfo> stat(String key) {
+        return find(key, (volume, info) -> info, Storage::stat);
+    }
+
+    @Override
+    public BlobInfo write(String key, byte[] data) {
+        long start = System.nanoTime();
+        Volume volume = volume(key);
+        BlobInfo info = volume.storage().write(key, data);
+        volume.metrics().written(data.length, start);
+        return info;
+    }
+
+    @Override
+    public BlobInfo write(String key, InputStream data) {
+        long start = System.nanoTime();
+        Volume volume = volume(key);
+        BlobInfo info = volume.storage().write(key, data);
+        volume.metrics().written(info.length(), start);
+        return info;
+    }
+
+    @Override
+    public File file(String key) {
+        List<Volume> candidates = candidates(key);
+        return candidates.stream().map(volume -> volume.storage().file(key)).filter(File::exists).findFirst()
+            .orElseGet(() -> candidates.get(0).storage().file(key));
+    }
+
+    @Override
+    public void force(String key) {
+        candidates(key).forEach(volume -> volume.storage().force(key));
+    }
+
+    @Override
+    public boolean delete(String key) {
+        boolean deleted = false;
+        for (Volume volume : candidates(key)) {
+            if (volume.storage().delete(key)) {
+                volume.metrics().deleted();
+                deleted = true;
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return candidates(key).stream().anyMatch(volume -> volume.storage().exists(key));
+    }
+
+    @Override
+    public SortedSet<String> children(String folder) {
+        SortedSet<String> children = new TreeSet<>();
+        for (Volume volume : candidates(folder)) {
+            children.addAll(volume.storage().children(folder));
+        }
+        return children;
+    }
+
+    /**
+     * Moves within a volume, if the source and the target belong to the same one, and copies between the volumes otherwise.
+     */
+    @Override
+    public boolean move(String source, String target) {
+        if (tree(source).isEmpty() || tree(target).isEmpty()) {
+            boolean moved = false;
+            for (Volume volume : volumes) {
+                moved |= volume.storage().move(source, target);
+            }
+            return moved;
+        }
+        Volume targetVolume = volume(target);
+        boolean moved = false;
+        for (Volume volume : candidates(source)) {
+            if (volume == targetVolume) {
+                moved |= volume.storage().move(source, target);
+            } else if (volume.storage().exists(source)) {
+                copy(volume, source, targetVolume, target);
+                volume.storage().delete(source);
+                moved = true;
+            }
+        }
+        return moved;
+    }
+
+    @Override
+    public void maintain(long idleSince) {
+        volumes.forEach(volume -> volume.storage().maintain(idleSince));
+    }
+
+    @Override
+    public void close() {
+        volumes.forEach(volume -> volume.storage().close());
+    }
+
+    /**
+     * Moves the users, that are not stored on the volume the ring places them on, to that volume.
+     * While a user is moved, new blobs are written to the new volume and blobs, that are not copied yet,
+     * are read from the old volume. A user, whose move fails, is still read from both volumes and moved again
+     * by the next rebalance.
+     * It must be called before the storage is used: files, that are accessed directly by {@link #file(String)},
+     * could be written on the old volume after they were copied, and would be lost when the old tree is deleted.
+     */
+    public void rebalance() {
+        for (Volume volume : volumes) {
+            for (String tree : trees(volume.storage())) {
+                Volume owner = owner(tree);
+                if (owner != volume) {
+                    LOG.info("Moving {} from {} to {}", tree, volume.root(), owner.root());
+                    moving.put(tree, volume);
+                    placements.put(tree, owner);
+                    copy(volume, tree, owner, tree);
+                    volume.storage().delete(tree);
+                    moving.remove(tree);
+                    owner.metrics().userMovedIn();
+                }
+            }
+        }
+    }
+
+    private <T> Optional<T> find(String key, BiFunction<Volume, T, T> found, BiFunction<Storage, String, Optional<T>> operation) {
+        for (Volume volume : candidates(key)) {
+            Optional<T> result = operation.apply(volume.storage(), key);
+            if (result.isPresent()) {
+                return Optional.of(found.apply(volume, result.get()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the volumes, that may store the key: the volume of the user and, while the user is moved,
+     * its old volume, or all volumes for keys above the user trees.
+     */
+    private List<Volume> candidates(String key) {
+        Optional<String> tree = tree(key);
+        if (tree.isEmpty()) {
+            return volumes;
+        }
+        List<Volume> candidates = new ArrayList<>(List.of(placement(tree.get())));
+        Volume source = moving.get(tree.get());
+        if (source != null && source != candidates.get(0)) {
+            candidates.add(source);
+        }
+        return candidates;
+    }
+
+    private Volume volume(String key) {
+        return tree(key).map(this::placement).orElse(volumes.get(0));
+    }
+
+    /**
+     * Returns the volume of the user tree: the volume of the ring, if the tree is stored there or nowhere,
+     * otherwise the volume the tree is found on, as it was not moved yet.
+     */
+    private Volume placement(String tree) {
+        return placements.computeIfAbsent(tree, t -> {
+            Volume owner = owner(t);
+            if (owner.storage().exists(t)) {
+                return owner;
+            }
+            return volumes.stream().filter(volume -> volume.storage().exists(t)).findFirst().orElse(owner);
+        });
+    }
+
+    private Volume owner(String tree) {
+        String user = tree.substring(tree.lastIndexOf('/') + 1);
+        Map.Entry<Long, Volume> node = ring.ceilingEntry(hash(user));
+        return (node != null ? node : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * Returns the user tree of a key, i.e. the key up to the folder of the user below the optional shard folders.
+     */
+    private Optional<String> tree(String key) {
+        if (key.isEmpty()) {
+            return Optional.empty();
+        }
+        String[] path = key.split("/");
+        int user = 0;
+        while (user < path.length - 1 && user < MAX_SHARD_LEVELS && ShardedLayout.isShard(path[user])) {
+            user++;
+        }
+        if (ShardedLayout.isShard(path[user])) {
+            return Optional.empty();
+        }
+        return Optional.of(String.join("/", Arrays.copyOf(path, user + 1)));
+    }
+
+    /**
+     * Returns the user trees of the storage of a volume in the flat and in the sharded layout.
+     */
+    private List<String> trees(Storage storage) {
+        List<String> trees = new ArrayList<>();
+        for (String first : storage.children("")) {
+            if (!ShardedLayout.isShard(first)) {
+                trees.add(first);
+                continue;
+            }
+            for (String second : storage.children(first)) {
+                if (ShardedLayout.isShard(second)) {
+                    storage.children(first + "/" + second).forEach(user -> trees.add(first + "/" + second + "/" + user));
+                }
+            }
+        }
+        return trees;
+    }
+
+    /**
+     * Copies the blobs from one volume to another. Blobs, that already exist on the target, are not overwritten.
+     */
+    private void copy(Volume from, String source, Volume to, String target) {
+        if (from.storage().stat(source).isPresent() && to.storage().stat(target).isEmpty()) {
+            long start = System.nanoTime();
+            Optional<InputStream> data = from.storage().open(source);
+            if (data.isPresent()) {
+                try (InputStream input = data.get()) {
+                    to.metrics().written(to.storage().write(target, input).length(), start);
+                } catch (IOException e) {
+                    throw new IoProblemException(e);
+                }
+            }
+        }
+        for (String child : from.storage().children(source)) {
+            copy(from, source + "/" + child, to, target + "/" + child);
+        }
+    }
+
+    private static long hash(String value) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF_8))).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A data volume with the storage of its root folder.
+     */
+    public record Volume(File root, Storage storage, VolumeMetrics metrics) {
+    }
+}
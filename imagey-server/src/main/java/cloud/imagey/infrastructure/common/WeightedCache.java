@@ -0,0 +1,290 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * An in-memory cache bounded by the weight of its values, e.g. their size in bytes.
+ * New values enter a small LRU window, where the value put last always stays, until the next value is put.
+ * Values leaving the window are admitted to the main LRU area
+ * only if they were requested more often than the least recently used value they would evict (W-TinyLFU),
+ * so values that are read once, e.g. while scrolling through a large listing, do not flush the frequently read ones.
+ * The frequencies are estimated by a {@link FrequencySketch}, which also counts requests for values that are not cached.
+ * Values, that are evicted, replaced, invalidated or not admitted, are passed to the removal listener, e.g. to free their memory.
+ */
+public class WeightedCache<K, V> implements CacheMetricsMXBean {
+
+    private static final double WINDOW_RATIO = 0.01;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final long AVERAGE_WEIGHT = 256;
+
+    private final long maximumWeight;
+    private final long windowMaximumWeight;
+    private final ToLongFunction<V> weigher;
+    private final Consumer<V> removalListener;
+    private final Map<K, Weighted<V>> window = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private final Map<K, Weighted<V>> main = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private final FrequencySketch sketch;
+    private long windowWeight;
+    private long mainWeight;
+    private long invalidations;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maximumWeight the maximum total weight of the cached values, 0 disables the cache
+     * @param weigher calculates the weight of a value
+     */
+    public WeightedCache(long maximumWeight, ToLongFunction<V> weigher) {
+        this(maximumWeight, weigher, value -> { });
+    }
+
+    /**
+     * @param maximumWeight the maximum total weight of the cached values, 0 disables the cache
+     * @param weigher calculates the weight of a value
+     * @param removalListener is called with every value, that leaves the cache
+     */
+    public WeightedCache(long maximumWeight, ToLongFunction<V> weigher, Consumer<V> removalListener) {
+        this.maximumWeight = maximumWeight;
+        this.windowMaximumWeight = (long)(maximumWeight * WINDOW_RATIO);
+        this.weigher = weigher;
+        this.removalListener = removalListener;
+        this.sketch = new FrequencySketch(maximumWeight / AVERAGE_WEIGHT);
+    }
+
+    /**
+     * Returns the cached value or loads it. A value, that is invalidated while it is loaded
+     * or is heavier than the cache, is not cached and not passed to the removal listener.
+     * If the value was loaded concurrently by another caller, the value cached first is returned
+     * and the other one is passed to the removal listener.
+     *
+     * @param loader loads the value, may return {@code null}, which is not cached
+     */
+    public V get(K key, Function<K, V> loader) {
+        long invalidationsBeforeLoad;
+        synchronized (this) {
+            V value = getIfPresent(key);
+            if (value != null) {
+                return value;
+            }
+            invalidationsBeforeLoad = invalidations;
+        }
+        V value = loader.apply(key);
+        if (value != null) {
+            synchronized (this) {
+                V cached = peek(key);
+                if (cached != null) {
+                    removalListener.accept(value);
+                    return cached;
+                }
+                if (invalidations == invalidationsBeforeLoad && !isTooHeavy(weigher.applyAsLong(value))) {
+                    put(key, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    public synchronized V getIfPresent(K key) {
+        sketch.increment(key.hashCode());
+        Weighted<V> cached = window.get(key);
+        if (cached == null) {
+            cached = main.get(key);
+        }
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.value();
+    }
+
+    /**
+     * Returns the cached value without counting it as request.
+     */
+    public synchronized V peek(K key) {
+        Weighted<V> cached = window.containsKey(key) ? window.get(key) : main.get(key);
+        return cached != null ? cached.value() : null;
+    }
+
+    public synchronized void put(K key, V value) {
+        remove(key);
+        long weight = weigher.applyAsLong(value);
+        if (isTooHeavy(weight)) {
+            removalListener.accept(value);
+            return;
+        }
+        window.put(key, new Weighted<>(value, weight));
+        windowWeight += weight;
+        Iterator<Map.Entry<K, Weighted<V>>> candidates = window.entrySet().iterator();
+        while (windowWeight > windowMaximumWeight && window.size() > 1) {
+            Map.Entry<K, Weighted<V>> candidate = candidates.next();
+            candidates.remove();
+            windowWeight -= candidate.getValue().weight();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    /**
+     * Evicts the least recently used value, e.g. when the memory of a new value has to be freed before it can be loaded.
+     *
+     * @return {@code false}, if the cache is empty
+     */
+    public synchronized boolean evict() {
+        boolean fromMain = !main.isEmpty();
+        Iterator<Map.Entry<K, Weighted<V>>> entries = (fromMain ? main : window).entrySet().iterator();
+        if (!entries.hasNext()) {
+            return false;
+        }
+        Weighted<V> evicted = entries.next().getValue();
+        entries.remove();
+        if (fromMain) {
+            mainWeight -= evicted.weight();
+        } else {
+            windowWeight -= evicted.weight();
+        }
+        evictions++;
+        removalListener.accept(evicted.value());
+        return true;
+    }
+
+    public synchronized void invalidate(K key) {
+        invalidations++;
+        remove(key);
+    }
+
+    public synchronized void invalidateAll(Predicate<K> filter) {
+        invalidations++;
+        windowWeight -= removeAll(window, filter);
+        mainWeight -= removeAll(main, filter);
+    }
+
+    /**
+     * Returns how often the key was requested recently, whether its value is cached or not.
+     */
+    public synchronized int frequency(K key) {
+        return sketch.frequency(key.hashCode());
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return window.size() + main.size();
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return windowWeight + mainWeight;
+    }
+
+    @Override
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    private boolean isTooHeavy(long weight) {
+        return weight > maximumWeight - windowMaximumWeight;
+    }
+
+    /**
+     * Moves a value from the window to the main area, if it is requested more often than the least recently used value,
+     * that it would evict. Otherwise the value itself is evicted and the main area stays as it is.
+     */
+    private void admit(K key, Weighted<V> candidate) {
+        List<K> victims = new ArrayList<>();
+        long victimsWeight = 0;
+        Iterator<Map.Entry<K, Weighted<V>>> entries = main.entrySet().iterator();
+        while (mainWeight - victimsWeight + candidate.weight() > maximumWeight - windowMaximumWeight && entries.hasNext()) {
+            Map.Entry<K, Weighted<V>> victim = entries.next();
+            victims.add(victim.getKey());
+            victimsWeight += victim.getValue().weight();
+        }
+        if (!victims.isEmpty() && sketch.frequency(key.hashCode()) <= sketch.frequency(victims.get(0).hashCode())) {
+            evictions++;
+            removalListener.accept(candidate.value());
+            return;
+        }
+        for (K victim : victims) {
+            Weighted<V> evicted = main.remove(victim);
+            mainWeight -= evicted.weight();
+            evictions++;
+            removalListener.accept(evicted.value());
+        }
+        main.put(key, candidate);
+        mainWeight += candidate.weight();
+    }
+
+    private void remove(K key) {
+        Weighted<V> removed = window.remove(key);
+        if (removed != null) {
+            windowWeight -= removed.weight();
+            removalListener.accept(removed.value());
+        }
+        removed = main.remove(key);
+        if (removed != null) {
+            mainWeight -= removed.weight();
+            removalListener.accept(removed.value());
+        }
+    }
+
+    private long removeAll(Map<K, Weighted<V>> area, Predicate<K> filter) {
+        long removedWeight = 0;
+        Iterator<Map.Entry<K, Weighted<V>>> entries = area.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<K, Weighted<V>> entry = entries.next();
+            if (filter.test(entry.getKey())) {
+                entries.remove();
+                removedWeight += entry.getValue().weight();
+                removalListener.accept(entry.getValue().value());
+            }
+        }
+        return removedWeight;
+    }
+
+    private record Weighted<V>(V value, long weight) {
+    }
+}
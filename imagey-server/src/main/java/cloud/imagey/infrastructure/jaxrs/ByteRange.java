@@ -0,0 +1,105 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static java.util.Optional.empty;
+import static java.util.Optional.of;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A satisfiable range of bytes as requested by a {@code Range} header (RFC 9110, section 14.2).
+ *
+ * @param start the first byte of the range
+ * @param end the byte after the last byte of the range
+ */
+public record ByteRange(long start, long end) {
+
+    public static final String RANGE = "Range";
+    public static final String IF_RANGE = "If-Range";
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String BYTES = "bytes";
+    private static final String BYTES_UNIT = BYTES + "=";
+    private static final Pattern RANGE_SPEC = Pattern.compile("(\\d*)-(\\d*)");
+
+    public long length() {
+        return end - start;
+    }
+
+    public String contentRange(long completeLength) {
+        return BYTES + " " + start + "-" + (end - 1) + "/" + completeLength;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header.
+     *
+     * @param header the header value
+     * @param length the length of the representation
+     * @param maxRanges the maximum number of ranges that are served
+     * @return the satisfiable ranges, which may be empty when no range is satisfiable,
+     *     or nothing if the header has to be ignored because it is malformed or requests too many ranges
+     */
+    public static Optional<List<ByteRange>> parse(String header, long length, int maxRanges) {
+        if (header == null || !header.trim().startsWith(BYTES_UNIT)) {
+            return empty();
+        }
+        String[] specs = header.trim().substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > maxRanges) {
+            return empty();
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            Matcher matcher = RANGE_SPEC.matcher(spec.trim());
+            if (!matcher.matches() || matcher.group(1).isEmpty() && matcher.group(2).isEmpty()) {
+                return empty();
+            }
+            try {
+                Optional<ByteRange> range = matcher.group(1).isEmpty()
+                    ? suffix(Long.parseLong(matcher.group(2)), length)
+                    : range(Long.parseLong(matcher.group(1)), matcher.group(2), length);
+                range.ifPresent(ranges::add);
+            } catch (IllegalArgumentException e) {
+                // malformed ranges invalidate the whole header
+                return empty();
+            }
+        }
+        return of(ranges);
+    }
+
+    private static Optional<ByteRange> suffix(long suffixLength, long length) {
+        if (suffixLength == 0 || length == 0) {
+            return empty();
+        }
+        return of(new ByteRange(Math.max(0, length - suffixLength), length));
+    }
+
+    private static Optional<ByteRange> range(long first, String last, long length) {
+        if (!last.isEmpty() && Long.parseLong(last) < first) {
+            throw new IllegalArgumentException("Invalid range " + first + "-" + last);
+        }
+        if (first >= length) {
+            return empty();
+        }
+        long end = last.isEmpty() ? length : Math.min(Long.parseLong(last) + 1, length);
+        return of(new ByteRange(first, end));
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Streams of events per owner, i.e. the events behind a server-sent events connection.
+ * The last {@code events.buffer-size} events of an owner are kept, so a subscriber that reconnects
+ * with the id of the last event it received gets the events it missed. If they are not buffered any more
+ * (or the id is from before a restart), it gets a {@link #RESET} event instead and has to reload everything.
+ * A stream exists only while its owner has subscribers, events of other owners are dropped. So a subscriber
+ * that reconnects after the last connection of its owner was closed is reset, too.
+ * Events are delivered {@code events.coalesce-delay} milliseconds after they were published and
+ * events with the same name and data that are pending for a subscriber are delivered only once.
+ * Every {@code events.heartbeat-interval} seconds idle subscribers are pinged, so closed connections are dropped.
+ */
+@ApplicationScoped
+public class EventStreams {
+
+    public static final String RESET = "reset";
+
+    private static final Logger LOG = LogManager.getLogger(EventStreams.class);
+
+    @Inject
+    @ConfigProperty(name = "events.buffer-size", defaultValue = "100")
+    private int bufferSize;
+    @Inject
+    @ConfigProperty(name = "events.coalesce-delay", defaultValue = "100")
+    private long coalesceDelay;
+    @Inject
+    @ConfigProperty(name = "events.heartbeat-interval", defaultValue = "30")
+    private long heartbeatInterval;
+
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    private final AtomicLong streamCount = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+
+    public EventStreams() {
+    }
+
+    public EventStreams(int bufferSize, long coalesceDelay, long heartbeatInterval) {
+        this.bufferSize = bufferSize;
+        this.coalesceDelay = coalesceDelay;
+        this.heartbeatInterval = heartbeatInterval;
+        start();
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-streams");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::heartbeat, heartbeatInterval, heartbeatInterval, SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        streams.values().forEach(stream -> stream.connections.forEach(connection -> connection.subscriber.close()));
+    }
+
+    /**
+     * Subscribes to the events of the owner.
+     *
+     * @param lastEventId the id of the last event the subscriber received before it reconnected, or {@code null}
+     */
+    public void subscribe(String owner, String lastEventId, Subscriber subscriber) {
+        streams.compute(owner, (o, existing) -> {
+            Stream stream = existing != null ? existing : new Stream(owner);
+            Connection connection = new Connection(stream, subscriber);
+            synchronized (stream) {
+                stream.connections.add(connection);
+                if (lastEventId != null) {
+                    stream.replay(lastEventId, connection);
+                }
+            }
+            return stream;
+        });
+    }
+
+    public void publish(String owner, String name, String data) {
+        Stream stream = streams.get(owner);
+        if (stream == null) {
+            return;
+        }
+        synchronized (stream) {
+            Event event = new Event(stream.epoch + "-" + ++stream.sequence, name, data);
+            stream.buffer.addLast(new Buffered(stream.sequence, event));
+            if (stream.buffer.size() > bufferSize) {
+                stream.buffer.removeFirst();
+            }
+            stream.connections.forEach(connection -> connection.enqueue(event));
+        }
+    }
+
+    int subscribers(String owner) {
+        Stream stream = streams.get(owner);
+        return stream != null ? stream.connections.size() : 0;
+    }
+
+    private void heartbeat() {
+        streams.values().forEach(stream -> stream.connections.forEach(connection -> {
+            if (!connection.subscriber.ping()) {
+                stream.remove(connection);
+            }
+        }));
+    }
+
+    public record Event(String id, String name, String data) {
+    }
+
+    /**
+     * The receiving end of a stream, usually an {@code SseEventSink}.
+     */
+    public interface Subscriber {
+
+        /**
+         * @return {@code false} if the subscriber is closed and is to be dropped
+         */
+        boolean send(Event event);
+
+        /**
+         * Sends something that keeps the connection alive, but is no event.
+         *
+         * @return {@code false} if the subscriber is closed and is to be dropped
+         */
+        boolean ping();
+
+        void close();
+    }
+
+    private record Buffered(long sequence, Event event) {
+    }
+
+    /**
+     * The events of an owner. Every stream has its own epoch, so the ids of a removed stream are unknown to its successor.
+     */
+    private class Stream {
+
+        private final String owner;
+        private final String epoch;
+        private final Deque<Buffered> buffer = new ArrayDeque<>();
+        private final Queue<Connection> connections = new ConcurrentLinkedQueue<>();
+        private long sequence;
+
+        Stream(String owner) {
+            this.owner = owner;
+            this.epoch = EventStreams.this.epoch + "." + Long.toString(streamCount.incrementAndGet(), Character.MAX_RADIX);
+        }
+
+        private void replay(String lastEventId, Connection connection) {
+            long lastSequence = parseSequence(lastEventId);
+            boolean missed = buffer.isEmpty() ? lastSequence < sequence : lastSequence < buffer.getFirst().sequence() - 1;
+            if (lastSequence < 0 || lastSequence > sequence || missed) {
+                connection.enqueue(new Event(epoch + "-" + sequence, RESET, ""));
+                return;
+            }
+            buffer.stream()
+                .filter(buffered -> buffered.sequence() > lastSequence)
+                .forEach(buffered -> connection.enqueue(buffered.event()));
+        }
+
+        private long parseSequence(String lastEventId) {
+            int separator = lastEventId.lastIndexOf('-');
+            if (separator < 0 || !lastEventId.substring(0, separator).equals(epoch)) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(lastEventId.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private void remove(Connection connection) {
+            connections.remove(connection);
+            streams.computeIfPresent(owner, (o, stream) -> stream == this && connections.isEmpty() ? null : stream);
+            connection.subscriber.close();
+        }
+    }
+
+    private class Connection {
+
+        private final Stream stream;
+        private final Subscriber subscriber;
+        private final Map<String, Event> pending = new LinkedHashMap<>();
+
+        Connection(Stream stream, Subscriber subscriber) {
+            this.stream = stream;
+            this.subscriber = subscriber;
+        }
+
+        private synchronized void enqueue(Event event) {
+            boolean scheduled = !pending.isEmpty();
+            String key = event.name() + "\n" + event.data();
+            pending.remove(key);
+            pending.put(key, event);
+            if (!scheduled) {
+                try {
+                    scheduler.schedule(this::flush, coalesceDelay, MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Event streams are stopped", e);
+                }
+            }
+        }
+
+        private void flush() {
+            List<Event> events;
+            synchronized (this) {
+                events = new ArrayList<>(pending.values());
+                pending.clear();
+            }
+            for (Event event : events) {
+                if (!subscriber.send(event)) {
+                    stream.remove(this);
+                    return;
+                }
+            }
+        }
+    }
+}
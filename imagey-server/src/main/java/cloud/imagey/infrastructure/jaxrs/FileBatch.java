@@ -0,0 +1,46 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Files that are sent together in one binary frame.
+ * Each entry is written as its name (an unsigned 16 bit length followed by the UTF-8 bytes),
+ * the length of its content as signed 64 bit integer and the content itself.
+ * Entries without file are written with a length of {@code -1} and no content.
+ * All numbers are big endian.
+ */
+public record FileBatch(List<FileBatch.Entry> entries) {
+
+    public static final String MEDIA_TYPE = "application/vnd.imagey.file-batch";
+
+    /**
+     * A file of the batch.
+     *
+     * @param name the name, by which the client can identify the file
+     * @param file the file or {@code null}, if it is not available
+     * @param length the length of the file, when the batch was created
+     */
+    public record Entry(String name, File file, long length) {
+
+        public static Entry missing(String name) {
+            return new Entry(name, null, -1);
+        }
+    }
+}
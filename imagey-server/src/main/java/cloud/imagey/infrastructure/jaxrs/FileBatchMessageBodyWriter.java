@@ -0,0 +1,84 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static cloud.imagey.infrastructure.jaxrs.FileBatch.MEDIA_TYPE;
+import static jakarta.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static jakarta.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.Provider;
+
+/**
+ * Streams a {@link FileBatch} file by file, so the batch is never held in the heap as a whole.
+ */
+@Provider
+@ApplicationScoped
+@Produces({MEDIA_TYPE, APPLICATION_OCTET_STREAM})
+public class FileBatchMessageBodyWriter extends FileRecordMessageBodyWriter {
+
+    private static final int NAME_LENGTH_SIZE = Short.BYTES;
+    private static final int CONTENT_LENGTH_SIZE = Long.BYTES;
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return FileBatch.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public void writeTo(Record t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException {
+
+        FileBatch batch = (FileBatch)t;
+        long contentLength = 0;
+        for (FileBatch.Entry entry : batch.entries()) {
+            contentLength += NAME_LENGTH_SIZE + name(entry).length + CONTENT_LENGTH_SIZE + Math.max(entry.length(), 0);
+        }
+        httpHeaders.putSingle(CONTENT_LENGTH, contentLength);
+        DataOutputStream frame = new DataOutputStream(entityStream);
+        for (FileBatch.Entry entry : batch.entries()) {
+            byte[] name = name(entry);
+            frame.writeShort(name.length);
+            frame.write(name);
+            frame.writeLong(entry.length());
+            if (entry.file() != null) {
+                transfer(entry.file(), 0, entry.length(), entityStream);
+            }
+        }
+    }
+
+    private byte[] name(FileBatch.Entry entry) {
+        byte[] name = entry.name().getBytes(UTF_8);
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name too long: " + entry.name());
+        }
+        return name;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static jakarta.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static jakarta.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Optional;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyWriter;
+import jakarta.ws.rs.ext.Provider;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import cloud.imagey.infrastructure.common.OffHeapContent;
+import cloud.imagey.infrastructure.common.ThumbnailCache;
+
+/**
+ * Writes records that wrap a single {@link File} without loading the file into the heap.
+ * When the connector supports it, the transfer is handed over to Tomcat's sendfile support,
+ * which copies the bytes from the page cache to the socket and does not block a request thread
+ * while a slow client is reading. Otherwise the file channel is transferred to the response stream.
+ * Thumbnails, that are cached in the {@link ThumbnailCache}, are written from the native memory of the cache instead,
+ * and directly, if the response stream is a channel.
+ */
+@Provider
+@ApplicationScoped
+@Produces(APPLICATION_OCTET_STREAM)
+public class FileRecordMessageBodyWriter extends AbstractRecordMessageBodyWriter implements MessageBodyWriter<Record> {
+
+    static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final int TRANSFER_BUFFER_SIZE = 8192;
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = ThreadLocal.withInitial(() -> new byte[TRANSFER_BUFFER_SIZE]);
+
+    @Inject
+    private HttpServletRequest request;
+    @Inject
+    private ThumbnailCache thumbnailCache;
+    @Inject
+    @ConfigProperty(name = "download.sendfile.threshold", defaultValue = "49152")
+    private long sendfileThreshold;
+
+    public FileRecordMessageBodyWriter() {
+    }
+
+    FileRecordMessageBodyWriter(HttpServletRequest request, ThumbnailCache thumbnailCache, long sendfileThreshold) {
+        this.request = request;
+        this.thumbnailCache = thumbnailCache;
+        this.sendfileThreshold = sendfileThreshold;
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type.isRecord() && type.getRecordComponents().length == 1 && File.class.equals(type.getRecordComponents()[0].getType());
+    }
+
+    @Override
+    public void writeTo(Record t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException {
+
+        File file = read(t, type.getRecordComponents()[0]);
+        long length = file.length();
+        httpHeaders.putSingle(CONTENT_LENGTH, length);
+        write(file, 0, length, entityStream);
+    }
+
+    /**
+     * Writes the given region of the file from the thumbnail cache, if it is cached there,
+     * and with sendfile or by a transfer of the file otherwise.
+     */
+    protected void write(File file, long start, long end, OutputStream entityStream) throws IOException {
+        if (!writeCached(file, start, end, entityStream) && !sendfile(file, start, end)) {
+            transferFile(file, start, end, entityStream);
+        }
+    }
+
+    /**
+     * Registers the given region of the file for sendfile, if the connector supports it
+     * and the region is large enough to make it worthwhile.
+     *
+     * @return {@code true}, if the file will be sent by the connector and nothing must be written to the response
+     */
+    protected boolean sendfile(File file, long start, long end) throws IOException {
+        if (end - start < sendfileThreshold || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+        request.setAttribute(SENDFILE_START, start);
+        request.setAttribute(SENDFILE_END, end);
+        return true;
+    }
+
+    protected void transfer(File file, long start, long end, OutputStream entityStream) throws IOException {
+        if (!writeCached(file, start, end, entityStream)) {
+            transferFile(file, start, end, entityStream);
+        }
+    }
+
+    private boolean writeCached(File file, long start, long end, OutputStream entityStream) throws IOException {
+        Optional<OffHeapContent> cached = thumbnailCache.open(file);
+        if (cached.isEmpty()) {
+            return false;
+        }
+        try {
+            cached.get().writeTo(channel(entityStream), start, end);
+        } finally {
+            cached.get().release();
+        }
+        return true;
+    }
+
+    private void transferFile(File file, long start, long end, OutputStream entityStream) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            WritableByteChannel target = channel(entityStream);
+            long position = start;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred == 0 && position >= channel.size()) {
+                    throw new EOFException(file + " was truncated during transfer");
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * Returns the response stream as channel, so buffers are written without copying them,
+     * or, if it is no channel, an adapter, that copies them through a buffer of the thread.
+     */
+    private WritableByteChannel channel(OutputStream entityStream) {
+        return entityStream instanceof WritableByteChannel channel ? channel : new StreamChannel(entityStream);
+    }
+
+    private static final class StreamChannel implements WritableByteChannel {
+
+        private final OutputStream output;
+        private boolean open = true;
+
+        private StreamChannel(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            byte[] buffer = TRANSFER_BUFFER.get();
+            int count = Math.min(buffer.length, source.remaining());
+            source.get(buffer, 0, count);
+            output.write(buffer, 0, count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Ranges of a file that are sent as {@code 206 Partial Content}.
+ * A single range is sent as is, multiple ranges are sent as {@code multipart/byteranges} separated by the boundary.
+ */
+public record PartialFile(File file, long length, List<ByteRange> ranges, String boundary) {
+
+    public static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+
+    public boolean isMultipart() {
+        return ranges.size() > 1;
+    }
+
+    public String mediaType() {
+        return MULTIPART_BYTERANGES + "; boundary=" + boundary;
+    }
+}
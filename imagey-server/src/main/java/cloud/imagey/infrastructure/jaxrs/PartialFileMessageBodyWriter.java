@@ -0,0 +1,80 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static cloud.imagey.infrastructure.jaxrs.PartialFile.MULTIPART_BYTERANGES;
+import static jakarta.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static jakarta.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.Provider;
+
+@Provider
+@ApplicationScoped
+@Produces({APPLICATION_OCTET_STREAM, MULTIPART_BYTERANGES})
+public class PartialFileMessageBodyWriter extends FileRecordMessageBodyWriter {
+
+    private static final String CRLF = "\r\n";
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return PartialFile.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public void writeTo(Record t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException {
+
+        PartialFile partialFile = (PartialFile)t;
+        if (!partialFile.isMultipart()) {
+            ByteRange range = partialFile.ranges().get(0);
+            httpHeaders.putSingle(CONTENT_LENGTH, range.length());
+            write(partialFile.file(), range.start(), range.end(), entityStream);
+            return;
+        }
+        List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (ByteRange range : partialFile.ranges()) {
+            byte[] partHeader = (CRLF + "--" + partialFile.boundary() + CRLF
+                + "Content-Type: " + APPLICATION_OCTET_STREAM + CRLF
+                + "Content-Range: " + range.contentRange(partialFile.length()) + CRLF + CRLF).getBytes(US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range.length();
+        }
+        byte[] closingBoundary = (CRLF + "--" + partialFile.boundary() + "--" + CRLF).getBytes(US_ASCII);
+        httpHeaders.putSingle(CONTENT_LENGTH, contentLength + closingBoundary.length);
+        for (int i = 0; i < partHeaders.size(); i++) {
+            ByteRange range = partialFile.ranges().get(i);
+            entityStream.write(partHeaders.get(i));
+            transfer(partialFile.file(), range.start(), range.end(), entityStream);
+        }
+        entityStream.write(closingBoundary);
+    }
+}
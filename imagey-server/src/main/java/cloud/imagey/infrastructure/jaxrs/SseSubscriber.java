@@ -0,0 +1,61 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cloud.imagey.infrastructure.jaxrs.EventStreams.Event;
+
+/**
+ * Sends the events of an {@link EventStreams} stream to a server-sent events connection.
+ */
+public record SseSubscriber(SseEventSink sink, Sse sse) implements EventStreams.Subscriber {
+
+    private static final Logger LOG = LogManager.getLogger(SseSubscriber.class);
+
+    @Override
+    public boolean send(Event event) {
+        return send(sse.newEventBuilder().id(event.id()).name(event.name()).data(event.data()).build());
+    }
+
+    @Override
+    public boolean ping() {
+        return send(sse.newEventBuilder().comment("").build());
+    }
+
+    @Override
+    public void close() {
+        sink.close();
+    }
+
+    private boolean send(OutboundSseEvent event) {
+        if (sink.isClosed()) {
+            return false;
+        }
+        sink.send(event).exceptionally(e -> {
+            LOG.debug("Closing event stream", e);
+            sink.close();
+            return null;
+        });
+        return true;
+    }
+}
@@ -138,7 +138,7 @@ public class ContractTest {
                 int documentIdStart
                     = path.indexOf("users/mary%40imagey.cloud/documents") + "users/mary%40imagey.cloud/documents".length() + 1;
                 String documentId = path.substring(documentIdStart);
-                documentRepository.getTimestamp(new User(new Email("mary@imagey.cloud")), new DocumentId(documentId))
+                documentRepository.getVersion(new User(new Email("mary@imagey.cloud")), new DocumentId(documentId))
                     .ifPresent(etag -> updatableRequest.setHeader("If-Match", etag));
             }
         }
@@ -18,24 +18,38 @@ package cloud.imagey.application;
 
 import static jakarta.ws.rs.client.ClientBuilder.newClient;
 import static jakarta.ws.rs.client.Entity.entity;
+import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+import static jakarta.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM_TYPE;
 import static jakarta.ws.rs.core.MediaType.MULTIPART_FORM_DATA_TYPE;
 import static jakarta.ws.rs.core.Response.Status.BAD_REQUEST;
 import static jakarta.ws.rs.core.Response.Status.CREATED;
+import static jakarta.ws.rs.core.Response.Status.NOT_FOUND;
+import static jakarta.ws.rs.core.Response.Status.NOT_MODIFIED;
+import static jakarta.ws.rs.core.Response.Status.OK;
+import static jakarta.ws.rs.core.Response.Status.PARTIAL_CONTENT;
+import static jakarta.ws.rs.core.Response.Status.PRECONDITION_FAILED;
+import static jakarta.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Optional.empty;
 import static org.apache.commons.io.FileUtils.forceDelete;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import jakarta.inject.Inject;
 import jakarta.ws.rs.client.Invocation.Builder;
+import jakarta.ws.rs.client.WebTarget;
 import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.Link;
 import jakarta.ws.rs.core.Response;
 
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
@@ -52,6 +66,8 @@ import org.junit.jupiter.api.Test;
 import cloud.imagey.domain.document.DocumentId;
 import cloud.imagey.domain.document.DocumentMetadata;
 import cloud.imagey.domain.document.DocumentRepository;
+import cloud.imagey.domain.document.FileName;
+import cloud.imagey.domain.encryption.EncryptedContent;
 import cloud.imagey.domain.mail.Email;
 import cloud.imagey.domain.token.TokenService;
 import cloud.imagey.domain.user.User;
@@ -61,6 +77,12 @@ import cloud.imagey.junit.GreenMail;
 @MonoMeecrowaveConfig
 public class DocumentResourceTest {
 
+    private static final long LARGE_FILE_SIZE = 128L * 1024 * 1024;
+    private static final int SENDFILE_SIZE = 1024 * 1024;
+    private static final int RANGE_CONTENT_SIZE = 100;
+    private static final byte[] RANGE_CONTENT = rangeContent();
+    private static final int PAGED_DOCUMENTS = 5;
+
     @ConfigurationInject
     private static Meecrowave.Builder config;
     @Inject
@@ -134,6 +156,50 @@ public class DocumentResourceTest {
         assertThat(response.getStatusInfo().toEnum()).isEqualTo(Response.Status.OK);
     }
 
+    @Test
+    @DisplayName("Metadata update with a version, that was updated already, fails")
+    void updateMetadataStaleVersion() throws IOException {
+        metadataWithoutFiles();
+
+        DocumentId documentId = documentRepository.findMetadata(user, empty()).iterator().next().documentId();
+        WebTarget document = newClient().target("http://localhost:" + config.getHttpPort())
+            .path("users").path(user.email().address()).path("documents").path(documentId.id());
+        String version = document.request().cookie(userCookie).get().getHeaderString("ETag");
+
+        Response updated = document.request().cookie(userCookie).header("If-Match", version)
+            .put(entity(new byte[]{1, 2, 3}, APPLICATION_OCTET_STREAM_TYPE));
+        Response stale = document.request().cookie(userCookie).header("If-Match", version)
+            .put(entity(new byte[]{4, 5, 6}, APPLICATION_OCTET_STREAM_TYPE));
+
+        assertThat(updated.getStatus()).isEqualTo(OK.getStatusCode());
+        assertThat(version).matches("\"\\d+\"");
+        assertThat(updated.getHeaderString("ETag")).isEqualTo("\"" + (Long.parseLong(version.replace("\"", "")) + 1) + "\"");
+        assertThat(stale.getStatus()).isEqualTo(PRECONDITION_FAILED.getStatusCode());
+    }
+
+    @Test
+    @DisplayName("Deltas can be appended, listed and compacted into the metadata")
+    void appendAndCompactDeltas() throws IOException {
+        metadataWithoutFiles();
+
+        DocumentId documentId = documentRepository.findMetadata(user, empty()).iterator().next().documentId();
+        WebTarget document = newClient().target("http://localhost:" + config.getHttpPort())
+            .path("users").path(user.email().address()).path("documents").path(documentId.id());
+        Response first = document.path("deltas").request().cookie(userCookie).post(entity(new byte[]{1}, APPLICATION_OCTET_STREAM_TYPE));
+        Response second = document.path("deltas").request().cookie(userCookie).post(entity(new byte[]{2}, APPLICATION_OCTET_STREAM_TYPE));
+        Response deltas = document.path("deltas").queryParam("after", 1).request().cookie(userCookie).get();
+        Response compacted = document.queryParam("compactedUpTo", 2).request().cookie(userCookie).header("If-Match", "\"0\"")
+            .put(entity(new byte[]{1, 2}, APPLICATION_OCTET_STREAM_TYPE));
+        Response remaining = document.path("deltas").request().cookie(userCookie).get();
+
+        assertThat(first.getStatus()).isEqualTo(CREATED.getStatusCode());
+        assertThat(second.getLocation().getQuery()).isEqualTo("after=1");
+        assertThat(deltas.readEntity(String.class)).isEqualTo("[{\"content\":\"Ag==\",\"sequence\":2}]");
+        assertThat(compacted.getStatus()).isEqualTo(OK.getStatusCode());
+        assertThat(remaining.getHeaderString("ETag")).isEqualTo("\"1\"");
+        assertThat(remaining.readEntity(String.class)).isEqualTo("[]");
+    }
+
     @Test
     @DisplayName("Metadata update fails with wrong ETag")
     void updateMetadataWrongEtag() throws IOException {
@@ -225,6 +291,293 @@ public class DocumentResourceTest {
         assertThat(filesDir.listFiles()).hasSize(3);
     }
 
+    @Test
+    @DisplayName("Large file is streamed to disk")
+    void largeFileIsStreamed() throws IOException {
+        long size = LARGE_FILE_SIZE;
+        List<Attachment> attachments = new ArrayList<>();
+        attachments.add(createMetadataAttachment());
+        attachments.add(createKeyAttachment());
+        attachments.add(createIssuerAttachment());
+        attachments.add(new Attachment("files", new GeneratedInputStream(size),
+            new ContentDisposition("form-data; name=\"files\"; filename=\"content\"")));
+
+        Response response = client().post(entity(new MultipartBody(attachments), MULTIPART_FORM_DATA_TYPE));
+
+        assertThat(response.getStatus()).isEqualTo(CREATED.getStatusCode());
+
+        DocumentId docId = documentRepository.findMetadata(user, empty()).get(0).documentId();
+        File filesDir = new File(new File(new File(rootPath, user.email().address()), "documents/" + docId.id()), "files");
+        assertThat(filesDir.listFiles()).hasSize(1);
+        assertThat(new File(filesDir, "content")).hasSize(size);
+    }
+
+    @Test
+    @DisplayName("Uploaded files can be downloaded")
+    void downloadFiles() throws IOException {
+        byte[] largeContent = new byte[SENDFILE_SIZE];
+        Arrays.fill(largeContent, (byte)7);
+        List<Attachment> attachments = new ArrayList<>();
+        attachments.add(createMetadataAttachment());
+        attachments.add(createKeyAttachment());
+        attachments.add(createIssuerAttachment());
+        attachments.add(createFileAttachment("small", "small-content"));
+        attachments.add(new Attachment("files", new ByteArrayInputStream(largeContent),
+            new ContentDisposition("form-data; name=\"files\"; filename=\"content\"")));
+        Response upload = client().post(entity(new MultipartBody(attachments), MULTIPART_FORM_DATA_TYPE));
+        assertThat(upload.getStatus()).isEqualTo(CREATED.getStatusCode());
+        String documentPath = upload.getLocation().getPath();
+
+        byte[] small = newClient().target("http://localhost:" + config.getHttpPort()).path(documentPath).path("files/small")
+            .request().cookie(userCookie).get(byte[].class);
+        byte[] large = newClient().target("http://localhost:" + config.getHttpPort()).path(documentPath).path("files/content")
+            .request().cookie(userCookie).get(byte[].class);
+        Response missing = newClient().target("http://localhost:" + config.getHttpPort()).path(documentPath).path("files/preview")
+            .request().cookie(userCookie).get();
+
+        assertThat(small).isEqualTo("small-content".getBytes(UTF_8));
+        assertThat(large).isEqualTo(largeContent);
+        assertThat(missing.getStatus()).isEqualTo(NOT_FOUND.getStatusCode());
+    }
+
+    @Test
+    @DisplayName("Single byte range is served as partial content")
+    void singleRange() throws IOException {
+        String contentPath = uploadRangeContent();
+
+        Response response = content(contentPath).header("Range", "bytes=10-19").get();
+
+        assertThat(response.getStatus()).isEqualTo(PARTIAL_CONTENT.getStatusCode());
+        assertThat(response.getHeaderString("Content-Range")).isEqualTo("bytes 10-19/100");
+        assertThat(response.readEntity(byte[].class)).isEqualTo(Arrays.copyOfRange(RANGE_CONTENT, 10, 20));
+    }
+
+    @Test
+    @DisplayName("Multiple byte ranges are served as multipart/byteranges")
+    void multipleRanges() throws IOException {
+        String contentPath = uploadRangeContent();
+
+        Response response = content(contentPath).header("Range", "bytes=0-1, -2").get();
+
+        assertThat(response.getStatus()).isEqualTo(PARTIAL_CONTENT.getStatusCode());
+        assertThat(response.getMediaType().toString()).startsWith("multipart/byteranges; boundary=");
+        String body = new String(response.readEntity(byte[].class), ISO_8859_1);
+        assertThat(body).contains("Content-Range: bytes 0-1/100", "Content-Range: bytes 98-99/100");
+    }
+
+    @Test
+    @DisplayName("Unsatisfiable range leads to 416")
+    void unsatisfiableRange() throws IOException {
+        String contentPath = uploadRangeContent();
+
+        Response response = content(contentPath).header("Range", "bytes=100-").get();
+
+        assertThat(response.getStatus()).isEqualTo(REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode());
+        assertThat(response.getHeaderString("Content-Range")).isEqualTo("bytes */100");
+    }
+
+    @Test
+    @DisplayName("Range is only served when If-Range matches")
+    void ifRange() throws IOException {
+        String contentPath = uploadRangeContent();
+        Response head = content(contentPath).head();
+        String etag = head.getHeaderString("ETag");
+        String lastModified = head.getHeaderString("Last-Modified");
+
+        Response matchingTag = content(contentPath).header("Range", "bytes=0-9").header("If-Range", etag).get();
+        Response matchingDate = content(contentPath).header("Range", "bytes=0-9").header("If-Range", lastModified).get();
+        Response outdatedTag = content(contentPath).header("Range", "bytes=0-9").header("If-Range", "\"outdated\"").get();
+        Response invalidDate = content(contentPath).header("Range", "bytes=0-9").header("If-Range", "yesterday").get();
+
+        assertThat(matchingTag.getStatus()).isEqualTo(PARTIAL_CONTENT.getStatusCode());
+        assertThat(matchingDate.getStatus()).isEqualTo(PARTIAL_CONTENT.getStatusCode());
+        assertThat(outdatedTag.getStatus()).isEqualTo(OK.getStatusCode());
+        assertThat(outdatedTag.readEntity(byte[].class)).isEqualTo(RANGE_CONTENT);
+        assertThat(invalidDate.getStatus()).isEqualTo(OK.getStatusCode());
+    }
+
+    @Test
+    @DisplayName("HEAD reports the length of the content")
+    void headContent() throws IOException {
+        String contentPath = uploadRangeContent();
+
+        Response response = content(contentPath).head();
+
+        assertThat(response.getStatus()).isEqualTo(OK.getStatusCode());
+        assertThat(response.getHeaderString("Content-Length")).isEqualTo("100");
+        assertThat(response.getHeaderString("Accept-Ranges")).isEqualTo("bytes");
+        assertThat(response.getHeaderString("ETag")).isNotBlank();
+    }
+
+    @Test
+    @DisplayName("Documents can be listed page by page")
+    void paginatedListing() {
+        for (int i = 0; i < PAGED_DOCUMENTS; i++) {
+            DocumentId documentId = new DocumentId("document-" + i);
+            documentRepository.persist(user, documentId, new EncryptedContent(new byte[] {1, 2, 3}));
+            documentRepository.persist(user, documentId, user.email(), new EncryptedContent(new byte[] {4, 5, 6}));
+        }
+        WebTarget documents = newClient().target("http://localhost:" + config.getHttpPort())
+            .path("users").path(user.email().address()).path("documents");
+
+        String unpaged = documents.request().cookie(userCookie).get(String.class);
+        assertThat(unpaged).contains("document-0", "document-1", "document-2", "document-3", "document-4");
+
+        Response firstPage = documents.queryParam("limit", 2).request().cookie(userCookie).get();
+        assertThat(firstPage.readEntity(String.class)).contains("document-0", "document-1").doesNotContain("document-2");
+        Link next = firstPage.getLink("next");
+        assertThat(next).isNotNull();
+
+        Response secondPage = newClient().target(next).request().cookie(userCookie).get();
+        assertThat(secondPage.readEntity(String.class)).contains("document-2", "document-3").doesNotContain("document-1", "document-4");
+
+        Response lastPage = newClient().target(secondPage.getLink("next")).request().cookie(userCookie).get();
+        assertThat(lastPage.readEntity(String.class)).contains("document-4").doesNotContain("document-3");
+        assertThat(lastPage.getLink("next")).isNull();
+    }
+
+    @Test
+    @DisplayName("Invalid page parameters lead to 400")
+    void invalidPageParameters() {
+        WebTarget documents = newClient().target("http://localhost:" + config.getHttpPort())
+            .path("users").path(user.email().address()).path("documents");
+
+        assertThat(documents.queryParam("limit", 0).request().cookie(userCookie).get().getStatus())
+            .isEqualTo(BAD_REQUEST.getStatusCode());
+        assertThat(documents.queryParam("cursor", "not a cursor!").request().cookie(userCookie).get().getStatus())
+            .isEqualTo(BAD_REQUEST.getStatusCode());
+    }
+
+    @Test
+    @DisplayName("Several files can be downloaded in one batch")
+    void batchDownload() throws IOException {
+        Email friend = new Email("friend@example.com");
+        DocumentId ownDocument = new DocumentId("own-document");
+        DocumentId sharedDocument = new DocumentId("shared-document");
+        documentRepository.persist(user, ownDocument, new FileName("small"), new EncryptedContent("own".getBytes(UTF_8)));
+        documentRepository.persist(user, sharedDocument, new FileName("small"), new EncryptedContent("shared".getBytes(UTF_8)));
+        documentRepository.persist(user, sharedDocument, friend, new EncryptedContent(new byte[] {1, 2, 3}));
+        String references = "{\"files\": ["
+            + "{\"documentId\": \"own-document\", \"contentId\": \"small\"},"
+            + "{\"documentId\": \"own-document\", \"contentId\": \"preview\"},"
+            + "{\"documentId\": \"shared-document\", \"contentId\": \"small\"}]}";
+        Cookie friendCookie = new Cookie.Builder("token")
+            .value(tokenService.generateToken(new User(friend), Integer.MAX_VALUE).token()).build();
+
+        Response ownerResponse = batch().cookie(userCookie).post(entity(references, APPLICATION_JSON_TYPE));
+        Response friendResponse = batch().cookie(friendCookie).post(entity(references, APPLICATION_JSON_TYPE));
+
+        assertThat(ownerResponse.getStatus()).isEqualTo(OK.getStatusCode());
+        DataInputStream ownerFrame = new DataInputStream(ownerResponse.readEntity(InputStream.class));
+        assertThat(readBatchEntry(ownerFrame)).isEqualTo("own-document/small=own");
+        assertThat(readBatchEntry(ownerFrame)).isEqualTo("own-document/preview=");
+        assertThat(readBatchEntry(ownerFrame)).isEqualTo("shared-document/small=shared");
+        assertThat(ownerFrame.read()).isEqualTo(-1);
+        DataInputStream friendFrame = new DataInputStream(friendResponse.readEntity(InputStream.class));
+        assertThat(readBatchEntry(friendFrame)).isEqualTo("own-document/small=");
+        assertThat(readBatchEntry(friendFrame)).isEqualTo("own-document/preview=");
+        assertThat(readBatchEntry(friendFrame)).isEqualTo("shared-document/small=shared");
+    }
+
+    @Test
+    @DisplayName("Batch with invalid file leads to 400")
+    void batchWithInvalidFile() {
+        String references = "{\"files\": [{\"documentId\": \"..\", \"contentId\": \"small\"}]}";
+
+        Response response = batch().cookie(userCookie).post(entity(references, APPLICATION_JSON_TYPE));
+
+        assertThat(response.getStatus()).isEqualTo(BAD_REQUEST.getStatusCode());
+    }
+
+    private Builder batch() {
+        return newClient().target("http://localhost:" + config.getHttpPort())
+            .path("users").path(user.email().address()).path("documents").path("files")
+            .request();
+    }
+
+    private String readBatchEntry(DataInputStream frame) throws IOException {
+        byte[] name = new byte[frame.readUnsignedShort()];
+        frame.readFully(name);
+        long length = frame.readLong();
+        byte[] content = new byte[(int)Math.max(length, 0)];
+        frame.readFully(content);
+        return new String(name, UTF_8) + "=" + new String(content, UTF_8);
+    }
+
+    @Test
+    @DisplayName("Unchanged content is answered with 304")
+    void conditionalContent() throws IOException {
+        String contentPath = uploadRangeContent();
+        String etag = content(contentPath).head().getHeaderString("ETag");
+
+        Response unchanged = content(contentPath).header("If-None-Match", etag).get();
+        Response changed = content(contentPath).header("If-None-Match", "\"outdated\"").get();
+
+        assertThat(unchanged.getStatus()).isEqualTo(NOT_MODIFIED.getStatusCode());
+        assertThat(unchanged.getHeaderString("ETag")).isEqualTo(etag);
+        assertThat(changed.getStatus()).isEqualTo(OK.getStatusCode());
+        assertThat(changed.readEntity(byte[].class)).isEqualTo(RANGE_CONTENT);
+    }
+
+    @Test
+    @DisplayName("Unchanged key is answered with 304")
+    void conditionalKey() {
+        DocumentId documentId = new DocumentId("document");
+        documentRepository.persist(user, documentId, user.email(), new EncryptedContent(new byte[] {1, 2, 3}));
+        WebTarget key = newClient().target("http://localhost:" + config.getHttpPort())
+            .path("users").path(user.email().address()).path("documents").path(documentId.id()).path("keys").path(user.email().address());
+
+        Response response = key.request().cookie(userCookie).get();
+        String etag = response.getHeaderString("ETag");
+        Response unchanged = key.request().cookie(userCookie).header("If-None-Match", etag).get();
+
+        assertThat(response.getStatus()).isEqualTo(OK.getStatusCode());
+        assertThat(etag).isNotNull();
+        assertThat(unchanged.getStatus()).isEqualTo(NOT_MODIFIED.getStatusCode());
+    }
+
+    @Test
+    @DisplayName("Unchanged listing is answered with 304")
+    void conditionalListing() {
+        DocumentId documentId = new DocumentId("document");
+        documentRepository.persist(user, documentId, new EncryptedContent(new byte[] {1, 2, 3}));
+        documentRepository.persist(user, documentId, user.email(), new EncryptedContent(new byte[] {4, 5, 6}));
+        WebTarget documents = newClient().target("http://localhost:" + config.getHttpPort())
+            .path("users").path(user.email().address()).path("documents");
+
+        String etag = documents.request().cookie(userCookie).get().getHeaderString("ETag");
+        Response unchanged = documents.request().cookie(userCookie).header("If-None-Match", etag).get();
+        documentRepository.persist(user, new DocumentId("other"), new EncryptedContent(new byte[] {1, 2, 3}));
+        Response changed = documents.request().cookie(userCookie).header("If-None-Match", etag).get();
+
+        assertThat(unchanged.getStatus()).isEqualTo(NOT_MODIFIED.getStatusCode());
+        assertThat(changed.getStatus()).isEqualTo(OK.getStatusCode());
+        assertThat(changed.getHeaderString("ETag")).isNotEqualTo(etag);
+    }
+
+    private String uploadRangeContent() {
+        List<Attachment> attachments = new ArrayList<>();
+        attachments.add(createMetadataAttachment());
+        attachments.add(createKeyAttachment());
+        attachments.add(createIssuerAttachment());
+        attachments.add(new Attachment("files", new ByteArrayInputStream(RANGE_CONTENT),
+            new ContentDisposition("form-data; name=\"files\"; filename=\"content\"")));
+        Response upload = client().post(entity(new MultipartBody(attachments), MULTIPART_FORM_DATA_TYPE));
+        return upload.getLocation().getPath() + "/files/content";
+    }
+
+    private Builder content(String contentPath) {
+        return newClient().target("http://localhost:" + config.getHttpPort()).path(contentPath).request().cookie(userCookie);
+    }
+
+    private static byte[] rangeContent() {
+        byte[] content = new byte[RANGE_CONTENT_SIZE];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte)i;
+        }
+        return content;
+    }
+
     private Attachment createMetadataAttachment() {
         return new Attachment("metadata", new ByteArrayInputStream("{\"name\":\"test\"}".getBytes(UTF_8)),
             new ContentDisposition("form-data; name=\"metadata\""));
@@ -244,4 +597,38 @@ public class DocumentResourceTest {
         return new Attachment("files", new ByteArrayInputStream(content.getBytes(UTF_8)),
             new ContentDisposition("form-data; name=\"files\"; filename=\"" + filename + "\""));
     }
+
+    /**
+     * Produces the requested amount of bytes without ever holding them in memory.
+     */
+    private static class GeneratedInputStream extends InputStream {
+
+        private long remaining;
+
+        GeneratedInputStream(long size) {
+            remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining--;
+            return (int)(remaining & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = (int)Math.min(length, remaining);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = (byte)(remaining - i);
+            }
+            remaining -= count;
+            return count;
+        }
+    }
 }
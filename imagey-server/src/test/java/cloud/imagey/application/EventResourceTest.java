@@ -0,0 +1,180 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.application;
+
+import static jakarta.ws.rs.client.ClientBuilder.newClient;
+import static jakarta.ws.rs.client.Entity.text;
+import static jakarta.ws.rs.core.HttpHeaders.LAST_EVENT_ID_HEADER;
+import static jakarta.ws.rs.core.MediaType.SERVER_SENT_EVENTS;
+import static jakarta.ws.rs.core.Response.Status.CREATED;
+import static jakarta.ws.rs.core.Response.Status.OK;
+import static jakarta.ws.rs.core.Response.Status.UNAUTHORIZED;
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.Response;
+
+import org.apache.meecrowave.Meecrowave;
+import org.apache.meecrowave.junit5.MonoMeecrowaveConfig;
+import org.apache.meecrowave.testing.ConfigurationInject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import cloud.imagey.domain.mail.Email;
+import cloud.imagey.domain.token.TokenService;
+import cloud.imagey.domain.user.User;
+import cloud.imagey.junit.GreenMail;
+
+@GreenMail
+@MonoMeecrowaveConfig
+@Timeout(30)
+public class EventResourceTest {
+
+    @ConfigurationInject
+    private static Meecrowave.Builder config;
+    @Inject
+    @ConfigProperty(name = "root.path")
+    private String rootPath;
+    @Inject
+    private TokenService tokenService;
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private User receiver;
+    private User sender;
+
+    @BeforeEach
+    void initializeState() throws IOException {
+        File data = new File(rootPath);
+        if (data.exists()) {
+            forceDelete(data);
+        }
+        data.mkdirs();
+
+        receiver = new User(new Email("receiver@example.com"));
+        sender = new User(new Email("sender@example.com"));
+    }
+
+    @Test
+    @DisplayName("Stream the events of a user")
+    void streamEvents() throws Exception {
+        HttpResponse<Stream<String>> response = openEvents(receiver, "unknown");
+        assertThat(response.statusCode()).isEqualTo(OK.getStatusCode());
+        assertThat(response.headers().firstValue("Content-Type"))
+            .hasValueSatisfying(type -> assertThat(type).startsWith(SERVER_SENT_EVENTS));
+        try (Stream<String> lines = response.body()) {
+            Iterator<String> events = lines.iterator();
+            assertThat(nextEvent(events)).containsEntry("event", "reset");
+
+            sendMessage();
+
+            Map<String, String> event = nextEvent(events);
+            assertThat(event).containsEntry("event", "message").containsEntry("data", "sender@example.com");
+        }
+    }
+
+    @Test
+    @DisplayName("Resume the events of a user after the last event id")
+    void resumeEvents() throws Exception {
+        String lastEventId;
+        try (Stream<String> lines = openEvents(receiver, "unknown").body()) {
+            lastEventId = nextEvent(lines.iterator()).get("id");
+        }
+
+        sendMessage();
+        sendMessage();
+
+        try (Stream<String> lines = openEvents(receiver, lastEventId).body()) {
+            Iterator<String> events = lines.iterator();
+            Map<String, String> event = nextEvent(events);
+            assertThat(event).containsEntry("event", "message").containsEntry("data", "sender@example.com");
+            assertThat(event.get("id")).isNotEqualTo(lastEventId);
+        }
+    }
+
+    @Test
+    @DisplayName("Events of other users are not streamed")
+    void forbidden() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(eventsUri(receiver))
+            .header("Accept", SERVER_SENT_EVENTS)
+            .header("Cookie", "token=" + token(sender))
+            .build();
+
+        HttpResponse<Void> response = httpClient.send(request, BodyHandlers.discarding());
+
+        assertThat(response.statusCode()).isEqualTo(UNAUTHORIZED.getStatusCode());
+    }
+
+    private HttpResponse<Stream<String>> openEvents(User user, String lastEventId) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(eventsUri(user))
+            .header("Accept", SERVER_SENT_EVENTS)
+            .header("Cookie", "token=" + token(user))
+            .header(LAST_EVENT_ID_HEADER, lastEventId)
+            .build();
+        return httpClient.send(request, BodyHandlers.ofLines());
+    }
+
+    private URI eventsUri(User user) {
+        return URI.create("http://localhost:" + config.getHttpPort() + "/users/" + user.email().address() + "/events");
+    }
+
+    private String token(User user) {
+        return tokenService.generateToken(user, Integer.MAX_VALUE).token();
+    }
+
+    private void sendMessage() {
+        Cookie senderCookie = new Cookie.Builder("token").value(token(sender)).build();
+        Response response = newClient()
+            .target("http://localhost:" + config.getHttpPort())
+            .path("users").path(sender.email().address()).path("contacts").path(receiver.email().address()).path("messages")
+            .request()
+            .cookie(senderCookie)
+            .post(text("encrypted-content"));
+        assertThat(response.getStatus()).isEqualTo(CREATED.getStatusCode());
+    }
+
+    private Map<String, String> nextEvent(Iterator<String> lines) {
+        Map<String, String> event = new HashMap<>();
+        while (lines.hasNext()) {
+            String line = lines.next();
+            if (line.isEmpty() && !event.isEmpty()) {
+                return event;
+            }
+            int separator = line.indexOf(':');
+            if (separator > 0) {
+                event.put(line.substring(0, separator), line.substring(separator + 1).trim());
+            }
+        }
+        return event;
+    }
+}
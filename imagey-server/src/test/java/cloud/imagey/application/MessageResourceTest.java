@@ -18,6 +18,7 @@ package cloud.imagey.application;
 
 import static jakarta.ws.rs.client.ClientBuilder.newClient;
 import static jakarta.ws.rs.client.Entity.text;
+import static jakarta.ws.rs.core.Response.Status.BAD_REQUEST;
 import static jakarta.ws.rs.core.Response.Status.CREATED;
 import static jakarta.ws.rs.core.Response.Status.OK;
 import static org.apache.commons.io.FileUtils.forceDelete;
@@ -128,9 +129,6 @@ public class MessageResourceTest {
             .post(text("first-content"));
         assertThat(firstMessage.getStatus()).isEqualTo(CREATED.getStatusCode());
 
-        // Wait a bit to ensure the timestamp in MessageId differs
-        Thread.sleep(10);
-
         // Send second message
         Response secondMessage = senderClient.path("contacts/receiver@example.com/messages")
             .post(text("second-content"));
@@ -202,6 +200,48 @@ public class MessageResourceTest {
         assertThat(response.getStatus()).isEqualTo(OK.getStatusCode());
     }
 
+    @Test
+    @DisplayName("Older messages are received page by page")
+    void receiveMessagesPaged() throws Exception {
+        senderClient.path("contacts/receiver@example.com/messages").post(text("first-content"));
+        senderClient.path("contacts/receiver@example.com/messages").post(text("second-content"));
+
+        List<Message> latest = newClient()
+            .register(RecordListMessageBodyWriter.class)
+            .target("http://localhost:" + config.getHttpPort())
+            .path("users").path(receiver.email().address()).path("contacts/sender@example.com/messages")
+            .queryParam("limit", 1)
+            .request()
+            .cookie(receiverCookie)
+            .get(new GenericType<List<Message>>() { });
+        List<Message> older = newClient()
+            .register(RecordListMessageBodyWriter.class)
+            .target("http://localhost:" + config.getHttpPort())
+            .path("users").path(receiver.email().address()).path("contacts/sender@example.com/messages")
+            .queryParam("limit", 1)
+            .queryParam("before", latest.get(0).id().value())
+            .request()
+            .cookie(receiverCookie)
+            .get(new GenericType<List<Message>>() { });
+
+        assertThat(latest).extracting(message -> message.content().value()).containsExactly("second-content");
+        assertThat(older).extracting(message -> message.content().value()).containsExactly("first-content");
+    }
+
+    @Test
+    @DisplayName("A limit below 1 is rejected")
+    void receiveMessagesInvalidLimit() {
+        Response response = newClient()
+            .target("http://localhost:" + config.getHttpPort())
+            .path("users").path(receiver.email().address()).path("contacts/sender@example.com/messages")
+            .queryParam("limit", 0)
+            .request()
+            .cookie(receiverCookie)
+            .get();
+
+        assertThat(response.getStatus()).isEqualTo(BAD_REQUEST.getStatusCode());
+    }
+
     public interface TestClient {
         Builder path(String path);
     }
@@ -0,0 +1,42 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.domain.chat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class MessageIdTest {
+
+    @Test
+    @DisplayName("sequence numbers are compared numerically and sorted after ids of unnumbered messages")
+    void compare() {
+        List<MessageId> ids = new ArrayList<>(List.of(new MessageId(10), new MessageId("1712000000000-b"), new MessageId(9),
+            new MessageId("1712000000000-a")));
+
+        ids.sort(null);
+
+        assertThat(ids).containsExactly(new MessageId("1712000000000-a"), new MessageId("1712000000000-b"), new MessageId("9"),
+            new MessageId("10"));
+        assertThat(new MessageId("10").sequence()).isEqualTo(10);
+        assertThat(new MessageId("msg-123").isSequence()).isFalse();
+    }
+}
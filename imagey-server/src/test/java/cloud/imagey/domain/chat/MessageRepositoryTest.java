@@ -0,0 +1,153 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.domain.chat;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Optional.empty;
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import jakarta.inject.Inject;
+
+import org.apache.meecrowave.junit5.MonoMeecrowaveConfig;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import cloud.imagey.domain.mail.Email;
+import cloud.imagey.domain.user.User;
+import cloud.imagey.infrastructure.common.RecordLog;
+
+@MonoMeecrowaveConfig
+public class MessageRepositoryTest {
+
+    private static final int LIMIT = 100;
+    private static final int PAGE_SIZE = 2;
+
+    @Inject
+    @ConfigProperty(name = "root.path")
+    private String rootPath;
+    @Inject
+    private MessageRepository messageRepository;
+
+    private User alice;
+    private User bob;
+
+    @BeforeEach
+    void initializeState() throws IOException {
+        File data = new File(rootPath);
+        if (data.exists()) {
+            forceDelete(data);
+        }
+        data.mkdirs();
+        alice = new User(new Email("alice@example.com"));
+        bob = new User(new Email("bob@example.com"));
+    }
+
+    @Test
+    @DisplayName("both participants read the messages of a conversation from one log")
+    void sharedLog() {
+        Message first = messageRepository.persist(bob, alice, new MessageContent("first"));
+        Message second = messageRepository.persist(alice, bob, new MessageContent("second"));
+
+        List<Message> alicesMessages = messageRepository.fetchMessages(alice, bob, empty(), empty(), LIMIT);
+        List<Message> bobsMessages = messageRepository.fetchMessages(bob, alice, Optional.of(first.id()), empty(), LIMIT);
+
+        assertThat(alicesMessages).extracting(Message::id).containsExactly(new MessageId(1), new MessageId(2));
+        assertThat(List.of(first.id(), second.id())).containsExactly(new MessageId(1), new MessageId(2));
+        assertThat(bobsMessages).extracting(Message::content).containsExactly(new MessageContent("second"));
+        assertThat(messageRepository.fetchMessages(bob, alice, Optional.of(second.id()), empty(), LIMIT)).isEmpty();
+        assertThat(messageRepository.fetchMessages(bob, alice, Optional.of(new MessageId("0")), empty(), LIMIT)).hasSize(2);
+        assertThat(new File(rootPath, "alice@example.com/conversations/bob@example.com").list()).hasSize(1);
+        assertThat(new File(rootPath, "bob@example.com/messages")).doesNotExist();
+    }
+
+    @Test
+    @DisplayName("the history is read page by page from the latest messages backwards")
+    void pages() {
+        List<MessageId> ids = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE * 2 + 1; i++) {
+            ids.add(messageRepository.persist(alice, bob, new MessageContent("message " + i)).id());
+        }
+        ids.sort(null);
+
+        List<Message> latest = messageRepository.fetchMessages(alice, bob, empty(), empty(), PAGE_SIZE);
+        List<Message> older = messageRepository.fetchMessages(alice, bob, empty(), Optional.of(latest.get(0).id()), PAGE_SIZE);
+        List<Message> between = messageRepository.fetchMessages(alice, bob, Optional.of(ids.get(0)), Optional.of(ids.get(3)), LIMIT);
+
+        assertThat(latest).extracting(Message::id).containsExactly(ids.get(3), ids.get(4));
+        assertThat(older).extracting(Message::id).containsExactly(ids.get(1), ids.get(2));
+        assertThat(between).extracting(Message::id).containsExactly(ids.get(1), ids.get(2));
+        assertThat(messageRepository.fetchMessages(alice, bob, Optional.of(ids.get(0)), empty(), 1))
+            .extracting(Message::id).containsExactly(ids.get(1));
+    }
+
+    @Test
+    @DisplayName("an unknown legacy cursor returns the latest messages")
+    void unknownCursor() {
+        List<MessageId> ids = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE * 2 + 1; i++) {
+            ids.add(messageRepository.persist(alice, bob, new MessageContent("message " + i)).id());
+        }
+        ids.sort(null);
+
+        assertThat(messageRepository.fetchMessages(alice, bob, Optional.of(new MessageId("1-unknown")), empty(), PAGE_SIZE))
+            .extracting(Message::id).containsExactly(ids.get(3), ids.get(4));
+    }
+
+    @Test
+    @DisplayName("messages stored as files are moved into the log")
+    void importMessageFiles() throws IOException {
+        File alicesMessages = new File(rootPath, "alice@example.com/messages/bob@example.com");
+        File bobsMessages = new File(rootPath, "bob@example.com/messages/alice@example.com");
+        writeStringToFile(new File(alicesMessages, "1-a.json"), "{\"sender\":\"bob@example.com\",\"content\":\"first\"}", UTF_8);
+        writeStringToFile(new File(bobsMessages, "1-a.json"), "{\"sender\":\"bob@example.com\",\"content\":\"first\"}", UTF_8);
+        writeStringToFile(new File(bobsMessages, "2-b.json"), "{\"sender\":\"alice@example.com\",\"content\":\"second\"}", UTF_8);
+
+        List<Message> messages = messageRepository.fetchMessages(bob, alice, empty(), empty(), LIMIT);
+
+        assertThat(messages).extracting(Message::id).containsExactly(new MessageId("1-a"), new MessageId("2-b"));
+        assertThat(alicesMessages).doesNotExist();
+        assertThat(bobsMessages).doesNotExist();
+        assertThat(messageRepository.fetchMessages(alice, bob, Optional.of(new MessageId("1-a")), empty(), LIMIT))
+            .extracting(Message::content).containsExactly(new MessageContent("second"));
+    }
+
+    @Test
+    @DisplayName("an import of messages stored as files, that was interrupted, is resumed without duplicates")
+    void resumeImport() throws IOException {
+        File alicesMessages = new File(rootPath, "alice@example.com/messages/bob@example.com");
+        writeStringToFile(new File(alicesMessages, "1-a.json"), "{\"sender\":\"bob@example.com\",\"content\":\"first\"}", UTF_8);
+        writeStringToFile(new File(alicesMessages, "2-b.json"), "{\"sender\":\"alice@example.com\",\"content\":\"second\"}", UTF_8);
+        RecordLog log = new RecordLog(new File(rootPath, "alice@example.com/conversations/bob@example.com"), LIMIT, true);
+        log.append("{\"id\":\"1-a\",\"sender\":\"bob@example.com\",\"content\":\"first\"}".getBytes(UTF_8));
+        log.close();
+
+        List<Message> messages = messageRepository.fetchMessages(bob, alice, empty(), empty(), LIMIT);
+
+        assertThat(messages).extracting(Message::id).containsExactly(new MessageId("1-a"), new MessageId("2-b"));
+        assertThat(alicesMessages).doesNotExist();
+    }
+}
@@ -17,11 +17,17 @@
 package cloud.imagey.domain.document;
 
 import static java.util.Optional.empty;
+import static java.util.concurrent.TimeUnit.DAYS;
 import static org.apache.commons.io.FileUtils.forceDelete;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -35,20 +41,35 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 import cloud.imagey.domain.encryption.EncryptedContent;
+import cloud.imagey.domain.encryption.EncryptedContentFile;
 import cloud.imagey.domain.encryption.EncryptedSharedKey;
 import cloud.imagey.domain.mail.Email;
 import cloud.imagey.domain.user.User;
+import cloud.imagey.infrastructure.ResourceConflictException;
+import cloud.imagey.infrastructure.common.ContentTiering;
+import cloud.imagey.infrastructure.common.JournalRecovery;
 
 @MonoMeecrowaveConfig
 public class DocumentRepositoryTest {
 
+    private static final int LONG_AGO_DAYS = 100;
+
     @Inject
     @ConfigProperty(name = "root.path")
     private String rootPath;
+    @Inject
+    @ConfigProperty(name = "tiering.cold.path")
+    private String coldPath;
 
     @Inject
     private DocumentRepository documentRepository;
 
+    @Inject
+    private DocumentIndex documentIndex;
+
+    @Inject
+    private ContentTiering contentTiering;
+
     private User user;
     private DocumentId documentId;
 
@@ -59,6 +80,10 @@ public class DocumentRepositoryTest {
             forceDelete(data);
         }
         data.mkdirs();
+        File coldData = new File(coldPath);
+        if (coldData.exists()) {
+            forceDelete(coldData);
+        }
 
         user = new User(new Email("test@example.com"));
         documentId = new DocumentId(UUID.randomUUID().toString());
@@ -96,6 +121,53 @@ public class DocumentRepositoryTest {
         assertThat(contentFile).exists();
     }
 
+    @Test
+    @DisplayName("persist content stream replaces existing file without leaving temporary files")
+    void persistContentStreamReplacesFile() {
+        FileName fileName = new FileName("content");
+        documentRepository.persist(user, documentId, fileName, new EncryptedContent(new byte[]{1, 2, 3, 4}));
+
+        long size = documentRepository.persist(user, documentId, fileName, new ByteArrayInputStream(new byte[]{5, 6}));
+
+        File filesFolder = new File(new File(new File(new File(rootPath, user.email().address()), "documents"), documentId.id()), "files");
+        assertThat(size).isEqualTo(2);
+        assertThat(filesFolder.list()).containsExactly("content");
+        assertThat(new File(filesFolder, "content")).hasBinaryContent(new byte[]{5, 6});
+    }
+
+    @Test
+    @DisplayName("loadContent reads the content file that findContent resolves")
+    void loadContentExisting() {
+        documentRepository.persist(user, documentId, new FileName("small"), new EncryptedContent(new byte[]{1, 2, 3}));
+
+        Optional<EncryptedContentFile> contentFile = documentRepository.findContent(user, documentId, new DocumentId("small"));
+        Optional<EncryptedContent> content = documentRepository.loadContent(user, documentId, new DocumentId("small"));
+
+        assertThat(contentFile).hasValueSatisfying(f -> assertThat(f.file()).hasSize(3));
+        assertThat(content).hasValueSatisfying(c -> assertThat(c.content()).containsExactly(1, 2, 3));
+    }
+
+    @Test
+    @DisplayName("content, that was not accessed for a long time, is moved to the cold volume and still found")
+    void loadContentFromColdVolume() throws IOException {
+        documentRepository.persist(user, documentId, new FileName("content"), new EncryptedContent(new byte[]{1, 2, 3}));
+        documentRepository.persist(user, documentId, new FileName("small"), new EncryptedContent(new byte[]{4}));
+        File filesFolder = new File(new File(new File(new File(rootPath, user.email().address()), "documents"), documentId.id()), "files");
+        FileTime longAgo = FileTime.fromMillis(System.currentTimeMillis() - DAYS.toMillis(LONG_AGO_DAYS));
+        for (String name : List.of("content", "small")) {
+            Files.getFileAttributeView(new File(filesFolder, name).toPath(), BasicFileAttributeView.class).setTimes(null, longAgo, null);
+        }
+
+        assertThat(contentTiering.tier()).isEqualTo(1);
+
+        assertThat(new File(filesFolder, "content")).doesNotExist();
+        assertThat(new File(filesFolder, "small")).exists();
+        assertThat(documentRepository.findContent(user, documentId, new DocumentId("content")))
+            .hasValueSatisfying(f -> assertThat(f.file()).isFile().hasSize(3));
+        assertThat(documentRepository.loadContent(user, documentId, new DocumentId("content")))
+            .hasValueSatisfying(c -> assertThat(c.content()).containsExactly(1, 2, 3));
+    }
+
     @Test
     @DisplayName("loadContent with non-existent contentId returns empty")
     void loadContentNonExistent() {
@@ -104,10 +176,22 @@ public class DocumentRepositoryTest {
     }
 
     @Test
-    @DisplayName("getTimestamp with non-existent metadata returns empty")
-    void getTimestampNonExistent() {
-        Optional<Long> timestamp = documentRepository.getTimestamp(user, documentId);
-        assertThat(timestamp).isEmpty();
+    @DisplayName("getVersion with non-existent metadata returns empty")
+    void getVersionNonExistent() {
+        Optional<Long> version = documentRepository.getVersion(user, documentId);
+        assertThat(version).isEmpty();
+    }
+
+    @Test
+    @DisplayName("every update of the metadata increments its version")
+    void versionIncrementedOnPersist() {
+        long first = documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{1}));
+        long second = documentRepository.lockDocument(user, documentId,
+            () -> documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{2})));
+
+        assertThat(first).isEqualTo(1);
+        assertThat(second).isEqualTo(2);
+        assertThat(documentRepository.getVersion(user, documentId)).hasValue(2L);
     }
 
     @Test
@@ -169,4 +253,147 @@ public class DocumentRepositoryTest {
         assertThat(sharedKey.get().issuerType()).isEqualTo("USER");
         assertThat(sharedKey.get().issuer()).isEqualTo("friend@example.com");
     }
+
+    @Test
+    @DisplayName("cached metadata and keys are replaced, when they are persisted again")
+    void cacheInvalidatedOnPersist() {
+        documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{1}));
+        documentRepository.persist(user, documentId, user.email(), new EncryptedContent(new byte[]{2}));
+        assertThat(documentRepository.findMetadata(user, documentId, user.email(), empty()))
+            .hasValueSatisfying(metadata -> assertThat(metadata.sharedKey().sharedKey()).isEqualTo("Ag=="));
+
+        documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{3}));
+        documentRepository.persist(user, documentId, user.email(), new EncryptedContent(new byte[]{4}));
+
+        assertThat(documentRepository.findMetadata(user, documentId, user.email(), empty()))
+            .hasValueSatisfying(metadata -> {
+                assertThat(metadata.metadata().content()).isEqualTo("Aw==");
+                assertThat(metadata.sharedKey().sharedKey()).isEqualTo("BA==");
+            });
+    }
+
+    @Test
+    @DisplayName("deltas are appended in order and dropped when they are compacted into the metadata")
+    void appendAndCompactDeltas() {
+        assertThat(documentRepository.appendDelta(user, documentId, new EncryptedContent(new byte[]{1}))).isEmpty();
+        documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{1}));
+
+        assertThat(documentRepository.appendDelta(user, documentId, new EncryptedContent(new byte[]{2}))).hasValue(1L);
+        assertThat(documentRepository.appendDelta(user, documentId, new EncryptedContent(new byte[]{3}))).hasValue(2L);
+        assertThat(documentRepository.appendDelta(user, documentId, new EncryptedContent(new byte[]{4}))).hasValue(3L);
+        assertThat(documentRepository.findDeltas(user, documentId, 1, Integer.MAX_VALUE))
+            .containsExactly(new Delta(2, "Aw=="), new Delta(3, "BA=="));
+
+        long version = documentRepository.compact(user, documentId, new EncryptedContent(new byte[]{1, 2, 3}), 2);
+
+        assertThat(version).isEqualTo(2);
+        assertThat(documentRepository.findDeltas(user, documentId, 0, Integer.MAX_VALUE)).containsExactly(new Delta(3, "BA=="));
+        assertThat(documentRepository.getVersion(user, documentId)).hasValue(2L);
+        assertThatThrownBy(() -> documentRepository.compact(user, documentId, new EncryptedContent(new byte[]{1}), 4))
+            .isInstanceOf(ResourceConflictException.class);
+    }
+
+    @Test
+    @DisplayName("findMetadata lists documents from the persisted index")
+    void findMetadataFromIndex() {
+        DocumentId otherDocumentId = new DocumentId(UUID.randomUUID().toString());
+        documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{1, 2, 3}));
+        documentRepository.persist(user, documentId, user.email(), new EncryptedContent(new byte[]{4, 5, 6}));
+        documentRepository.persist(user, otherDocumentId, new EncryptedContent(new byte[]{7, 8, 9}));
+
+        List<DocumentMetadata> metadata = documentRepository.findMetadata(user, empty());
+
+        assertThat(metadata).extracting(DocumentMetadata::documentId).containsExactly(documentId);
+        File documentHome = new File(new File(rootPath, user.email().address()), "documents");
+        assertThat(new File(documentHome, DocumentIndex.LOG_FILE)).exists();
+    }
+
+    @Test
+    @DisplayName("findMetadata rebuilds the index when the index files are missing")
+    void findMetadataRebuildsIndex() {
+        documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{1, 2, 3}));
+        documentRepository.persist(user, documentId, user.email(), new EncryptedContent(new byte[]{4, 5, 6}));
+        File documentHome = new File(new File(rootPath, user.email().address()), "documents");
+        new File(documentHome, DocumentIndex.SNAPSHOT_FILE).delete();
+        new File(documentHome, DocumentIndex.LOG_FILE).delete();
+
+        List<DocumentMetadata> metadata = documentRepository.findMetadata(user, empty());
+
+        assertThat(metadata).extracting(DocumentMetadata::documentId).containsExactly(documentId);
+        assertThat(new File(documentHome, DocumentIndex.SNAPSHOT_FILE)).exists();
+    }
+
+    @Test
+    @DisplayName("findMetadata with folderId lists the documents of the folder only")
+    void findMetadataOfFolder() {
+        DocumentId folderId = new DocumentId("folder123");
+        DocumentId otherDocumentId = new DocumentId(UUID.randomUUID().toString());
+        documentRepository.persist(user, folderId, new EncryptedContent(new byte[]{1, 2, 3}));
+        documentRepository.persist(user, folderId, user.email(), new EncryptedContent(new byte[]{4, 5, 6}));
+        documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{1, 2, 3}));
+        documentRepository.persist(user, documentId, new Email(folderId.id()), new EncryptedContent(new byte[]{4, 5, 6}));
+        documentRepository.persist(user, otherDocumentId, new EncryptedContent(new byte[]{1, 2, 3}));
+        documentRepository.persist(user, otherDocumentId, user.email(), new EncryptedContent(new byte[]{4, 5, 6}));
+
+        List<DocumentMetadata> metadata = documentRepository.findMetadata(user, Optional.of(folderId));
+
+        assertThat(metadata).extracting(DocumentMetadata::documentId).containsExactly(documentId);
+        assertThat(metadata.get(0).sharedKey().issuerType()).isEqualTo("FOLDER");
+    }
+
+    @Test
+    @DisplayName("findMetadata with folderId pages through the documents of the folder and the owner gets their folder keys")
+    void findMetadataOfFolderPaged() {
+        DocumentId folderId = new DocumentId("folder123");
+        DocumentId otherDocumentId = new DocumentId(UUID.randomUUID().toString());
+        for (DocumentId id : List.of(documentId, otherDocumentId)) {
+            documentRepository.persist(user, id, new EncryptedContent(new byte[]{1, 2, 3}));
+            documentRepository.persist(user, id, new Email(folderId.id()), new EncryptedContent(new byte[]{4, 5, 6}));
+        }
+        DocumentId first = documentId.id().compareTo(otherDocumentId.id()) < 0 ? documentId : otherDocumentId;
+        DocumentId second = first.equals(documentId) ? otherDocumentId : documentId;
+
+        List<DocumentMetadata> firstPage = documentRepository.findMetadata(user, Optional.of(folderId), empty(), 1);
+        List<DocumentMetadata> secondPage = documentRepository.findMetadata(user, Optional.of(folderId), Optional.of(first), 1);
+
+        assertThat(firstPage).extracting(DocumentMetadata::documentId).containsExactly(first);
+        assertThat(secondPage).extracting(DocumentMetadata::documentId).containsExactly(second);
+        assertThat(documentRepository.findDocumentKey(user, documentId, user.email()))
+            .hasValueSatisfying(key -> assertThat(key.issuer()).isEqualTo(folderId.id()));
+    }
+
+    @Test
+    @DisplayName("persist document writes metadata, key and all contents in one transaction")
+    void persistDocumentTransactionally() {
+        byte[] largeContent = new byte[100_000];
+        List<ContentUpload> contents = List.of(
+            new ContentUpload(new FileName("small"), new ByteArrayInputStream(new byte[]{7, 8})),
+            new ContentUpload(new FileName("content"), new ByteArrayInputStream(largeContent)));
+
+        DocumentId persistedId = documentRepository.persist(
+            user, new EncryptedContent(new byte[]{1, 2, 3}), user.email(), new EncryptedContent(new byte[]{4, 5, 6}), contents);
+
+        File documentFolder = new File(new File(new File(rootPath, user.email().address()), "documents"), persistedId.id());
+        assertThat(new File(new File(documentFolder, "files"), "small")).hasBinaryContent(new byte[]{7, 8});
+        assertThat(new File(new File(documentFolder, "files"), "content")).hasBinaryContent(largeContent);
+        assertThat(documentRepository.findMetadata(user, empty()))
+            .extracting(DocumentMetadata::documentId).containsExactly(persistedId);
+        assertThat(new File(rootPath, ".staging").list()).isNullOrEmpty();
+    }
+
+    @Test
+    @DisplayName("journal recovery drops the index of the users whose documents were recovered")
+    void journalRecoveryInvalidatesIndex() {
+        documentRepository.persist(user, documentId, new EncryptedContent(new byte[]{1, 2, 3}));
+        documentRepository.persist(user, documentId, user.email(), new EncryptedContent(new byte[]{4, 5, 6}));
+        File documentHome = new File(new File(rootPath, user.email().address()), "documents");
+
+        documentIndex.invalidate(new JournalRecovery(List.of(
+            new File(new File(documentHome, documentId.id()), "metadata.enc"),
+            new File(rootPath, "unrelated"))));
+
+        assertThat(new File(documentHome, DocumentIndex.LOG_FILE)).doesNotExist();
+        assertThat(documentRepository.findMetadata(user, empty()))
+            .extracting(DocumentMetadata::documentId).containsExactly(documentId);
+    }
 }
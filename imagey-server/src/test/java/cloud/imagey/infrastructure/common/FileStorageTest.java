@@ -0,0 +1,41 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class FileStorageTest extends StorageConformanceTest {
+
+    @Override
+    protected Storage open(File root) {
+        return new FileStorage(root);
+    }
+
+    @Test
+    @DisplayName("blobs are stored in the directory layout of their keys")
+    void layout() {
+        storage.write("alice/contacts/bob/key.json", bytes("{}"));
+
+        assertThat(new File(root, "alice/contacts/bob/key.json")).hasBinaryContent(bytes("{}"));
+        assertThat(new File(root, "alice/contacts/bob").list()).containsExactly("key.json");
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RecordLogTest {
+
+    private static final int SEGMENT_SIZE = 128;
+    private static final int RECORDS = 20;
+
+    @TempDir
+    private File folder;
+
+    @Test
+    @DisplayName("records are read after a sequence number across segments")
+    void appendAndRead() {
+        RecordLog log = new RecordLog(folder, SEGMENT_SIZE, true);
+        for (int i = 1; i <= RECORDS; i++) {
+            assertThat(log.append(bytes("record " + i))).isEqualTo(i);
+        }
+
+        List<RecordLog.Entry> entries = log.read(RECORDS - 3, RECORDS);
+
+        assertThat(entries).extracting(RecordLog.Entry::sequence).containsExactly(18L, 19L, 20L);
+        assertThat(entries.get(0).data()).isEqualTo(bytes("record 18"));
+        assertThat(log.read(0, 2)).extracting(RecordLog.Entry::sequence).containsExactly(1L, 2L);
+        assertThat(log.read(RECORDS, RECORDS)).isEmpty();
+        assertThat(folder.list()).hasSizeGreaterThan(1);
+    }
+
+    @Test
+    @DisplayName("a batch of records is appended across segments")
+    void appendAll() {
+        RecordLog log = new RecordLog(folder, SEGMENT_SIZE, true);
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 1; i <= RECORDS; i++) {
+            records.add(bytes("record " + i));
+        }
+
+        assertThat(log.appendAll(records)).isEqualTo(RECORDS);
+
+        assertThat(new RecordLog(folder, SEGMENT_SIZE, true).read(0, RECORDS)).extracting(RecordLog.Entry::data)
+            .containsExactlyElementsOf(records);
+        assertThat(folder.list()).hasSizeGreaterThan(1);
+    }
+
+    @Test
+    @DisplayName("a torn record at the end of the log is truncated when it is opened again")
+    void recoverTornRecord() throws IOException {
+        RecordLog log = new RecordLog(folder, SEGMENT_SIZE, true);
+        log.append(bytes("first"));
+        log.append(bytes("second"));
+        log.close();
+        File segment = new File(folder, String.format("%020d", 1) + RecordLog.SEGMENT_SUFFIX);
+        long size = segment.length();
+        Files.write(segment.toPath(), new byte[] {0x49, 0x4d, 0x4c}, APPEND);
+
+        RecordLog recovered = new RecordLog(folder, SEGMENT_SIZE, true);
+
+        assertThat(segment.length()).isEqualTo(size);
+        assertThat(recovered.lastSequence()).isEqualTo(2);
+        assertThat(recovered.append(bytes("third"))).isEqualTo(3);
+        assertThat(recovered.read(0, RECORDS)).extracting(RecordLog.Entry::sequence).containsExactly(1L, 2L, 3L);
+    }
+
+    @Test
+    @DisplayName("truncated records are deleted and their sequence numbers are not reused")
+    void truncate() {
+        RecordLog log = new RecordLog(folder, SEGMENT_SIZE, true);
+        for (int i = 1; i <= RECORDS; i++) {
+            log.append(bytes("record " + i));
+        }
+
+        log.truncate(RECORDS);
+        log.close();
+        RecordLog reopened = new RecordLog(folder, SEGMENT_SIZE, true);
+
+        assertThat(folder.list()).hasSize(1);
+        assertThat(reopened.read(0, RECORDS)).isEmpty();
+        assertThat(reopened.append(bytes("next"))).isEqualTo(RECORDS + 1);
+    }
+
+    private byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+}
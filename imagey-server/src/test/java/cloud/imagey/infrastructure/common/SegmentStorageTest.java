@@ -0,0 +1,90 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class SegmentStorageTest extends StorageConformanceTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int THRESHOLD = 4096;
+
+    @Override
+    protected Storage open(File root) {
+        return new SegmentStorage(root, SEGMENT_SIZE, false, THRESHOLD, 0.5);
+    }
+
+    @Test
+    @DisplayName("small blobs are packed into the segments of their user")
+    void packed() {
+        storage.write("alice/contacts/bob/key.json", bytes("{}"));
+
+        assertThat(new File(root, "alice/contacts")).doesNotExist();
+        assertThat(new File(root, "alice").list()).containsExactly(SegmentStorage.SEGMENTS_FOLDER);
+    }
+
+    @Test
+    @DisplayName("in the sharded layout, small blobs are packed into the segments of their user below the shards")
+    void packedSharded() {
+        storage.write("9f/3a/alice/contacts/bob/key.json", bytes("{}"));
+        storage.write("9f/3a/carol/contacts/bob/key.json", bytes("[]"));
+
+        assertThat(new File(root, "9f").list()).containsExactly("3a");
+        assertThat(new File(root, "9f/3a/alice").list()).containsExactly(SegmentStorage.SEGMENTS_FOLDER);
+        assertThat(new File(root, "9f/3a/carol").list()).containsExactly(SegmentStorage.SEGMENTS_FOLDER);
+        assertThat(storage.read("9f/3a/alice/contacts/bob/key.json")).hasValue(bytes("{}"));
+        assertThat(storage.children("9f/3a")).containsExactly("alice", "carol");
+
+        storage.delete("9f/3a/alice");
+
+        assertThat(storage.read("9f/3a/alice/contacts/bob/key.json")).isEmpty();
+        assertThat(storage.read("9f/3a/carol/contacts/bob/key.json")).hasValue(bytes("[]"));
+    }
+
+    @Test
+    @DisplayName("existing files stay readable and are replaced by their packed version")
+    void existingFiles() throws IOException {
+        File file = new File(root, "alice/contacts/bob/key.json");
+        writeByteArrayToFile(file, bytes("old"));
+
+        assertThat(storage.read("alice/contacts/bob/key.json")).hasValue(bytes("old"));
+        assertThat(storage.children("alice/contacts")).containsExactly("bob");
+
+        storage.write("alice/contacts/bob/key.json", bytes("new"));
+
+        assertThat(file).doesNotExist();
+        assertThat(storage.read("alice/contacts/bob/key.json")).hasValue(bytes("new"));
+    }
+
+    @Test
+    @DisplayName("deleting a user deletes the segments of the user")
+    void deleteUser() {
+        storage.write("alice/contacts/bob/key.json", bytes("{}"));
+
+        storage.delete("alice");
+
+        assertThat(new File(root, "alice")).doesNotExist();
+        assertThat(storage.read("alice/contacts/bob/key.json")).isEmpty();
+    }
+}
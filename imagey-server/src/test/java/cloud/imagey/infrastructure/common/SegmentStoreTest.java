@@ -0,0 +1,138 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SegmentStoreTest {
+
+    private static final int SEGMENT_SIZE = 256;
+    private static final int ENTRIES = 20;
+
+    @TempDir
+    private File folder;
+
+    @Test
+    @DisplayName("blobs can be written, overwritten and deleted")
+    void putGetDelete() {
+        SegmentStore store = new SegmentStore(folder, SEGMENT_SIZE, true);
+
+        store.put("documents/1/metadata.enc", bytes("first"));
+        store.put("documents/1/metadata.enc", bytes("second"));
+        store.put("documents/2/metadata.enc", bytes("other"));
+        boolean deleted = store.delete("documents/2/metadata.enc");
+
+        assertThat(deleted).isTrue();
+        assertThat(store.delete("documents/2/metadata.enc")).isFalse();
+        assertThat(store.get("documents/1/metadata.enc")).hasValue(bytes("second"));
+        assertThat(store.get("documents/2/metadata.enc")).isEmpty();
+        assertThat(store.stat("documents/1/metadata.enc").get().length()).isEqualTo(bytes("second").length);
+        assertThat(store.keys("documents/")).containsExactly("documents/1/metadata.enc");
+    }
+
+    @Test
+    @DisplayName("blobs are recovered after reopening")
+    void recover() {
+        SegmentStore store = new SegmentStore(folder, SEGMENT_SIZE, true);
+        for (int i = 0; i < ENTRIES; i++) {
+            store.put("key" + i, bytes("value" + i));
+        }
+        store.put("key0", bytes("overwritten"));
+        store.delete("key1");
+        long sequence = store.stat("key0").get().sequence();
+        store.close();
+
+        SegmentStore reopened = new SegmentStore(folder, SEGMENT_SIZE, true);
+
+        assertThat(folder.list()).hasSizeGreaterThan(1);
+        assertThat(reopened.get("key0")).hasValue(bytes("overwritten"));
+        assertThat(reopened.get("key1")).isEmpty();
+        assertThat(reopened.get("key" + (ENTRIES - 1))).hasValue(bytes("value" + (ENTRIES - 1)));
+        assertThat(reopened.put("key2", bytes("new")).sequence()).isGreaterThan(sequence);
+    }
+
+    @Test
+    @DisplayName("a torn record at the end of the last segment is truncated")
+    void tornRecord() throws IOException {
+        SegmentStore store = new SegmentStore(folder, SEGMENT_SIZE, true);
+        store.put("key", bytes("value"));
+        store.close();
+        File segment = folder.listFiles()[0];
+        long validLength = segment.length();
+        Files.write(segment.toPath(), new byte[] {0x49, 0x4d, 0x47}, APPEND);
+
+        SegmentStore reopened = new SegmentStore(folder, SEGMENT_SIZE, true);
+
+        assertThat(reopened.get("key")).hasValue(bytes("value"));
+        assertThat(segment).hasSize(validLength);
+        reopened.put("other", bytes("other"));
+        reopened.close();
+        assertThat(new SegmentStore(folder, SEGMENT_SIZE, true).get("other")).hasValue(bytes("other"));
+    }
+
+    @Test
+    @DisplayName("a corrupted record is ignored")
+    void corruptedRecord() throws IOException {
+        SegmentStore store = new SegmentStore(folder, SEGMENT_SIZE, true);
+        store.put("key", bytes("value"));
+        store.close();
+        File segment = folder.listFiles()[0];
+        byte[] content = Files.readAllBytes(segment.toPath());
+        content[content.length - 5] ^= 1;
+        Files.write(segment.toPath(), content);
+
+        assertThat(new SegmentStore(folder, SEGMENT_SIZE, true).get("key")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("compaction reclaims overwritten and deleted records")
+    void compact() {
+        SegmentStore store = new SegmentStore(folder, SEGMENT_SIZE, false);
+        for (int i = 0; i < ENTRIES; i++) {
+            store.put("key", bytes("value" + i));
+            store.put("deleted" + i, bytes("value" + i));
+            store.delete("deleted" + i);
+        }
+        assertThat(store.garbageRatio()).isGreaterThan(0.5);
+
+        store.compact();
+
+        assertThat(store.garbageRatio()).isZero();
+        assertThat(folder.list()).hasSize(1);
+        assertThat(store.get("key")).hasValue(bytes("value" + (ENTRIES - 1)));
+        store.release();
+        store.close();
+        SegmentStore reopened = new SegmentStore(folder, SEGMENT_SIZE, false);
+        assertThat(reopened.get("key")).hasValue(bytes("value" + (ENTRIES - 1)));
+        assertThat(reopened.keys("deleted")).isEmpty();
+        assertThat(reopened.lastAccess()).isPositive();
+    }
+
+    private byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShardedLayoutTest {
+
+    @TempDir
+    private File root;
+
+    private Storage storage;
+    private ShardedLayout layout;
+
+    @BeforeEach
+    void createLayout() {
+        storage = new FileStorage(root);
+        layout = new ShardedLayout(storage);
+    }
+
+    @Test
+    @DisplayName("user homes and document folders are sharded by two levels of their hash")
+    void shard() {
+        String sharded = layout.shard("alice@imagey.cloud/documents/42/metadata.enc");
+
+        assertThat(sharded).matches("[0-9a-f]{2}/[0-9a-f]{2}/alice@imagey.cloud/documents/[0-9a-f]{2}/[0-9a-f]{2}/42/metadata.enc");
+        assertThat(sharded).startsWith(layout.shard("alice@imagey.cloud"));
+        assertThat(layout.shard("alice@imagey.cloud/contacts/bob@imagey.cloud/key.json"))
+            .matches("[0-9a-f]{2}/[0-9a-f]{2}/alice@imagey.cloud/contacts/bob@imagey.cloud/key.json");
+        assertThat(layout.locations("")).containsExactly("");
+    }
+
+    @Test
+    @DisplayName("children are listed from both layouts")
+    void children() {
+        storage.write("alice@imagey.cloud/documents/1/metadata.enc", bytes("flat"));
+        storage.write(layout.shard("alice@imagey.cloud/documents/2/metadata.enc"), bytes("sharded"));
+        storage.write(layout.shard("bob@imagey.cloud/contacts/alice@imagey.cloud/key.json"), bytes("{}"));
+
+        assertThat(layout.children("")).containsExactly("alice@imagey.cloud", "bob@imagey.cloud");
+        assertThat(layout.children("alice@imagey.cloud/documents")).containsExactly("1", "2");
+        assertThat(layout.children("bob@imagey.cloud/contacts")).containsExactly("alice@imagey.cloud");
+    }
+
+    @Test
+    @DisplayName("migration moves users and their documents into the sharded layout")
+    void migrate() {
+        storage.write("alice@imagey.cloud/documents/1/metadata.enc", bytes("metadata"));
+        storage.write("alice@imagey.cloud/documents/1/files/content", bytes("content"));
+        storage.write("alice@imagey.cloud/public-keys/0.json", bytes("key"));
+        storage.write(layout.shard("alice@imagey.cloud/documents/2/metadata.enc"), bytes("sharded"));
+
+        layout.migrate();
+
+        assertThat(root.list()).allMatch(name -> name.length() == 2);
+        assertThat(storage.read(layout.shard("alice@imagey.cloud/documents/1/metadata.enc"))).hasValue(bytes("metadata"));
+        assertThat(storage.read(layout.shard("alice@imagey.cloud/documents/1/files/content"))).hasValue(bytes("content"));
+        assertThat(storage.read(layout.shard("alice@imagey.cloud/public-keys/0.json"))).hasValue(bytes("key"));
+        assertThat(layout.children("alice@imagey.cloud/documents")).containsExactly("1", "2");
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+
+    private static final int WAITERS = 8;
+    private static final long TIMEOUT = 5000;
+    private static final long SHORT_TIMEOUT = 10;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("concurrent loads of the same key share one load")
+    void coalesces() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(TIMEOUT);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+
+        Future<String> leader = executor.submit(() -> singleFlight.load("preview", () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            await(release);
+            return "value";
+        }));
+        loading.await();
+        List<Thread> waiters = new ArrayList<>();
+        List<String> results = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < WAITERS; i++) {
+            Thread waiter = new Thread(() -> results.add(singleFlight.load("preview", () -> "value " + loads.incrementAndGet())));
+            waiter.start();
+            waiters.add(waiter);
+        }
+        for (Thread waiter : waiters) {
+            while (waiter.getState() != Thread.State.TIMED_WAITING) {
+                Thread.onSpinWait();
+            }
+        }
+        release.countDown();
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+
+        assertThat(leader.get()).isEqualTo("value");
+        assertThat(results).hasSize(WAITERS).containsOnly("value");
+        assertThat(loads).hasValue(1);
+        assertThat(singleFlight.getLoads()).isEqualTo(1);
+        assertThat(singleFlight.getCoalesced()).isEqualTo(WAITERS);
+        assertThat(singleFlight.getCoalescingRatio()).isEqualTo((double)WAITERS / (WAITERS + 1));
+        assertThat(singleFlight.load("preview", () -> "reloaded")).isEqualTo("reloaded");
+    }
+
+    @Test
+    @DisplayName("waiters get the exception of the load and load themselves after the timeout")
+    void failsAndTimesOut() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(SHORT_TIMEOUT);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> leader = executor.submit(() -> singleFlight.load("metadata", () -> {
+            loading.countDown();
+            await(release);
+            throw new IllegalArgumentException("broken");
+        }));
+        loading.await();
+
+        assertThat(singleFlight.load("metadata", () -> "own")).isEqualTo("own");
+        release.countDown();
+
+        assertThat(leader).failsWithin(Duration.ofMillis(TIMEOUT))
+            .withThrowableOfType(ExecutionException.class)
+            .withCauseInstanceOf(IllegalArgumentException.class);
+        assertThat(singleFlight.getTimeouts()).isEqualTo(1);
+        assertThatThrownBy(() -> singleFlight.load("metadata", () -> {
+            throw new IllegalStateException("failed");
+        })).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compares the throughput of the {@link FileStorage} with the {@link SegmentStorage}
+ * for a metadata-heavy workload, i.e. many small blobs, that are written once and listed and read often.
+ * Both storages write without forcing, so the comparison is not dominated by the storage device.
+ */
+@Tag("benchmark")
+public class StorageBenchmarkTest {
+
+    private static final Logger LOG = LogManager.getLogger(StorageBenchmarkTest.class);
+    private static final int DOCUMENTS = 2000;
+    private static final int BLOB_SIZE = 256;
+    private static final int LISTINGS = 5;
+
+    @TempDir
+    private File root;
+
+    @Test
+    @DisplayName("the packed storage needs far fewer files than the file storage for small blobs")
+    void compareStorages() throws IOException {
+        Measurement files = measure(new File(root, "file"), FileStorage::new);
+        Measurement packed = measure(new File(root, "packed"), folder -> new SegmentStorage(folder, 16 * 1024 * 1024, false, 4096, 0.5));
+
+        LOG.info("file storage: {} writes/s, {} reads/s, {} files", files.writes(), files.reads(), files.files());
+        LOG.info("packed storage: {} writes/s, {} reads/s, {} files", packed.writes(), packed.reads(), packed.files());
+
+        assertThat(files.files()).isGreaterThanOrEqualTo(DOCUMENTS);
+        assertThat(packed.files()).isLessThan(DOCUMENTS / 100);
+    }
+
+    private Measurement measure(File folder, Function<File, Storage> backend) throws IOException {
+        byte[] blob = new byte[BLOB_SIZE];
+        new Random(0).nextBytes(blob);
+        try (Storage storage = backend.apply(folder)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++) {
+                storage.write("alice/documents/" + i + "/metadata.enc", blob);
+            }
+            long writeDuration = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long reads = 0;
+            for (int listing = 0; listing < LISTINGS; listing++) {
+                for (String documentId : storage.children("alice/documents")) {
+                    reads += storage.read("alice/documents/" + documentId + "/metadata.enc").orElseThrow().length / BLOB_SIZE;
+                }
+            }
+            long readDuration = System.nanoTime() - start;
+            assertThat(reads).isEqualTo((long)DOCUMENTS * LISTINGS);
+            return new Measurement(perSecond(DOCUMENTS, writeDuration), perSecond(reads, readDuration), countFiles(folder));
+        }
+    }
+
+    private long perSecond(long operations, long nanos) {
+        return Math.round(operations / (nanos / 1_000_000_000d));
+    }
+
+    private long countFiles(File folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private record Measurement(long writes, long reads, long files) {
+    }
+}
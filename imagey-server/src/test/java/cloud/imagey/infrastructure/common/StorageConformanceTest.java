@@ -0,0 +1,251 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Contract of the {@link Storage}, that every backend has to fulfill.
+ */
+public abstract class StorageConformanceTest {
+
+    private static final int LARGE_BLOB_SIZE = 100_000;
+    private static final int THREADS = 8;
+    private static final int WRITES_PER_THREAD = 50;
+
+    @TempDir
+    protected File root;
+
+    protected Storage storage;
+
+    protected abstract Storage open(File root);
+
+    @BeforeEach
+    void openStorage() {
+        storage = open(root);
+    }
+
+    @AfterEach
+    void closeStorage() {
+        storage.close();
+    }
+
+    @Test
+    @DisplayName("a written blob can be read and replaced")
+    void writeAndRead() {
+        BlobInfo first = storage.write("alice/documents/1/metadata.enc", bytes("first"));
+        BlobInfo second = storage.write("alice/documents/1/metadata.enc", bytes("second value"));
+
+        assertThat(storage.read("alice/documents/1/metadata.enc")).hasValue(bytes("second value"));
+        assertThat(storage.stat("alice/documents/1/metadata.enc")).hasValue(second);
+        assertThat(second.length()).isEqualTo(bytes("second value").length);
+        assertThat(second.version()).isNotEqualTo(first.version());
+        assertThat(storage.exists("alice/documents/1/metadata.enc")).isTrue();
+    }
+
+    @Test
+    @DisplayName("large blobs are stored as well")
+    void largeBlob() {
+        byte[] data = new byte[LARGE_BLOB_SIZE];
+        data[data.length - 1] = 1;
+
+        storage.write("alice/documents/1/metadata.enc", data);
+
+        assertThat(storage.read("alice/documents/1/metadata.enc")).hasValue(data);
+        assertThat(storage.stat("alice/documents/1/metadata.enc").get().length()).isEqualTo(LARGE_BLOB_SIZE);
+    }
+
+    @Test
+    @DisplayName("a streamed blob can be read as stream")
+    void writeAndOpenStream() throws IOException {
+        byte[] data = new byte[LARGE_BLOB_SIZE];
+        data[data.length - 1] = 1;
+
+        BlobInfo small = storage.write("alice/documents/1/metadata.enc", new ByteArrayInputStream(bytes("small")));
+        BlobInfo large = storage.write("alice/documents/1/files/0", new ByteArrayInputStream(data));
+
+        assertThat(small.length()).isEqualTo(bytes("small").length);
+        assertThat(large.length()).isEqualTo(LARGE_BLOB_SIZE);
+        try (InputStream input = storage.open("alice/documents/1/metadata.enc").get()) {
+            assertThat(input.readAllBytes()).isEqualTo(bytes("small"));
+        }
+        try (InputStream input = storage.open("alice/documents/1/files/0").get()) {
+            assertThat(input.readAllBytes()).isEqualTo(data);
+        }
+        assertThat(storage.open("alice/documents/2/metadata.enc")).isEmpty();
+        assertThat(storage.file("alice/documents/1/files/0")).hasBinaryContent(data);
+    }
+
+    @Test
+    @DisplayName("written blobs can be forced wherever they are stored and missing blobs are ignored")
+    void force() {
+        byte[] data = new byte[LARGE_BLOB_SIZE];
+        storage.write("alice/documents/1/metadata.enc", bytes("small"));
+        storage.write("alice/documents/1/files/0", data);
+
+        storage.force("alice/documents/1/metadata.enc");
+        storage.force("alice/documents/1/files/0");
+        storage.force("alice/documents/2/metadata.enc");
+
+        assertThat(storage.read("alice/documents/1/metadata.enc")).hasValue(bytes("small"));
+        assertThat(storage.read("alice/documents/1/files/0")).hasValue(data);
+    }
+
+    @Test
+    @DisplayName("missing keys are reported as absent")
+    void missingKey() {
+        assertThat(storage.read("bob/contacts/alice/key.json")).isEmpty();
+        assertThat(storage.stat("bob/contacts/alice/key.json")).isEmpty();
+        assertThat(storage.exists("bob/contacts/alice")).isFalse();
+        assertThat(storage.children("bob/contacts")).isEmpty();
+        assertThat(storage.delete("bob/contacts")).isFalse();
+        assertThat(new File(root, "bob")).doesNotExist();
+    }
+
+    @Test
+    @DisplayName("children lists blobs and folders directly below a folder in their natural order")
+    void children() {
+        storage.write("alice/messages/bob/2.json", bytes("2"));
+        storage.write("alice/messages/bob/1.json", bytes("1"));
+        storage.write("alice/messages/carol/1.json", bytes("1"));
+        storage.write("alice/status.txt", bytes("status"));
+
+        assertThat(storage.children("alice/messages/bob")).containsExactly("1.json", "2.json");
+        assertThat(storage.children("alice/messages")).containsExactly("bob", "carol");
+        assertThat(storage.children("alice")).containsExactly("messages", "status.txt");
+        assertThat(storage.children("")).containsExactly("alice");
+        assertThat(storage.exists("alice/messages")).isTrue();
+    }
+
+    @Test
+    @DisplayName("deleting a folder deletes all blobs below it")
+    void deleteFolder() {
+        storage.write("alice/contact-requests/bob/status.txt", bytes("INVITATION_SENT"));
+        storage.write("alice/contact-requests/bob/nested/key.json", bytes("{}"));
+        storage.write("alice/contact-requests/carol/status.txt", bytes("INVITATION_SENT"));
+
+        boolean deleted = storage.delete("alice/contact-requests/bob");
+
+        assertThat(deleted).isTrue();
+        assertThat(storage.exists("alice/contact-requests/bob")).isFalse();
+        assertThat(storage.read("alice/contact-requests/bob/status.txt")).isEmpty();
+        assertThat(storage.children("alice/contact-requests")).containsExactly("carol");
+    }
+
+    @Test
+    @DisplayName("moving a folder moves all blobs below it")
+    void moveFolder() {
+        storage.write("alice/documents/1/metadata.enc", bytes("metadata"));
+        storage.write("alice/documents/1/keys/alice/encrypted-shared.key", bytes("key"));
+
+        boolean moved = storage.move("alice/documents/1", "ab/cd/alice/documents/1");
+
+        assertThat(moved).isTrue();
+        assertThat(storage.exists("alice/documents/1")).isFalse();
+        assertThat(storage.read("ab/cd/alice/documents/1/metadata.enc")).hasValue(bytes("metadata"));
+        assertThat(storage.read("ab/cd/alice/documents/1/keys/alice/encrypted-shared.key")).hasValue(bytes("key"));
+        assertThat(storage.move("alice/documents/1", "ab/cd/alice/documents/1")).isFalse();
+    }
+
+    @Test
+    @DisplayName("moving into an existing folder keeps the blobs of the target")
+    void moveMerges() {
+        storage.write("alice/documents/1/metadata.enc", bytes("old"));
+        storage.write("alice/documents/1/keys/alice/encrypted-shared.key", bytes("key"));
+        storage.write("ab/cd/alice/documents/1/metadata.enc", bytes("new"));
+
+        storage.move("alice", "ab/cd/alice");
+
+        assertThat(storage.exists("alice")).isFalse();
+        assertThat(storage.read("ab/cd/alice/documents/1/metadata.enc")).hasValue(bytes("new"));
+        assertThat(storage.read("ab/cd/alice/documents/1/keys/alice/encrypted-shared.key")).hasValue(bytes("key"));
+    }
+
+    @Test
+    @DisplayName("blobs survive closing and reopening the storage")
+    void reopen() {
+        storage.write("alice/public-keys/0.json", bytes("key"));
+        storage.write("alice/devices/1/recovery-key.txt", bytes("recovery"));
+        storage.delete("alice/devices/1/recovery-key.txt");
+        storage.close();
+
+        storage = open(root);
+
+        assertThat(storage.read("alice/public-keys/0.json")).hasValue(bytes("key"));
+        assertThat(storage.read("alice/devices/1/recovery-key.txt")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("concurrent writes are all visible")
+    void concurrentWrites() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                String user = "user" + thread;
+                writes.add(executor.submit(() -> {
+                    for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                        storage.write(user + "/messages/bob/" + i + ".json", bytes(user + i));
+                    }
+                }));
+            }
+            for (Future<?> write : writes) {
+                write.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int thread = 0; thread < THREADS; thread++) {
+            assertThat(storage.children("user" + thread + "/messages/bob")).hasSize(WRITES_PER_THREAD);
+            assertThat(storage.read("user" + thread + "/messages/bob/0.json")).hasValue(bytes("user" + thread + 0));
+        }
+    }
+
+    @Test
+    @DisplayName("maintenance keeps the blobs readable")
+    void maintain() {
+        for (int i = 0; i < WRITES_PER_THREAD; i++) {
+            storage.write("alice/documents/1/metadata.enc", bytes("version " + i));
+        }
+
+        storage.maintain(Long.MAX_VALUE);
+
+        assertThat(storage.read("alice/documents/1/metadata.enc")).hasValue(bytes("version " + (WRITES_PER_THREAD - 1)));
+    }
+
+    protected static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class StripedLocksTest {
+
+    private static final int STRIPES = 16;
+    private static final long WAIT_SECONDS = 10;
+
+    private final StripedLocks locks = new StripedLocks(STRIPES);
+
+    @Test
+    @DisplayName("keys are spread over all stripes")
+    void spreadsKeys() {
+        assertThat(IntStream.range(0, STRIPES * STRIPES).mapToObj(Integer::valueOf).map(locks::stripe).distinct().count())
+            .isEqualTo(STRIPES);
+    }
+
+    @Test
+    @DisplayName("the lock of a key is reentrant and excludes other threads")
+    void excludesOtherThreads() throws InterruptedException {
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> locks.locked("key", () -> {
+            locked.countDown();
+            return await(release);
+        }));
+        holder.start();
+        locked.await(WAIT_SECONDS, TimeUnit.SECONDS);
+
+        Thread waiter = new Thread(() -> locks.locked("key", () -> true));
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        release.countDown();
+        waiter.join();
+        holder.join();
+
+        assertThat(locks.locked("key", () -> locks.locked("key", () -> "reentered"))).isEqualTo("reentered");
+    }
+
+    @Test
+    @DisplayName("readers of a key share its lock and exclude writers")
+    void sharesReadLock() throws InterruptedException {
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> locks.readLocked("key", () -> {
+            locked.countDown();
+            return await(release);
+        }));
+        holder.start();
+        locked.await(WAIT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(locks.readLocked("key", () -> "shared")).isEqualTo("shared");
+        Thread writer = new Thread(() -> locks.locked("key", () -> true));
+        writer.start();
+        while (writer.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        release.countDown();
+        writer.join();
+        holder.join();
+
+        assertThat(locks.locked("key", () -> locks.readLocked("key", () -> "downgraded"))).isEqualTo("downgraded");
+    }
+
+    private boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ThumbnailCacheTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int THUMBNAIL_SIZE = 2500;
+    private static final long CACHE_SIZE = 1024 * 1024;
+    private static final int RANGE_START = 1000;
+    private static final int RANGE_END = 2100;
+
+    @TempDir
+    private File root;
+
+    private final ThumbnailCache cache = new ThumbnailCache(CACHE_SIZE, CHUNK_SIZE, THUMBNAIL_SIZE, List.of("small", "preview"));
+
+    @Test
+    @DisplayName("thumbnails are cached when they are requested the second time")
+    void admitsOnSecondRequest() throws IOException {
+        File thumbnail = thumbnail("1/files/small", 1);
+
+        assertThat(cache.open(thumbnail)).isEmpty();
+        assertThat(cache.read(thumbnail)).hasValue(content(1));
+        writeByteArrayToFile(thumbnail, content(2));
+
+        assertThat(cache.read(thumbnail)).hasValue(content(2));
+        assertThat(cache.read(thumbnail)).hasValue(content(2));
+        assertThat(cache.metrics().getSize()).isEqualTo(1);
+        assertThat(cache.metrics().getWeight()).isEqualTo(3 * CHUNK_SIZE);
+    }
+
+    @Test
+    @DisplayName("ranges of cached thumbnails are written from native memory")
+    void writesRanges() throws IOException {
+        File thumbnail = thumbnail("1/files/preview", 1);
+        cache.open(thumbnail);
+        Optional<OffHeapContent> cached = cache.open(thumbnail);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try {
+            cached.get().writeTo(Channels.newChannel(output), RANGE_START, RANGE_END);
+        } finally {
+            cached.get().release();
+        }
+
+        assertThat(output.toByteArray()).isEqualTo(Arrays.copyOfRange(content(1), RANGE_START, RANGE_END));
+    }
+
+    @Test
+    @DisplayName("originals, large files and missing files are not cached")
+    void ignoresOtherFiles() throws IOException {
+        File original = thumbnail("1/files/content", 1);
+        File large = new File(root, "2/files/small");
+        writeByteArrayToFile(large, new byte[THUMBNAIL_SIZE + 1]);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(cache.open(original)).isEmpty();
+            assertThat(cache.open(large)).isEmpty();
+            assertThat(cache.open(new File(root, "3/files/small"))).isEmpty();
+        }
+        assertThat(cache.caches(original)).isFalse();
+        assertThat(new ThumbnailCache(0, CHUNK_SIZE, THUMBNAIL_SIZE, List.of("small")).caches(large)).isFalse();
+    }
+
+    @Test
+    @DisplayName("chunks of evicted thumbnails are reused only after their readers released them")
+    void freesChunksAfterRelease() throws IOException {
+        ThumbnailCache small = new ThumbnailCache(CHUNK_SIZE * 3, CHUNK_SIZE, THUMBNAIL_SIZE, List.of("small"));
+        File first = thumbnail("1/files/small", 1);
+        File second = thumbnail("2/files/small", 2);
+        small.open(first);
+        OffHeapContent reading = small.open(first).get();
+
+        small.open(second);
+        small.open(second);
+        small.open(second);
+
+        assertThat(reading.toByteArray()).isEqualTo(content(1));
+        reading.release();
+        assertThat(small.read(second)).hasValue(content(2));
+    }
+
+    @Test
+    @DisplayName("thumbnails are cached after the arena was filled by other thumbnails")
+    void evictsWhenArenaIsFull() throws IOException {
+        int arenaChunks = 300;
+        int thumbnailChunks = 3;
+        ThumbnailCache small = new ThumbnailCache(CHUNK_SIZE * arenaChunks, CHUNK_SIZE, THUMBNAIL_SIZE, List.of("small"));
+        for (int i = 1; i <= arenaChunks / thumbnailChunks; i++) {
+            File thumbnail = thumbnail(i + "/files/small", i);
+            small.open(thumbnail);
+            small.read(thumbnail);
+        }
+        assertThat(small.metrics().getWeight()).isEqualTo(CHUNK_SIZE * arenaChunks);
+
+        File latest = thumbnail("new/files/small", 1);
+        small.open(latest);
+        small.open(latest);
+        assertThat(small.read(latest)).hasValue(content(1));
+        long hits = small.metrics().getHits();
+
+        assertThat(small.read(latest)).hasValue(content(1));
+        assertThat(small.metrics().getHits()).isEqualTo(hits + 1);
+        assertThat(small.metrics().getEvictions()).isPositive();
+        assertThat(small.metrics().getWeight()).isLessThanOrEqualTo(CHUNK_SIZE * arenaChunks);
+    }
+
+    private File thumbnail(String path, int seed) throws IOException {
+        File file = new File(root, path);
+        writeByteArrayToFile(file, content(seed));
+        return file;
+    }
+
+    private byte[] content(int seed) {
+        byte[] content = new byte[THUMBNAIL_SIZE];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte)(i * seed);
+        }
+        return content;
+    }
+}
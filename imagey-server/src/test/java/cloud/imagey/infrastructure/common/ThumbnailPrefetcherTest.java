@@ -0,0 +1,124 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ThumbnailPrefetcherTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int THUMBNAIL_SIZE = 2000;
+    private static final long CACHE_SIZE = 1024 * 1024;
+    private static final int COUNT = 4;
+    private static final long IDLE_TIMEOUT = 60;
+    private static final long WAIT_MILLIS = 10_000;
+
+    @TempDir
+    private File root;
+
+    private final ThumbnailCache cache = new ThumbnailCache(CACHE_SIZE, CHUNK_SIZE, THUMBNAIL_SIZE, List.of("small"));
+    private ThumbnailPrefetcher prefetcher;
+
+    @AfterEach
+    void stop() {
+        prefetcher.stop();
+    }
+
+    @Test
+    @DisplayName("the first thumbnails of a listing are cached before they are requested")
+    void prefetchesFirstThumbnails() throws IOException {
+        prefetcher = new ThumbnailPrefetcher(cache, COUNT, 1, CACHE_SIZE, IDLE_TIMEOUT);
+        List<File> thumbnails = thumbnails(COUNT + 2);
+
+        prefetcher.prefetch("alice@imagey.cloud", thumbnails);
+        await(prefetcher::getPrefetchedFiles, COUNT);
+
+        assertThat(cache.metrics().getSize()).isEqualTo(COUNT);
+        assertThat(cache.read(thumbnails.get(0))).hasValue(content(0));
+        assertThat(cache.read(thumbnails.get(0))).hasValue(content(0));
+        assertThat(prefetcher.getHits()).isEqualTo(1);
+        assertThat(prefetcher.getHitRate()).isEqualTo(1.0 / COUNT);
+        assertThat(prefetcher.getPrefetchedBytes()).isEqualTo(COUNT * THUMBNAIL_SIZE);
+    }
+
+    @Test
+    @DisplayName("a prefetch stops when its budget of bytes is read")
+    void stopsAtBudget() throws IOException {
+        prefetcher = new ThumbnailPrefetcher(cache, COUNT, 1, THUMBNAIL_SIZE + 1, IDLE_TIMEOUT);
+        List<File> thumbnails = thumbnails(COUNT);
+
+        prefetcher.prefetch("alice@imagey.cloud", thumbnails);
+        prefetcher.prefetch("bob@imagey.cloud", List.of(thumbnail("bob/files/small", COUNT)));
+        await(prefetcher::getPrefetchedFiles, 3);
+
+        assertThat(cache.metrics().getSize()).isEqualTo(3);
+        assertThat(prefetcher.getScheduled()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("files, that are not cached, are read into the page cache")
+    void readsUncachedFiles() throws IOException {
+        prefetcher = new ThumbnailPrefetcher(cache, COUNT, 1, CACHE_SIZE, IDLE_TIMEOUT);
+
+        prefetcher.prefetch("alice@imagey.cloud", List.of(thumbnail("1/files/content", 1), new File(root, "missing/files/small")));
+        await(prefetcher::getPrefetchedBytes, THUMBNAIL_SIZE);
+
+        assertThat(prefetcher.getPrefetchedFiles()).isEqualTo(1);
+        assertThat(cache.metrics().getSize()).isZero();
+    }
+
+    private void await(LongSupplier value, long expected) {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (value.getAsLong() < expected && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertThat(value.getAsLong()).isEqualTo(expected);
+    }
+
+    private List<File> thumbnails(int count) throws IOException {
+        List<File> thumbnails = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            thumbnails.add(thumbnail(i + "/files/small", i));
+        }
+        return thumbnails;
+    }
+
+    private File thumbnail(String path, int seed) throws IOException {
+        File file = new File(root, path);
+        writeByteArrayToFile(file, content(seed));
+        return file;
+    }
+
+    private byte[] content(int seed) {
+        byte[] content = new byte[THUMBNAIL_SIZE];
+        Arrays.fill(content, (byte)seed);
+        return content;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import cloud.imagey.infrastructure.common.VolumeStorage.Volume;
+
+public class VolumeStorageTest extends StorageConformanceTest {
+
+    private static final int USERS = 20;
+
+    @Override
+    protected Storage open(File root) {
+        return volumes(root, 2);
+    }
+
+    @Test
+    @DisplayName("the users are spread over all volumes and a user is stored on one volume")
+    void spreadsUsers() {
+        for (int i = 0; i < USERS; i++) {
+            storage.write("user" + i + "@imagey.cloud/public-keys/0.json", bytes("key"));
+            storage.write("user" + i + "@imagey.cloud/documents/1/metadata.enc", bytes("metadata"));
+        }
+
+        for (Volume volume : ((VolumeStorage)storage).volumes()) {
+            assertThat(volume.storage().children("")).isNotEmpty();
+            for (String user : volume.storage().children("")) {
+                assertThat(volume.storage().exists(user + "/documents/1/metadata.enc")).isTrue();
+            }
+            assertThat(volume.metrics().getWrites()).isEqualTo(2L * volume.storage().children("").size());
+        }
+        assertThat(storage.children("")).hasSize(USERS);
+    }
+
+    @Test
+    @DisplayName("users stay readable after adding a volume and are moved to it by rebalancing")
+    void rebalance() {
+        for (int i = 0; i < USERS; i++) {
+            storage.write("user" + i + "@imagey.cloud/public-keys/0.json", bytes("key" + i));
+        }
+        storage.close();
+        VolumeStorage extended = volumes(root, 3);
+        storage = extended;
+
+        for (int i = 0; i < USERS; i++) {
+            assertThat(storage.read("user" + i + "@imagey.cloud/public-keys/0.json")).hasValue(bytes("key" + i));
+        }
+        Volume added = extended.volumes().get(2);
+        assertThat(added.storage().children("")).isEmpty();
+
+        extended.rebalance();
+
+        assertThat(added.storage().children("")).isNotEmpty();
+        assertThat(added.metrics().getUsersMovedIn()).isEqualTo(added.storage().children("").size());
+        assertThat(storage.children("")).hasSize(USERS);
+        for (int i = 0; i < USERS; i++) {
+            assertThat(storage.read("user" + i + "@imagey.cloud/public-keys/0.json")).hasValue(bytes("key" + i));
+            storage.write("user" + i + "@imagey.cloud/public-keys/1.json", bytes("new" + i));
+        }
+        int stored = 0;
+        for (Volume volume : extended.volumes()) {
+            for (String user : volume.storage().children("")) {
+                assertThat(volume.storage().exists(user + "/public-keys/1.json")).isTrue();
+                stored++;
+            }
+        }
+        assertThat(stored).isEqualTo(USERS);
+    }
+
+    private VolumeStorage volumes(File root, int count) {
+        List<Volume> volumes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File volumeRoot = new File(root, "volume-" + i);
+            volumes.add(new Volume(volumeRoot, new FileStorage(volumeRoot), new VolumeMetrics(volumeRoot)));
+        }
+        return new VolumeStorage(volumes);
+    }
+}
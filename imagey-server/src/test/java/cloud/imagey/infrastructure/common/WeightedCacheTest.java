@@ -0,0 +1,162 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class WeightedCacheTest {
+
+    private static final long MAXIMUM_WEIGHT = 10_000;
+    private static final int VALUE_WEIGHT = 100;
+    private static final int HOT_KEYS = 50;
+    private static final int SCANNED_KEYS = 10_000;
+    private static final int SCAN_STEP = 100;
+
+    private final WeightedCache<String, String> cache = new WeightedCache<>(MAXIMUM_WEIGHT, value -> VALUE_WEIGHT);
+
+    @Test
+    @DisplayName("loaded values are cached and counted as hits afterwards")
+    void readThrough() {
+        assertThat(cache.get("a", key -> "value of " + key)).isEqualTo("value of a");
+        assertThat(cache.get("a", key -> "reloaded")).isEqualTo("value of a");
+        assertThat(cache.get("missing", key -> null)).isNull();
+
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(2);
+        assertThat(cache.getHitRate()).isEqualTo(1.0 / 3);
+        assertThat(cache.getSize()).isEqualTo(1);
+        assertThat(cache.getWeight()).isEqualTo(VALUE_WEIGHT);
+    }
+
+    @Test
+    @DisplayName("the weight of the cached values stays below the maximum")
+    void boundedByWeight() {
+        for (int i = 0; i < SCANNED_KEYS; i++) {
+            cache.get("key" + i, key -> key);
+        }
+
+        assertThat(cache.getWeight()).isLessThanOrEqualTo(MAXIMUM_WEIGHT);
+        assertThat(cache.getEvictions()).isPositive();
+        assertThat(cache.getMaximumWeight()).isEqualTo(MAXIMUM_WEIGHT);
+    }
+
+    @Test
+    @DisplayName("frequently read values survive a scan over values that are read once")
+    void scanResistant() {
+        for (int i = 0; i < SCANNED_KEYS; i++) {
+            if (i % SCAN_STEP == 0) {
+                for (int j = 0; j < HOT_KEYS; j++) {
+                    cache.get("hot" + j, key -> key);
+                }
+            }
+            cache.get("scanned" + i, key -> key);
+        }
+
+        int cachedHotKeys = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            if (cache.getIfPresent("hot" + i) != null) {
+                cachedHotKeys++;
+            }
+        }
+        assertThat(cachedHotKeys).isGreaterThan(HOT_KEYS * 9 / 10);
+    }
+
+    @Test
+    @DisplayName("a rejected value is the only eviction and keeps the values it would have evicted")
+    void rejectedValue() {
+        List<String> removed = new ArrayList<>();
+        WeightedCache<String, String> small = new WeightedCache<>(VALUE_WEIGHT * 3, value -> VALUE_WEIGHT, removed::add);
+        small.get("a", key -> key);
+        small.get("a", key -> key);
+        small.get("b", key -> key);
+        small.get("b", key -> key);
+        small.get("c", key -> key);
+        small.get("d", key -> key);
+
+        assertThat(removed).containsExactly("c");
+        assertThat(small.getEvictions()).isEqualTo(1);
+        assertThat(small.peek("a")).isEqualTo("a");
+        assertThat(small.peek("b")).isEqualTo("b");
+        assertThat(small.peek("d")).isEqualTo("d");
+    }
+
+    @Test
+    @DisplayName("a loaded value is returned cached, even if it is not admitted")
+    void loadedValueStaysCached() {
+        List<String> removed = new ArrayList<>();
+        WeightedCache<String, String> small = new WeightedCache<>(VALUE_WEIGHT * 3, value -> VALUE_WEIGHT, removed::add);
+        small.get("a", key -> key);
+        small.get("a", key -> key);
+        small.get("b", key -> key);
+        small.get("b", key -> key);
+
+        assertThat(small.get("c", key -> key)).isEqualTo("c");
+
+        assertThat(removed).isEmpty();
+        assertThat(small.peek("c")).isEqualTo("c");
+    }
+
+    @Test
+    @DisplayName("of two concurrently loaded values the one cached first is returned")
+    void concurrentLoad() {
+        List<String> removed = new ArrayList<>();
+        WeightedCache<String, String> logs = new WeightedCache<>(MAXIMUM_WEIGHT, value -> VALUE_WEIGHT, removed::add);
+
+        String value = logs.get("a", key -> {
+            logs.put(key, "first");
+            return "second";
+        });
+
+        assertThat(value).isEqualTo("first");
+        assertThat(removed).containsExactly("second");
+        assertThat(logs.getSize()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("invalidated values are loaded again and values invalidated while loading are not cached")
+    void invalidate() {
+        cache.get("a", key -> "old");
+        cache.get("b", key -> "old");
+
+        cache.invalidate("a");
+        assertThat(cache.get("a", key -> {
+            cache.invalidateAll(k -> k.equals("b"));
+            return "loading";
+        })).isEqualTo("loading");
+
+        assertThat(cache.getIfPresent("a")).isNull();
+        assertThat(cache.getIfPresent("b")).isNull();
+        assertThat(cache.get("a", key -> "new")).isEqualTo("new");
+        assertThat(cache.getWeight()).isEqualTo(VALUE_WEIGHT);
+    }
+
+    @Test
+    @DisplayName("values heavier than the cache are not cached")
+    void tooHeavy() {
+        WeightedCache<String, String> small = new WeightedCache<>(VALUE_WEIGHT, value -> VALUE_WEIGHT * 2);
+
+        small.put("a", "a");
+
+        assertThat(small.getSize()).isZero();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class ByteRangeTest {
+
+    private static final long LENGTH = 1000;
+    private static final int MAX_RANGES = 4;
+
+    @Test
+    @DisplayName("Closed, open and suffix ranges are parsed")
+    void parseRanges() {
+        assertThat(ByteRange.parse("bytes=0-499", LENGTH, MAX_RANGES)).hasValue(List.of(new ByteRange(0, 500)));
+        assertThat(ByteRange.parse("bytes=900-", LENGTH, MAX_RANGES)).hasValue(List.of(new ByteRange(900, 1000)));
+        assertThat(ByteRange.parse("bytes=-100", LENGTH, MAX_RANGES)).hasValue(List.of(new ByteRange(900, 1000)));
+        assertThat(ByteRange.parse("bytes=-2000", LENGTH, MAX_RANGES)).hasValue(List.of(new ByteRange(0, 1000)));
+        assertThat(ByteRange.parse("bytes=990-2000", LENGTH, MAX_RANGES)).hasValue(List.of(new ByteRange(990, 1000)));
+    }
+
+    @Test
+    @DisplayName("Unsatisfiable ranges are dropped")
+    void unsatisfiableRanges() {
+        assertThat(ByteRange.parse("bytes=1000-", LENGTH, MAX_RANGES)).hasValue(List.of());
+        assertThat(ByteRange.parse("bytes=-0", LENGTH, MAX_RANGES)).hasValue(List.of());
+        assertThat(ByteRange.parse("bytes=0-0,2000-", LENGTH, MAX_RANGES)).hasValue(List.of(new ByteRange(0, 1)));
+    }
+
+    @Test
+    @DisplayName("Malformed headers are ignored")
+    void malformedHeaders() {
+        assertThat(ByteRange.parse(null, LENGTH, MAX_RANGES)).isEmpty();
+        assertThat(ByteRange.parse("items=0-1", LENGTH, MAX_RANGES)).isEmpty();
+        assertThat(ByteRange.parse("bytes=5-1", LENGTH, MAX_RANGES)).isEmpty();
+        assertThat(ByteRange.parse("bytes=-", LENGTH, MAX_RANGES)).isEmpty();
+        assertThat(ByteRange.parse("bytes=a-b", LENGTH, MAX_RANGES)).isEmpty();
+        assertThat(ByteRange.parse("bytes=0-1,2-3,4-5,6-7,8-9", LENGTH, MAX_RANGES)).isEmpty();
+        assertThat(ByteRange.parse("bytes=99999999999999999999-", LENGTH, MAX_RANGES)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Content range describes the last byte inclusively")
+    void contentRange() {
+        assertThat(new ByteRange(10, 20).contentRange(LENGTH)).isEqualTo("bytes 10-19/1000");
+        assertThat(new ByteRange(10, 20).length()).isEqualTo(10);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static cloud.imagey.infrastructure.jaxrs.DownloadBenchmarks.fileWriter;
+import static org.apache.commons.io.FileUtils.readFileToByteArray;
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Random;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import cloud.imagey.infrastructure.common.ThumbnailCache;
+import cloud.imagey.infrastructure.jaxrs.DownloadBenchmarks.Blob;
+import cloud.imagey.infrastructure.jaxrs.DownloadBenchmarks.BlobFile;
+
+/**
+ * Compares the download of a content file through the byte array based {@link BinaryMessageBodyWriter}
+ * with the file based {@link FileRecordMessageBodyWriter}.
+ */
+@Tag("benchmark")
+public class ContentDownloadBenchmarkTest {
+
+    private static final Logger LOG = LogManager.getLogger(ContentDownloadBenchmarkTest.class);
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 20;
+
+    private File file;
+    private BinaryMessageBodyWriter binaryWriter;
+    private FileRecordMessageBodyWriter fileWriter;
+
+    @BeforeEach
+    void createContent() throws Exception {
+        file = Files.createTempFile("content", ".enc").toFile();
+        byte[] content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(content);
+        writeByteArrayToFile(file, content);
+
+        binaryWriter = new BinaryMessageBodyWriter();
+        fileWriter = fileWriter(new ThumbnailCache());
+    }
+
+    @AfterEach
+    void deleteContent() throws IOException {
+        Files.delete(file.toPath());
+    }
+
+    @Test
+    @DisplayName("File based download allocates far less than the byte array based download")
+    void compareDownloadPaths() throws Exception {
+        Measurement bytes = measure(() -> binaryWriter.writeTo(new Blob(readFileToByteArray(file)), Blob.class, Blob.class,
+            null, null, new MultivaluedHashMap<>(), OutputStream.nullOutputStream()));
+        Measurement channel = measure(() -> fileWriter.writeTo(new BlobFile(file), BlobFile.class, BlobFile.class,
+            null, null, new MultivaluedHashMap<>(), OutputStream.nullOutputStream()));
+
+        LOG.info("byte[] download: {} MB/s, {} bytes allocated per download", bytes.throughput(), bytes.allocatedBytes());
+        LOG.info("file download: {} MB/s, {} bytes allocated per download", channel.throughput(), channel.allocatedBytes());
+
+        assertThat(bytes.allocatedBytes()).isGreaterThanOrEqualTo(FILE_SIZE);
+        assertThat(channel.allocatedBytes()).isLessThan(FILE_SIZE / 16);
+    }
+
+    private Measurement measure(Download download) throws Exception {
+        ThreadMXBean threadBean = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < WARMUP; i++) {
+            download.run();
+        }
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            download.run();
+        }
+        long duration = System.nanoTime() - start;
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        double megabytes = (double)FILE_SIZE * ITERATIONS / (1024 * 1024);
+        return new Measurement(Math.round(megabytes / (duration / 1_000_000_000d)), allocated / ITERATIONS);
+    }
+
+
+    private interface Download {
+        void run() throws Exception;
+    }
+
+    private record Measurement(long throughput, long allocatedBytes) {
+    }
+}
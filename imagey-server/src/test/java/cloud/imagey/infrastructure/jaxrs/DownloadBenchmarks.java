@@ -0,0 +1,43 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import java.io.File;
+
+import cloud.imagey.infrastructure.common.ThumbnailCache;
+
+/**
+ * The writers and entities, that the download benchmarks compare.
+ */
+final class DownloadBenchmarks {
+
+    private DownloadBenchmarks() {
+    }
+
+    /**
+     * Creates a writer, that transfers the files itself, because there is no connector to send them.
+     */
+    static FileRecordMessageBodyWriter fileWriter(ThumbnailCache thumbnailCache) {
+        return new FileRecordMessageBodyWriter(null, thumbnailCache, Long.MAX_VALUE);
+    }
+
+    record Blob(byte[] content) {
+    }
+
+    record BlobFile(File file) {
+    }
+}
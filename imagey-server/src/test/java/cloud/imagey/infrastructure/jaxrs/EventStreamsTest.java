@@ -0,0 +1,189 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static cloud.imagey.infrastructure.jaxrs.EventStreams.RESET;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import cloud.imagey.infrastructure.jaxrs.EventStreams.Event;
+
+public class EventStreamsTest {
+
+    private static final String OWNER = "alice@imagey.cloud";
+    private static final int BUFFER_SIZE = 3;
+    private static final long COALESCE_DELAY = 50;
+    private static final long HEARTBEAT_INTERVAL = 60;
+    private static final long WAIT_SECONDS = 10;
+
+    private final EventStreams eventStreams = new EventStreams(BUFFER_SIZE, COALESCE_DELAY, HEARTBEAT_INTERVAL);
+
+    @AfterEach
+    void stop() {
+        eventStreams.stop();
+    }
+
+    @Test
+    @DisplayName("published events are sent to the subscribers of the owner")
+    void sendsEvents() throws InterruptedException {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        RecordingSubscriber other = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, null, subscriber);
+        eventStreams.subscribe("bob@imagey.cloud", null, other);
+
+        eventStreams.publish(OWNER, "message", "bob@imagey.cloud");
+
+        Event event = subscriber.next();
+        assertThat(event.name()).isEqualTo("message");
+        assertThat(event.data()).isEqualTo("bob@imagey.cloud");
+        assertThat(other.events).isEmpty();
+    }
+
+    @Test
+    @DisplayName("equal pending events are sent once with the id of the latest")
+    void coalescesEvents() throws InterruptedException {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, null, subscriber);
+
+        eventStreams.publish(OWNER, "message", "bob@imagey.cloud");
+        eventStreams.publish(OWNER, "contact", "carol@imagey.cloud");
+        eventStreams.publish(OWNER, "message", "bob@imagey.cloud");
+
+        Event contact = subscriber.next();
+        Event message = subscriber.next();
+        assertThat(contact.name()).isEqualTo("contact");
+        assertThat(message.name()).isEqualTo("message");
+        assertThat(message.id()).endsWith("-3");
+        assertThat(subscriber.events.poll(COALESCE_DELAY * 2, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test
+    @DisplayName("a resumed subscriber gets the events after its last event id")
+    void resumes() throws InterruptedException {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, null, subscriber);
+        eventStreams.publish(OWNER, "message", "bob@imagey.cloud");
+        Event last = subscriber.next();
+
+        eventStreams.publish(OWNER, "device", "phone");
+        RecordingSubscriber resumed = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, last.id(), resumed);
+
+        Event missed = resumed.next();
+        assertThat(missed.name()).isEqualTo("device");
+        assertThat(missed.data()).isEqualTo("phone");
+    }
+
+    @Test
+    @DisplayName("a subscriber that missed more than the buffer or comes from an unknown stream is reset")
+    void resets() throws InterruptedException {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, null, subscriber);
+        eventStreams.publish(OWNER, "message", "bob@imagey.cloud");
+        Event first = subscriber.next();
+        for (int i = 0; i <= BUFFER_SIZE; i++) {
+            eventStreams.publish(OWNER, "device", "device-" + i);
+        }
+
+        RecordingSubscriber late = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, first.id(), late);
+        RecordingSubscriber unknown = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, "before-restart-1", unknown);
+
+        Event reset = late.next();
+        assertThat(reset.name()).isEqualTo(RESET);
+        assertThat(reset.id()).endsWith("-" + (BUFFER_SIZE + 2));
+        assertThat(unknown.next().name()).isEqualTo(RESET);
+    }
+
+    @Test
+    @DisplayName("closed subscribers are dropped")
+    void dropsClosedSubscribers() throws InterruptedException {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, null, subscriber);
+        subscriber.closed = true;
+
+        eventStreams.publish(OWNER, "message", "bob@imagey.cloud");
+        subscriber.next();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(WAIT_SECONDS);
+        while (eventStreams.subscribers(OWNER) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(COALESCE_DELAY);
+        }
+        assertThat(eventStreams.subscribers(OWNER)).isZero();
+    }
+
+    @Test
+    @DisplayName("the stream of an owner without subscribers is removed and a resumed subscriber is reset")
+    void removesUnsubscribedStreams() throws InterruptedException {
+        eventStreams.publish(OWNER, "message", "bob@imagey.cloud");
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, null, subscriber);
+        eventStreams.publish(OWNER, "contact", "carol@imagey.cloud");
+        Event last = subscriber.next();
+        assertThat(last.id()).endsWith("-1");
+        subscriber.closed = true;
+        eventStreams.publish(OWNER, "device", "phone");
+        subscriber.next();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(WAIT_SECONDS);
+        while (eventStreams.subscribers(OWNER) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(COALESCE_DELAY);
+        }
+        eventStreams.publish(OWNER, "message", "dave@imagey.cloud");
+        RecordingSubscriber resumed = new RecordingSubscriber();
+        eventStreams.subscribe(OWNER, last.id(), resumed);
+
+        assertThat(resumed.next().name()).isEqualTo(RESET);
+        assertThat(resumed.events.poll(COALESCE_DELAY * 2, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    private static class RecordingSubscriber implements EventStreams.Subscriber {
+
+        private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        @Override
+        public boolean send(Event event) {
+            events.add(event);
+            return !closed;
+        }
+
+        @Override
+        public boolean ping() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        Event next() throws InterruptedException {
+            Event event = events.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+            assertThat(event).isNotNull();
+            return event;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static cloud.imagey.infrastructure.jaxrs.FileRecordMessageBodyWriter.SENDFILE_FILENAME;
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import cloud.imagey.infrastructure.common.ThumbnailCache;
+import cloud.imagey.infrastructure.jaxrs.DownloadBenchmarks.BlobFile;
+
+public class FileRecordMessageBodyWriterTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int THUMBNAIL_SIZE = 2500;
+    private static final long CACHE_SIZE = 1024 * 1024;
+
+    @TempDir
+    private File root;
+
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final ThumbnailCache cache = new ThumbnailCache(CACHE_SIZE, CHUNK_SIZE, THUMBNAIL_SIZE, List.of("small"));
+    private final FileRecordMessageBodyWriter writer = new FileRecordMessageBodyWriter(request(), cache, 1);
+
+    @Test
+    @DisplayName("thumbnails are sent with sendfile, until they are cached, and written from the cache afterwards")
+    void sendsUncachedThumbnails() throws IOException {
+        File thumbnail = new File(root, "1/files/small");
+        byte[] content = new byte[THUMBNAIL_SIZE];
+        content[THUMBNAIL_SIZE - 1] = 1;
+        writeByteArrayToFile(thumbnail, content);
+        attributes.put(FileRecordMessageBodyWriter.SENDFILE_SUPPORT, true);
+
+        ByteArrayOutputStream sent = write(thumbnail);
+
+        assertThat(sent.size()).isZero();
+        assertThat(attributes).containsEntry(SENDFILE_FILENAME, thumbnail.getCanonicalPath());
+
+        attributes.remove(SENDFILE_FILENAME);
+        ByteArrayOutputStream written = write(thumbnail);
+
+        assertThat(written.toByteArray()).isEqualTo(content);
+        assertThat(attributes).doesNotContainKey(SENDFILE_FILENAME);
+    }
+
+    private ByteArrayOutputStream write(File file) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer.writeTo(new BlobFile(file), BlobFile.class, BlobFile.class, null, null, new MultivaluedHashMap<>(), output);
+        return output;
+    }
+
+    private HttpServletRequest request() {
+        return (HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+            (proxy, method, args) -> switch (method.getName()) {
+                case "getAttribute" -> attributes.get(args[0]);
+                case "setAttribute" -> attributes.put((String)args[0], args[1]);
+                default -> null;
+            });
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of Imagey.
+ *
+ * Imagey is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Imagey is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Imagey.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.imagey.infrastructure.jaxrs;
+
+import static cloud.imagey.infrastructure.jaxrs.DownloadBenchmarks.fileWriter;
+import static org.apache.commons.io.FileUtils.readFileToByteArray;
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.management.ThreadMXBean;
+
+import cloud.imagey.infrastructure.common.ThumbnailCache;
+import cloud.imagey.infrastructure.common.WeightedCache;
+import cloud.imagey.infrastructure.jaxrs.DownloadBenchmarks.Blob;
+import cloud.imagey.infrastructure.jaxrs.DownloadBenchmarks.BlobFile;
+
+/**
+ * Compares the garbage collection pressure of serving thumbnails while scrolling through a gallery
+ * without a cache, with a cache on the heap and with the off-heap {@link ThumbnailCache}.
+ */
+@Tag("benchmark")
+public class ThumbnailDownloadBenchmarkTest {
+
+    private static final Logger LOG = LogManager.getLogger(ThumbnailDownloadBenchmarkTest.class);
+    private static final int THUMBNAILS = 1000;
+    private static final int THUMBNAIL_SIZE = 24 * 1024;
+    private static final long CACHE_SIZE = 64L * 1024 * 1024;
+    private static final int PAGE_SIZE = 60;
+    private static final int SCROLL_STEP = 20;
+    private static final int PASSES = 10;
+
+    @TempDir
+    private File root;
+
+    private List<File> thumbnails = new ArrayList<>();
+
+    @BeforeEach
+    void createThumbnails() throws IOException {
+        Random random = new Random(0);
+        byte[] content = new byte[THUMBNAIL_SIZE];
+        for (int i = 0; i < THUMBNAILS; i++) {
+            random.nextBytes(content);
+            File thumbnail = new File(new File(new File(root, Integer.toString(i)), "files"), "small");
+            writeByteArrayToFile(thumbnail, content);
+            thumbnails.add(thumbnail);
+        }
+    }
+
+    @Test
+    @DisplayName("Off-heap cached thumbnails allocate far less heap than uncached or heap cached thumbnails")
+    void compareThumbnailCaches() throws Exception {
+        BinaryMessageBodyWriter binaryWriter = new BinaryMessageBodyWriter();
+        WeightedCache<File, byte[]> heapCache = new WeightedCache<>(CACHE_SIZE, bytes -> bytes.length);
+        FileRecordMessageBodyWriter uncachedWriter = fileWriter(new ThumbnailCache());
+        ThumbnailCache offHeapCache = new ThumbnailCache(CACHE_SIZE, THUMBNAIL_SIZE / 3, THUMBNAIL_SIZE, List.of("small"));
+        FileRecordMessageBodyWriter offHeapWriter = fileWriter(offHeapCache);
+
+        Measurement uncached = scroll(file -> binaryWriter.writeTo(new Blob(readFileToByteArray(file)), Blob.class, Blob.class,
+            null, null, new MultivaluedHashMap<>(), OutputStream.nullOutputStream()));
+        Measurement channel = scroll(file -> uncachedWriter.writeTo(new BlobFile(file), BlobFile.class, BlobFile.class,
+            null, null, new MultivaluedHashMap<>(), OutputStream.nullOutputStream()));
+        Measurement heap = scroll(file -> binaryWriter.writeTo(new Blob(heapCache.get(file, this::read)), Blob.class, Blob.class,
+            null, null, new MultivaluedHashMap<>(), OutputStream.nullOutputStream()));
+        Measurement offHeap = scroll(file -> offHeapWriter.writeTo(new BlobFile(file), BlobFile.class, BlobFile.class,
+            null, null, new MultivaluedHashMap<>(), OutputStream.nullOutputStream()));
+
+        log("byte[] without cache", uncached);
+        log("file channel without cache", channel);
+        log("heap cache", heap);
+        log("off-heap cache", offHeap);
+        LOG.info("off-heap cache hit rate {}", offHeapCache.metrics().getHitRate());
+
+        assertThat(offHeapCache.metrics().getHitRate()).isGreaterThan(0.8);
+        assertThat(uncached.allocatedBytes()).isGreaterThanOrEqualTo(THUMBNAIL_SIZE);
+        assertThat(offHeap.allocatedBytes()).isLessThan(THUMBNAIL_SIZE / 4);
+    }
+
+    /**
+     * Scrolls through the gallery page by page, forth and back, like a user looking for a photo.
+     */
+    private Measurement scroll(Download download) throws Exception {
+        ThreadMXBean threadBean = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long collectionsBefore = collections();
+        long start = System.nanoTime();
+        int downloads = 0;
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int page = 0; page + PAGE_SIZE <= THUMBNAILS; page += SCROLL_STEP) {
+                int first = pass % 2 == 0 ? page : THUMBNAILS - PAGE_SIZE - page;
+                for (File thumbnail : thumbnails.subList(first, first + PAGE_SIZE)) {
+                    download.run(thumbnail);
+                    downloads++;
+                }
+            }
+        }
+        long duration = System.nanoTime() - start;
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        return new Measurement(duration / downloads, allocated / downloads, collections() - collectionsBefore);
+    }
+
+    private long collections() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private void log(String name, Measurement measurement) {
+        LOG.info("{}: {} ns and {} bytes allocated per thumbnail, {} garbage collections",
+            name, measurement.nanos(), measurement.allocatedBytes(), measurement.collections());
+    }
+
+    private byte[] read(File file) {
+        try {
+            return readFileToByteArray(file);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+
+    private interface Download {
+        void run(File thumbnail) throws Exception;
+    }
+
+    private record Measurement(long nanos, long allocatedBytes, long collections) {
+    }
+}